@@ -0,0 +1,160 @@
+package ninth;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * 画面を使わずに、.dat ファイルをまとめて PNG 画像に変換するコマンド
+ * 画面の「PNG出力」と同じく ExportRenderer で図形全体が収まるように描く。
+ * ファイルごとに別のスレッドで並列に変換し、読み込んだ図形と描画用の帯の大きさの見積もりが
+ * 最大ヒープの半分を超えないように、同時に変換するファイルを絞る。
+ * ジャーナル（.dat.journal）は読まないので、保存していない編集は反映されない。
+ *
+ * 実行例: java -Djava.awt.headless=true ninth.BatchRender -w 1600 -h 1200 -o out drawings/ extra.dat
+ *   -w, -h  出力画像の幅・高さ（既定 800 x 600）
+ *   -o      出力先のディレクトリ（省略すると .dat と同じ場所）
+ *   -j      同時に変換するファイルの最大数（既定はコア数）
+ * ディレクトリを渡すと、その直下の .dat ファイルをすべて変換する。
+ * 1つでも失敗すると終了コード 1 を返す（引数が正しくないときは 2）。
+ */
+public class BatchRender {
+    // 読み込んだ図形が .dat ファイルの何倍のメモリを使うかの見積もり
+    private static final long FIGURE_BYTES_PER_FILE_BYTE = 24;
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args));
+    }
+
+    /**
+     * 引数に従って変換する
+     * @param args コマンドライン引数
+     * @return 終了コード
+     */
+    static int run(String[] args) {
+        int width = 800, height = 600, jobs = Runtime.getRuntime().availableProcessors();
+        Path outDir = null;
+        List<Path> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-w": width = Integer.parseInt(args[++i]); break;
+                    case "-h": height = Integer.parseInt(args[++i]); break;
+                    case "-j": jobs = Integer.parseInt(args[++i]); break;
+                    case "-o": outDir = Paths.get(args[++i]); break;
+                    default: collect(Paths.get(args[i]), files); break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException | IOException e) {
+            System.err.println("引数が正しくありません: " + e.getMessage());
+            return usage();
+        }
+        if (files.isEmpty() || width <= 0 || height <= 0 || jobs <= 0) return usage();
+        if (outDir != null) {
+            try {
+                Files.createDirectories(outDir);
+            } catch (IOException e) {
+                System.err.println("出力先を作れません: " + outDir + " (" + e.getMessage() + ")");
+                return 2;
+            }
+        }
+
+        // 同時に変換するファイルを、見積もったメモリ（KiB 単位）の合計で絞る
+        int budget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 2 / 1024);
+        Semaphore memory = new Semaphore(budget);
+        long bandBytes = 2L * width * ExportRenderer.bandRows(width) * 4;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, files.size()));
+        List<Future<Boolean>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (Path file : files) {
+            Path png = pngOf(file, outDir);
+            int w = width, h = height;
+            long estimate = bandBytes + sizeOf(file) * FIGURE_BYTES_PER_FILE_BYTE;
+            // 1つで予算を超えるファイルも、ほかと同時に走らせないようにすれば変換できる
+            int permits = (int) Math.max(1, Math.min(budget, estimate / 1024));
+            results.add(pool.submit(() -> {
+                memory.acquire(permits);
+                try {
+                    return convert(file, png, w, h);
+                } finally {
+                    memory.release(permits);
+                }
+            }));
+        }
+        int failed = 0;
+        for (Future<Boolean> r : results) {
+            try {
+                if (!r.get()) failed++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed++;
+                break;
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        pool.shutdownNow();
+        System.out.printf("%d files, %d failed, %.1f ms%n", files.size(), failed, (System.nanoTime() - start) / 1e6);
+        return (failed == 0) ? 0 : 1;
+    }
+
+    /**
+     * 1つのファイルを変換して、かかった時間を表示する
+     * @return 変換できたら true
+     */
+    static boolean convert(Path file, Path png, int width, int height) {
+        long t0 = System.nanoTime();
+        try {
+            ArrayList<Figure> figures = DrawingFile.read(file);
+            long t1 = System.nanoTime();
+            SpatialGrid index = new SpatialGrid();
+            index.rebuild(figures);
+            ExportRenderer.fit(figures, index, width, height, width, height).writePng(png.toFile());
+            long t2 = System.nanoTime();
+            System.out.printf("ok    %s -> %s  %d figures, read %.1f ms, render %.1f ms%n",
+                              file, png, figures.size(), (t1 - t0) / 1e6, (t2 - t1) / 1e6);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("fail  %s  %s (%.1f ms)%n", file, e, (System.nanoTime() - t0) / 1e6);
+            return false;
+        }
+    }
+
+    /** ファイルならそのまま、ディレクトリなら直下の .dat ファイルを名前順に加える */
+    private static void collect(Path p, List<Path> files) throws IOException {
+        if (!Files.isDirectory(p)) {
+            files.add(p);
+            return;
+        }
+        try (Stream<Path> s = Files.list(p)) {
+            s.filter(f -> Files.isRegularFile(f) && f.getFileName().toString().toLowerCase().endsWith(".dat"))
+             .sorted()
+             .forEach(files::add);
+        }
+    }
+
+    /** 出力する PNG ファイルの場所（拡張子 .dat を .png に替える） */
+    private static Path pngOf(Path file, Path outDir) {
+        String name = file.getFileName().toString();
+        if (name.toLowerCase().endsWith(".dat")) name = name.substring(0, name.length() - 4);
+        name += ".png";
+        Path dir = (outDir != null) ? outDir : file.toAbsolutePath().getParent();
+        return dir.resolve(name);
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static int usage() {
+        System.err.println("使い方: java -Djava.awt.headless=true ninth.BatchRender [-w 幅] [-h 高さ] [-o 出力先] [-j 並列数] ファイルまたはディレクトリ...");
+        return 2;
+    }
+}
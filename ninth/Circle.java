@@ -9,21 +9,29 @@ import java.awt.geom.*;
  * 半径 = √(w² + h²) で計算される
  */
 public class Circle extends Figure {
-    Ellipse2D f;  // 描画用の楕円形オブジェクト
+    private static final long serialVersionUID = 1425129672763613107L;
 
     /**
-     * 円を描画
-     * ドラッグ量から半径を算出し、中心(x, y)を基準に円を描く
+     * 円の形状を作成
+     * ドラッグ量から半径を算出し、中心(x, y)を基準に円を作る
      */
-    @Override public void paint(Graphics2D g) {
+    @Override protected Shape createShape() {
         // ドラッグ量w, hから半径を計算（ピタゴラスの定理）
         double size = Math.sqrt((double)(w * w + h * h));
         
         // 中心(x, y)から半径分ずらした位置を左上として、直径×直径の円を作成
-        f = new Ellipse2D.Double(x - size, y - size, size * 2, size * 2);
+        return new Ellipse2D.Double(x - size, y - size, size * 2, size * 2);
+    }
+
+    /**
+     * 円を描画
+     * キャッシュ済みの円形を描く
+     */
+    @Override public void paint(Graphics2D g) {
+        Shape f = getShape();
         
         // 線のスタイルを設定（線幅、端を丸める、接続部を丸める）
-        g.setStroke(new BasicStroke((float)strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.setStroke(getStroke());
         g.setPaint(color);  // 描画色を設定
         
         // 塗りつぶしまたは枠線描画
@@ -48,11 +56,11 @@ public class Circle extends Figure {
     }
 
     /**
-     * 外接矩形を取得
+     * 外接矩形を計算
      * @return 円を囲む正方形の矩形
      */
     @Override
-    public java.awt.geom.Rectangle2D getBounds2D() {
+    protected java.awt.geom.Rectangle2D computeBounds() {
         // 半径を再計算
         double size = Math.sqrt((double)(w * w + h * h));
         // 中心から半径分ずらした左上座標と、直径×直径の矩形を返す
@@ -0,0 +1,218 @@
+package ninth;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayDeque;
+
+/**
+ * 点列を、区分的な3次ベジェ曲線で近似するクラス（Schneider の方法）
+ * 区間の両端の接線の向きを固定したまま最小二乗法で制御点を求め、
+ * どの点からも誤差の範囲に収まらなければ、いちばん離れた点で区間を分けて近似し直す。
+ * 分ける前に数回だけ、各点に対応する曲線上の位置（媒介変数）をニュートン法で直して近似し直す。
+ *
+ * 結果は「始点, 制御点1, 制御点2, 終点, 制御点1, 制御点2, 終点, ...」の並びの点列（3k+1 点）で返す。
+ * 区間の継ぎ目では接線の向きが揃うので、つないだ曲線は滑らかになる。
+ * 点の多い点列でもスタックがあふれないよう、区間の分割に再帰は使わない。
+ */
+public final class CurveFitter {
+    // 分ける前に媒介変数を直して近似し直す回数
+    private static final int MAX_ITERATIONS = 4;
+
+    private CurveFitter() {}
+
+    /**
+     * 点列を3次ベジェ曲線の列で近似する
+     * @param samples 近似する点列（同じ点が続く分は1つにまとめる）
+     * @param error 元の点から曲線までの距離の上限
+     * @return 制御点の列（3k+1 点。点が1つ以下なら、その点だけ）
+     */
+    public static PointBuffer fit(PointBuffer samples, double error) {
+        // 同じ点が続くと接線が求まらないので、まとめておく
+        PointBuffer d = new PointBuffer(samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            double x = samples.getX(i), y = samples.getY(i);
+            if (d.isEmpty() || x != d.getX(d.size() - 1) || y != d.getY(d.size() - 1)) d.add(x, y);
+        }
+        int n = d.size();
+        PointBuffer out = new PointBuffer(Math.max(n, 1));
+        if (n == 0) return out;
+        out.add(d.getX(0), d.getY(0));
+        if (n == 1) return out;
+
+        double error2 = error * error;
+        Point2D.Double left = unit(d.getX(1) - d.getX(0), d.getY(1) - d.getY(0));
+        Point2D.Double right = unit(d.getX(n - 2) - d.getX(n - 1), d.getY(n - 2) - d.getY(n - 1));
+        // 近似する区間の積み残し（先頭から順に出力するので、後ろ半分を先に積む）
+        ArrayDeque<Span> todo = new ArrayDeque<>();
+        todo.push(new Span(0, n - 1, left, right));
+        double[] bez = new double[8];
+        while (!todo.isEmpty()) {
+            Span s = todo.pop();
+            int split = fitSpan(d, s, error2, bez);
+            if (split < 0) {
+                out.add(bez[2], bez[3]);
+                out.add(bez[4], bez[5]);
+                out.add(bez[6], bez[7]);
+                continue;
+            }
+            // いちばん離れた点で分け、その点の前後の点から継ぎ目の接線を決める
+            Point2D.Double center = centerTangent(d, split);
+            todo.push(new Span(split, s.last, new Point2D.Double(-center.x, -center.y), s.right));
+            todo.push(new Span(s.first, split, s.left, center));
+        }
+        return out;
+    }
+
+    /** 近似する区間（両端の点の番号と、両端での接線の向き） */
+    private static final class Span {
+        final int first, last;
+        final Point2D.Double left, right;
+
+        Span(int first, int last, Point2D.Double left, Point2D.Double right) {
+            this.first = first;
+            this.last = last;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * 区間を1本の曲線で近似する
+     * @param bez 近似した曲線の制御点（x0, y0, ..., x3, y3）を入れる配列
+     * @return 誤差の範囲に収まれば -1、収まらなければ分ける点の番号
+     */
+    private static int fitSpan(PointBuffer d, Span s, double error2, double[] bez) {
+        int first = s.first, last = s.last;
+        if (last - first == 1) {
+            // 2点だけなら、両端から距離の1/3だけ接線の向きに制御点を置く
+            double dist = Math.hypot(d.getX(last) - d.getX(first), d.getY(last) - d.getY(first)) / 3.0;
+            setBezier(d, first, last, s.left, s.right, dist, dist, bez);
+            return -1;
+        }
+        double[] u = chordLengthParameterize(d, first, last);
+        generateBezier(d, first, last, u, s.left, s.right, bez);
+        int[] split = new int[1];
+        double maxError = maxError(d, first, last, bez, u, split);
+        if (maxError < error2) return -1;
+
+        // 誤差がそれほど大きくなければ、媒介変数を直して近似し直してみる
+        if (maxError < error2 * 4) {
+            for (int i = 0; i < MAX_ITERATIONS; i++) {
+                reparameterize(d, first, last, u, bez);
+                generateBezier(d, first, last, u, s.left, s.right, bez);
+                maxError = maxError(d, first, last, bez, u, split);
+                if (maxError < error2) return -1;
+            }
+        }
+        return split[0];
+    }
+
+    /** 点の間の距離の累積で、各点に 0～1 の媒介変数を割り当てる */
+    private static double[] chordLengthParameterize(PointBuffer d, int first, int last) {
+        double[] u = new double[last - first + 1];
+        for (int i = first + 1; i <= last; i++) {
+            u[i - first] = u[i - first - 1] + Math.hypot(d.getX(i) - d.getX(i - 1), d.getY(i) - d.getY(i - 1));
+        }
+        double total = u[last - first];
+        for (int i = 1; i < u.length; i++) u[i] /= total;
+        return u;
+    }
+
+    /**
+     * 両端の点と接線の向きを固定し、制御点までの距離を最小二乗法で求める
+     * 解が求まらない・向きが逆になるときは、両端の距離の1/3を使う
+     */
+    private static void generateBezier(PointBuffer d, int first, int last, double[] u,
+                                       Point2D.Double left, Point2D.Double right, double[] bez) {
+        double x0 = d.getX(first), y0 = d.getY(first), x3 = d.getX(last), y3 = d.getY(last);
+        double c00 = 0, c01 = 0, c11 = 0, xr0 = 0, xr1 = 0;
+        for (int i = first; i <= last; i++) {
+            double t = u[i - first], mt = 1 - t;
+            double b0 = mt * mt * mt, b1 = 3 * t * mt * mt, b2 = 3 * t * t * mt, b3 = t * t * t;
+            double a0x = left.x * b1, a0y = left.y * b1, a1x = right.x * b2, a1y = right.y * b2;
+            c00 += a0x * a0x + a0y * a0y;
+            c01 += a0x * a1x + a0y * a1y;
+            c11 += a1x * a1x + a1y * a1y;
+            double tx = d.getX(i) - (x0 * (b0 + b1) + x3 * (b2 + b3));
+            double ty = d.getY(i) - (y0 * (b0 + b1) + y3 * (b2 + b3));
+            xr0 += a0x * tx + a0y * ty;
+            xr1 += a1x * tx + a1y * ty;
+        }
+        double det = c00 * c11 - c01 * c01;
+        double alphaL = (det == 0) ? 0 : (xr0 * c11 - xr1 * c01) / det;
+        double alphaR = (det == 0) ? 0 : (c00 * xr1 - c01 * xr0) / det;
+        double segLength = Math.hypot(x3 - x0, y3 - y0);
+        double epsilon = 1.0e-6 * segLength;
+        if (alphaL < epsilon || alphaR < epsilon) alphaL = alphaR = segLength / 3.0;
+        setBezier(d, first, last, left, right, alphaL, alphaR, bez);
+    }
+
+    private static void setBezier(PointBuffer d, int first, int last, Point2D.Double left, Point2D.Double right,
+                                  double alphaL, double alphaR, double[] bez) {
+        bez[0] = d.getX(first); bez[1] = d.getY(first);
+        bez[2] = bez[0] + left.x * alphaL; bez[3] = bez[1] + left.y * alphaL;
+        bez[6] = d.getX(last); bez[7] = d.getY(last);
+        bez[4] = bez[6] + right.x * alphaR; bez[5] = bez[7] + right.y * alphaR;
+    }
+
+    /**
+     * 各点から、対応する曲線上の位置までの距離（の2乗）の最大を求める
+     * @param split いちばん離れた点の番号を入れる配列
+     * @return 距離の2乗の最大
+     */
+    private static double maxError(PointBuffer d, int first, int last, double[] bez, double[] u, int[] split) {
+        double max = 0;
+        split[0] = (first + last) / 2;
+        for (int i = first + 1; i < last; i++) {
+            double t = u[i - first];
+            double dx = bezier(bez, 0, t) - d.getX(i), dy = bezier(bez, 1, t) - d.getY(i);
+            double dist = dx * dx + dy * dy;
+            if (dist >= max) {
+                max = dist;
+                split[0] = i;
+            }
+        }
+        return max;
+    }
+
+    /** ニュートン法で、各点に最も近い曲線上の位置へ媒介変数を寄せる */
+    private static void reparameterize(PointBuffer d, int first, int last, double[] u, double[] bez) {
+        for (int i = first; i <= last; i++) {
+            double t = u[i - first];
+            double qx = bezier(bez, 0, t) - d.getX(i), qy = bezier(bez, 1, t) - d.getY(i);
+            double q1x = derivative(bez, 0, t), q1y = derivative(bez, 1, t);
+            double q2x = secondDerivative(bez, 0, t), q2y = secondDerivative(bez, 1, t);
+            double den = q1x * q1x + q1y * q1y + qx * q2x + qy * q2y;
+            if (den != 0) u[i - first] = t - (qx * q1x + qy * q1y) / den;
+        }
+    }
+
+    /** 曲線上の位置 t の座標（axis=0 なら x、1 なら y） */
+    private static double bezier(double[] b, int axis, double t) {
+        double mt = 1 - t;
+        return mt * mt * mt * b[axis] + 3 * t * mt * mt * b[2 + axis] + 3 * t * t * mt * b[4 + axis] + t * t * t * b[6 + axis];
+    }
+
+    private static double derivative(double[] b, int axis, double t) {
+        double mt = 1 - t;
+        return 3 * (mt * mt * (b[2 + axis] - b[axis]) + 2 * t * mt * (b[4 + axis] - b[2 + axis]) + t * t * (b[6 + axis] - b[4 + axis]));
+    }
+
+    private static double secondDerivative(double[] b, int axis, double t) {
+        return 6 * ((1 - t) * (b[4 + axis] - 2 * b[2 + axis] + b[axis]) + t * (b[6 + axis] - 2 * b[4 + axis] + b[2 + axis]));
+    }
+
+    /** 分ける点での接線の向き（前後の点を結ぶ向き。前後が同じ点なら、前の点への向き） */
+    private static Point2D.Double centerTangent(PointBuffer d, int i) {
+        double dx = d.getX(i - 1) - d.getX(i + 1), dy = d.getY(i - 1) - d.getY(i + 1);
+        if (dx == 0 && dy == 0) {
+            dx = d.getX(i - 1) - d.getX(i);
+            dy = d.getY(i - 1) - d.getY(i);
+        }
+        return unit(dx, dy);
+    }
+
+    private static Point2D.Double unit(double dx, double dy) {
+        double len = Math.hypot(dx, dy);
+        return (len == 0) ? new Point2D.Double(0, 0) : new Point2D.Double(dx / len, dy / len);
+    }
+}
@@ -8,19 +8,35 @@ import java.awt.geom.*;
  * クリックした位置に小さな円形の点を配置
  */
 public class Dot extends Figure {
+    private static final long serialVersionUID = 4602690031869646795L;
+
     double size = 10.0;  // 点の直径（固定サイズ）
-    Ellipse2D f;         // 描画用の楕円形オブジェクト
+
+    /** 点は塗りの有無にかかわらず枠線も描く */
+    @Override
+    public boolean paintsStroke() { return true; }
+
+    @Override
+    public long fingerprint() { return mix(super.fingerprint(), Double.doubleToLongBits(size)); }
+
+    /**
+     * 点の形状を作成
+     * 中心座標(x, y)を基準に、固定サイズの円を作る
+     */
+    @Override protected Shape createShape() {
+        // 中心(x, y)から半径分ずらした位置を左上として円を作成
+        return new Ellipse2D.Double(x - size/2, y - size/2, size, size);
+    }
 
     /**
      * 点を描画
-     * 中心座標(x, y)を基準に、固定サイズの円を描く
+     * キャッシュ済みの円形を描く
      */
     @Override public void paint(Graphics2D g){
-        // 中心(x, y)から半径分ずらした位置を左上として円を作成
-        f = new Ellipse2D.Double(x - size/2, y - size/2, size, size);
+        Shape f = getShape();
         
         // 線のスタイルを設定（線幅、端を丸める、接続部を丸める）
-        g.setStroke(new BasicStroke((float)strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.setStroke(getStroke());
         g.setPaint(color);  // 描画色を設定
         
         // 塗りつぶしフラグがtrueなら内部を塗る
@@ -44,11 +60,11 @@ public class Dot extends Figure {
     }
 
     /**
-     * 外接矩形を取得
+     * 外接矩形を計算
      * @return 点を囲む正方形の矩形
      */
     @Override
-    public java.awt.geom.Rectangle2D getBounds2D() {
+    protected java.awt.geom.Rectangle2D computeBounds() {
         double r = size/2.0;  // 半径
         // 中心から半径分ずらした左上座標と、サイズ×サイズの矩形を返す
         return new java.awt.geom.Rectangle2D.Double(x - r, y - r, size, size);
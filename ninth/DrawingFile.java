@@ -0,0 +1,572 @@
+package ninth;
+
+import java.awt.Color;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * 図形リストを .dat ファイルに保存・読み込みするクラス
+ *
+ * ファイルの構成（数値はビッグエンディアン、varint は7ビットずつの可変長整数）
+ * <pre>
+ *   "DSFT"            マジック（4バイト）
+ *   u16 version       形式のバージョン（現在は2）
+ *   u16 reserved      予約（0）
+ *   チャンク × n      描画順に連続した図形のレコードの並び
+ *   索引              varint colors, i32 × colors（パレット, ARGB）,
+ *                     varint 図形の数, varint チャンクの数,
+ *                     チャンクごとに i64 位置, i32 長さ, varint 図形の数, f32 × 4（描画範囲）
+ *   i64 索引の位置
+ *   "DSIX"            索引のマジック（4バイト）
+ * </pre>
+ * チャンクは描画順の連続した範囲で、図形の数が CHUNK_FIGURES に達するか、
+ * 描画範囲が CHUNK_EXTENT を超えて広がるところで区切る。
+ * 索引にチャンクごとの描画範囲があるので、読み込むときは画面にかかるチャンクだけを
+ * 先にデコードできる（IndexedDrawing を参照）。
+ *
+ * レコードは種類(u8)、フラグ(u8)、色のパレット番号(varint)、線幅（既定値でなければ）、座標の順。
+ * 座標がすべて整数、または 1/64 の倍数なら整数に直して zigzag varint で書く（読み戻しても同じ値になる）。
+ * それ以外の図形は double のまま書く。
+ * フリーハンド・折れ線の点列は、整数に直せるときは前の点との差分で書く。
+ * 曲線にしたフリーハンド（Freehand.fitCurves）は FLAG_CURVE を立て、点列の代わりに制御点を同じように書く。
+ *
+ * Java のシリアライズで保存していた旧形式のファイル（先頭が 0xACED）も読み込める。
+ *
+ * 保存は同じフォルダの一時ファイルに書いてから置き換えるので、途中で失敗・中断しても元のファイルは壊れない。
+ * 保存中に別のスレッドから図形を書き換える場合は、渡したリストをロックしてから行うこと
+ * （図形は1つずつリストをロックして読む。SaveSnapshot を参照）。
+ */
+public class DrawingFile {
+    // ファイル先頭のマジック "DSFT"
+    static final int MAGIC = 0x44534654;
+    // 現在の形式のバージョン
+    static final int VERSION = 2;
+    // ファイル末尾の索引のマジック "DSIX"
+    static final int INDEX_MAGIC = 0x44534958;
+    // ヘッダとファイル末尾の大きさ
+    static final int HEADER_SIZE = 8, TRAILER_SIZE = 12;
+    // 1つのチャンクに入れる図形の数の上限
+    static final int CHUNK_FIGURES = 4096;
+    // チャンクの描画範囲の一辺の目安（これを超えて広がるなら、ある程度図形がたまった時点で区切る）
+    static final double CHUNK_EXTENT = 1024.0;
+    private static final int CHUNK_MIN_FIGURES = 64;
+    // 旧形式（Java のシリアライズ）のストリームの先頭
+    private static final int SERIAL_MAGIC = 0xACED;
+
+    // 図形の種類
+    static final int TYPE_DOT = 1, TYPE_CIRCLE = 2, TYPE_RECT = 3, TYPE_LINE = 4,
+                     TYPE_ELLIPSE = 5, TYPE_FREEHAND = 6, TYPE_POLYLINE = 7;
+
+    // レコードのフラグ
+    static final int FLAG_FILLED = 1;          // 塗りつぶし
+    static final int FLAG_WIDTH = 1 << 1;      // 線幅が既定値(2.0)でない（float で続く）
+    static final int FLAG_FIXED = 1 << 2;      // 座標を整数に直して書いている
+    static final int FLAG_FRACTION = 1 << 3;   // 整数に直すときに FRACTION 倍している
+    static final int FLAG_ORIGIN = 1 << 4;     // 基準座標が最初の点と同じ（省略している）
+    static final int FLAG_WIDTH_DOUBLE = 1 << 5; // 線幅を double で書いている
+    static final int FLAG_CURVE = 1 << 6;      // フリーハンドの点列が3次ベジェ曲線の制御点
+
+    // 座標を整数に直すときの倍率（2のべき乗なので掛けても誤差が出ない）
+    static final int FRACTION = 64;
+    // 既定の線幅
+    private static final double DEFAULT_WIDTH = 2.0;
+    // 書き込み・読み込みのバッファの大きさ
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private DrawingFile() {}
+
+    /** 保存・読み込みの進み具合の通知先 */
+    public interface Progress {
+        /**
+         * @param done 処理済みの図形の数
+         * @param total 図形の総数
+         * @return 続けるならtrue（falseを返すと InterruptedIOException で中断する）
+         */
+        boolean update(int done, int total);
+    }
+
+    /** 書き出したファイルで置き換える直前に呼ばれる処理（DrawingJournal が区切りを書くのに使う） */
+    interface BeforeReplace {
+        /**
+         * @param checksum 書き出した内容のチェックサム（checksum(Path) と同じ値）
+         * @throws IOException 失敗したとき（ファイルは置き換えない）
+         */
+        void run(long checksum) throws IOException;
+    }
+
+    /**
+     * 図形リストをファイルに保存する
+     * @param path 保存先
+     * @param figures 描画順の図形リスト
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public static void write(Path path, List<Figure> figures) throws IOException {
+        write(path, figures, null);
+    }
+
+    /**
+     * 図形リストをファイルに保存する（一時ファイルに書いてから置き換える）
+     * @param path 保存先
+     * @param figures 描画順の図形リスト
+     * @param progress 進み具合の通知先（null可）
+     * @throws IOException 書き込みに失敗したとき
+     * @throws InterruptedIOException progress が中断を指示したとき
+     */
+    public static void write(Path path, List<Figure> figures, Progress progress) throws IOException {
+        write(path, figures, progress, null);
+    }
+
+    /**
+     * 図形リストをファイルに保存する（一時ファイルに書いてから置き換える）
+     * @param path 保存先
+     * @param figures 描画順の図形リスト
+     * @param progress 進み具合の通知先（null可）
+     * @param beforeReplace 置き換える直前に呼ぶ処理（null可）
+     * @return 書き出した内容のチェックサム
+     * @throws IOException 書き込みに失敗したとき
+     * @throws InterruptedIOException progress が中断を指示したとき
+     */
+    static long write(Path path, List<Figure> figures, Progress progress, BeforeReplace beforeReplace) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        CRC32C crc = new CRC32C();
+        boolean done = false;
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Out out = new Out(ch, crc);
+                writeTo(out, figures, progress);
+                out.flush();
+                ch.force(false);
+            }
+            if (beforeReplace != null) beforeReplace.run(crc.getValue());
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+        } finally {
+            if (!done) Files.deleteIfExists(tmp);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 図形リストをファイルと同じ形式でチャネルに書く（DrawingJournal がスナップショットを書くのに使う）
+     * 索引の位置は、書き始めた位置からの相対位置になる（IndexedDrawing.of で読める）。
+     * @param ch 書き込み先
+     * @param crc 書き出した内容で更新するチェックサム（null可）
+     * @param figures 描画順の図形リスト
+     * @return 書いたバイト数
+     * @throws IOException 書き込みに失敗したとき
+     */
+    static long write(WritableByteChannel ch, java.util.zip.Checksum crc, List<Figure> figures) throws IOException {
+        Out out = new Out(ch, crc);
+        writeTo(out, figures, null);
+        out.flush();
+        return out.position();
+    }
+
+    /**
+     * ファイルの内容のチェックサム（CRC-32C）を求める
+     * @param path 対象のファイル
+     * @return チェックサム
+     * @throws IOException 読み込みに失敗したとき
+     */
+    static long checksum(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            // マップはしない（残っていると、Windows ではこの後ファイルを置き換えられないため）
+            ByteBuffer buf = ByteBuffer.allocate(64 << 10);
+            while (ch.read(buf) >= 0) {
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * ファイルから図形リストを読み込む（旧形式のファイルも読める）
+     * @param path 読み込むファイル
+     * @return 描画順の図形リスト
+     * @throws IOException 読み込みに失敗したとき、または形式が正しくないとき
+     */
+    public static ArrayList<Figure> read(Path path) throws IOException {
+        try (IndexedDrawing d = IndexedDrawing.open(path)) {
+            if (d != null) return d.decodeAll(null, null);
+        }
+        // 索引付きの形式でなければ、旧形式だけを読む
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, HEADER_SIZE));
+            while (head.hasRemaining() && ch.read(head, head.position()) >= 0) {}
+            if (head.limit() >= 6 && head.getInt(0) == MAGIC) {
+                int version = head.getShort(4) & 0xffff;
+                throw new IOException(version == VERSION ? "ファイルが途中で終わっています" : "未対応のバージョンです: " + version);
+            }
+            if (head.limit() < 2 || (head.getShort(0) & 0xffff) != SERIAL_MAGIC) throw new IOException("図形ファイルではありません");
+            if (size > Integer.MAX_VALUE) throw new IOException("ファイルが大きすぎます");
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && ch.read(buf) >= 0) {}
+            buf.flip();
+            return readLegacy(buf);
+        }
+    }
+
+    // ---- 書き込み ----
+
+    private static void writeTo(Out out, List<Figure> figures, Progress progress) throws IOException {
+        // 使われている色を出現順にパレットへまとめる
+        LinkedHashMap<Integer, Integer> palette = new LinkedHashMap<>();
+        int n = figures.size();
+        for (int i = 0; i < n; i++) {
+            synchronized (figures) { palette.putIfAbsent(argb(figures.get(i).color), palette.size()); }
+        }
+
+        out.i32(MAGIC);
+        out.u16(VERSION);
+        out.u16(0);
+
+        // チャンクごとにレコードを書き、位置・図形の数・描画範囲を控えておく
+        ArrayList<long[]> chunkPos = new ArrayList<>();     // {位置, 長さ, 図形の数}
+        ArrayList<float[]> chunkBounds = new ArrayList<>(); // {minx, miny, maxx, maxy}
+        int i = 0;
+        while (i < n) {
+            if (progress != null && !progress.update(i, n)) throw new InterruptedIOException("保存を中断しました");
+            long start = out.position();
+            double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
+            double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+            int count = 0;
+            for (; i < n && count < CHUNK_FIGURES; i++, count++) {
+                synchronized (figures) {
+                    Figure f = figures.get(i);
+                    java.awt.geom.Rectangle2D bb = f.getBounds2D();
+                    if (bb != null) {
+                        double pad = f.strokeWidth / 2.0 + 1.0;
+                        double x0 = Math.min(minx, bb.getMinX() - pad), y0 = Math.min(miny, bb.getMinY() - pad);
+                        double x1 = Math.max(maxx, bb.getMaxX() + pad), y1 = Math.max(maxy, bb.getMaxY() + pad);
+                        // 範囲が大きく広がるなら、ここで区切って次のチャンクにする
+                        if (count >= CHUNK_MIN_FIGURES && (x1 - x0 > CHUNK_EXTENT || y1 - y0 > CHUNK_EXTENT)
+                                && (x1 - x0 > maxx - minx || y1 - y0 > maxy - miny)) break;
+                        minx = x0; miny = y0; maxx = x1; maxy = y1;
+                    }
+                    writeFigure(out, f, palette.get(argb(f.color)));
+                }
+            }
+            chunkPos.add(new long[]{start, out.position() - start, count});
+            // float に丸めるときは外側に広げる
+            chunkBounds.add(new float[]{down(minx), down(miny), up(maxx), up(maxy)});
+        }
+
+        // 索引
+        long indexPos = out.position();
+        out.varint(palette.size());
+        for (int c : palette.keySet()) out.i32(c);
+        out.varint(n);
+        out.varint(chunkPos.size());
+        for (int k = 0; k < chunkPos.size(); k++) {
+            long[] p = chunkPos.get(k);
+            float[] b = chunkBounds.get(k);
+            out.i64(p[0]);
+            out.i32((int) p[1]);
+            out.varint(p[2]);
+            for (float v : b) out.f32(v);
+        }
+        out.i64(indexPos);
+        out.i32(INDEX_MAGIC);
+        if (progress != null) progress.update(n, n);
+    }
+
+    private static float down(double v) {
+        float f = (float) v;
+        return (f > v) ? Math.nextDown(f) : f;
+    }
+
+    private static float up(double v) {
+        float f = (float) v;
+        return (f < v) ? Math.nextUp(f) : f;
+    }
+
+    static void writeFigure(Out out, Figure f, int colorIndex) throws IOException {
+        int type = typeOf(f);
+        PointBuffer pts = (type == TYPE_FREEHAND) ? ((Freehand) f).getPoints()
+                        : (type == TYPE_POLYLINE) ? ((Polyline) f).getPoints() : null;
+
+        int flags = 0;
+        if (f.filled) flags |= FLAG_FILLED;
+        if (f.strokeWidth != DEFAULT_WIDTH) {
+            flags |= FLAG_WIDTH;
+            if ((float) f.strokeWidth != f.strokeWidth) flags |= FLAG_WIDTH_DOUBLE;
+        }
+        boolean origin = pts != null && !pts.isEmpty() && f.x == pts.getX(0) && f.y == pts.getY(0);
+        if (origin) flags |= FLAG_ORIGIN;
+        if (type == TYPE_FREEHAND && ((Freehand) f).isCurved()) flags |= FLAG_CURVE;
+        // 整数に直せるかどうか（すべての座標で判定する）
+        int scale = fixedScale(f, pts);
+        if (scale > 0) flags |= FLAG_FIXED;
+        if (scale == FRACTION) flags |= FLAG_FRACTION;
+
+        out.u8(type);
+        out.u8(flags);
+        out.varint(colorIndex);
+        if ((flags & FLAG_WIDTH_DOUBLE) != 0) out.f64(f.strokeWidth);
+        else if ((flags & FLAG_WIDTH) != 0) out.f32((float) f.strokeWidth);
+
+        if (pts == null) {
+            out.value(f.x, scale); out.value(f.y, scale);
+            out.value(f.w, scale); out.value(f.h, scale);
+            if (type == TYPE_DOT) out.value(((Dot) f).size, scale);
+            return;
+        }
+        if (!origin) { out.value(f.x, scale); out.value(f.y, scale); }
+        int n = pts.size();
+        out.varint(n);
+        if (scale > 0) {
+            // 前の点との差分を書く
+            long px = 0, py = 0;
+            for (int i = 0; i < n; i++) {
+                long qx = Math.round(pts.getX(i) * scale), qy = Math.round(pts.getY(i) * scale);
+                out.zigzag(qx - px); out.zigzag(qy - py);
+                px = qx; py = qy;
+            }
+        } else {
+            for (int i = 0; i < n; i++) { out.f64(pts.getX(i)); out.f64(pts.getY(i)); }
+        }
+    }
+
+    /**
+     * 図形の座標をすべて整数に直せる倍率を求める
+     * @return 1（整数）、FRACTION（1/FRACTION の倍数）、0（直せない）
+     */
+    private static int fixedScale(Figure f, PointBuffer pts) {
+        for (int scale : new int[]{1, FRACTION}) {
+            boolean ok = fits(f.x, scale) && fits(f.y, scale);
+            if (pts == null) {
+                ok = ok && fits(f.w, scale) && fits(f.h, scale);
+                if (f instanceof Dot) ok = ok && fits(((Dot) f).size, scale);
+            } else {
+                for (int i = 0, n = pts.size(); ok && i < n; i++) ok = fits(pts.getX(i), scale) && fits(pts.getY(i), scale);
+            }
+            if (ok) return scale;
+        }
+        return 0;
+    }
+
+    /** v を scale 倍した値が（差分を取っても溢れない範囲の）整数になるか */
+    private static boolean fits(double v, int scale) {
+        double s = v * scale;
+        return s == Math.rint(s) && Math.abs(s) < (1L << 52);
+    }
+
+    private static int typeOf(Figure f) throws IOException {
+        Class<?> c = f.getClass();
+        if (c == Dot.class) return TYPE_DOT;
+        if (c == Circle.class) return TYPE_CIRCLE;
+        if (c == Rect.class) return TYPE_RECT;
+        if (c == Line.class) return TYPE_LINE;
+        if (c == Ellipse.class) return TYPE_ELLIPSE;
+        if (c == Freehand.class) return TYPE_FREEHAND;
+        if (c == Polyline.class) return TYPE_POLYLINE;
+        throw new IOException("保存できない図形です: " + c.getName());
+    }
+
+    private static int argb(Color c) {
+        return (c != null) ? c.getRGB() : Color.BLACK.getRGB();
+    }
+
+    // ---- 読み込み ----
+
+    static Figure readFigure(In in, Color[] palette) throws IOException {
+        int type = in.u8();
+        int flags = in.u8();
+        long colorIndex = in.varint();
+        if (colorIndex < 0 || colorIndex >= palette.length) throw new IOException("色の番号が正しくありません");
+        Color color = palette[(int) colorIndex];
+        double sw = DEFAULT_WIDTH;
+        if ((flags & FLAG_WIDTH_DOUBLE) != 0) sw = in.f64();
+        else if ((flags & FLAG_WIDTH) != 0) sw = in.f32();
+        int scale = (flags & FLAG_FIXED) == 0 ? 0 : (flags & FLAG_FRACTION) != 0 ? FRACTION : 1;
+
+        Figure f;
+        if (type == TYPE_FREEHAND || type == TYPE_POLYLINE) {
+            double ox = 0, oy = 0;
+            boolean origin = (flags & FLAG_ORIGIN) != 0;
+            if (!origin) { ox = in.value(scale); oy = in.value(scale); }
+            int n = in.count();
+            PointBuffer pts = new PointBuffer(n);
+            if (scale > 0) {
+                long px = 0, py = 0;
+                for (int i = 0; i < n; i++) {
+                    px += in.zigzag(); py += in.zigzag();
+                    pts.add((double) px / scale, (double) py / scale);
+                }
+            } else {
+                for (int i = 0; i < n; i++) pts.add(in.f64(), in.f64());
+            }
+            if (origin) {
+                if (n == 0) throw new IOException("点列が空です");
+                ox = pts.getX(0); oy = pts.getY(0);
+            }
+            if (type == TYPE_FREEHAND) {
+                Freehand fh = new Freehand(ox, oy, color, (float) sw);
+                fh.points = pts;
+                if ((flags & FLAG_CURVE) != 0) {
+                    if (n % 3 != 1) throw new IOException("曲線の制御点の数が正しくありません");
+                    fh.curved = true;
+                }
+                f = fh;
+            } else {
+                Polyline pl = new Polyline(ox, oy, color, (float) sw);
+                pl.points = pts;
+                f = pl;
+            }
+        } else {
+            switch (type) {
+                case TYPE_DOT: f = new Dot(); break;
+                case TYPE_CIRCLE: f = new Circle(); break;
+                case TYPE_RECT: f = new Rect(); break;
+                case TYPE_LINE: f = new Line(); break;
+                case TYPE_ELLIPSE: f = new Ellipse(); break;
+                default: throw new IOException("不明な図形の種類です: " + type);
+            }
+            f.x = in.value(scale); f.y = in.value(scale);
+            f.w = in.value(scale); f.h = in.value(scale);
+            if (type == TYPE_DOT) ((Dot) f).size = in.value(scale);
+        }
+        f.color = color;
+        f.strokeWidth = sw;
+        f.filled = (flags & FLAG_FILLED) != 0;
+        return f;
+    }
+
+    /** 旧形式（ArrayList<Figure> を Java のシリアライズで書いたもの）を読む */
+    @SuppressWarnings("unchecked")
+    private static ArrayList<Figure> readLegacy(ByteBuffer buf) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()))) {
+            Object o = ois.readObject();
+            if (!(o instanceof ArrayList)) throw new IOException("図形ファイルではありません");
+            return (ArrayList<Figure>) o;
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("図形ファイルではありません", e);
+        }
+    }
+
+    // ---- バッファ付きの入出力 ----
+
+    /** チャネルへバッファ経由で書き込む（先頭から順に書くだけで、位置は戻さない） */
+    static final class Out {
+        private final WritableByteChannel ch;
+        private final java.util.zip.Checksum crc;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        // チャネルに書き出し済みのバイト数
+        private long flushed = 0;
+
+        /**
+         * @param ch 書き込み先
+         * @param crc 書き出した内容で更新するチェックサム（null可）
+         */
+        Out(WritableByteChannel ch, java.util.zip.Checksum crc) {
+            this.ch = ch;
+            this.crc = crc;
+        }
+
+        /** 先頭からの位置（バッファに残っている分を含む） */
+        long position() { return flushed + buf.position(); }
+
+        void u8(int v) throws IOException { ensure(1); buf.put((byte) v); }
+        void u16(int v) throws IOException { ensure(2); buf.putShort((short) v); }
+        void i32(int v) throws IOException { ensure(4); buf.putInt(v); }
+        void f32(float v) throws IOException { ensure(4); buf.putFloat(v); }
+        void f64(double v) throws IOException { ensure(8); buf.putDouble(v); }
+        void i64(long v) throws IOException { ensure(8); buf.putLong(v); }
+
+        /** 符号なしの可変長整数 */
+        void varint(long v) throws IOException {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf.put((byte) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            buf.put((byte) v);
+        }
+
+        /** 符号付きの可変長整数（絶対値の小さい負の数も短くなるように変換する） */
+        void zigzag(long v) throws IOException { varint((v << 1) ^ (v >> 63)); }
+
+        /** 座標1つ（scale が0なら double、それ以外は scale 倍した整数） */
+        void value(double v, int scale) throws IOException {
+            if (scale > 0) zigzag(Math.round(v * scale));
+            else f64(v);
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buf.remaining() < n) flush();
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            flushed += buf.remaining();
+            if (crc != null) {
+                crc.update(buf);
+                buf.rewind();
+            }
+            while (buf.hasRemaining()) ch.write(buf);
+            buf.clear();
+        }
+    }
+
+    /** バッファから読み込む（足りなければ IOException） */
+    static final class In {
+        private final ByteBuffer buf;
+
+        In(ByteBuffer buf) { this.buf = buf; }
+
+        int u8() throws IOException { need(1); return buf.get() & 0xff; }
+        int u16() throws IOException { need(2); return buf.getShort() & 0xffff; }
+        int i32() throws IOException { need(4); return buf.getInt(); }
+        float f32() throws IOException { need(4); return buf.getFloat(); }
+        double f64() throws IOException { need(8); return buf.getDouble(); }
+        long i64() throws IOException { need(8); return buf.getLong(); }
+
+        /** 読み終わったかどうか */
+        boolean atEnd() { return !buf.hasRemaining(); }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("数値が壊れています");
+        }
+
+        long zigzag() throws IOException {
+            long v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /** 個数（残りのデータ量を超える値は壊れているとみなす） */
+        int count() throws IOException {
+            long v = varint();
+            if (v < 0 || v > buf.remaining() + 1L) throw new IOException("個数が正しくありません");
+            return (int) v;
+        }
+
+        double value(int scale) throws IOException {
+            return (scale > 0) ? (double) zigzag() / scale : f64();
+        }
+
+        private void need(int n) throws IOException {
+            if (buf.remaining() < n) throw new EOFException("ファイルが途中で終わっています");
+        }
+    }
+}
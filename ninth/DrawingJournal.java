@@ -0,0 +1,656 @@
+package ninth;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+/**
+ * .dat ファイルの隣に置く追記専用のジャーナル（X.dat に対して X.dat.journal）
+ * 確定した編集（追加・消去・移動・リサイズ・属性変更・全消去、およびその取り消し・やり直し）を
+ * その場でレコードとして追記し、次に開いたときに .dat の内容へ順に適用し直す。
+ * 自動保存の手間は図形全体ではなく、編集1件の大きさに比例する。
+ *
+ * ファイルの構成（数値はビッグエンディアン）
+ * <pre>
+ *   "DSJL"            マジック（4バイト）
+ *   u16 version       形式のバージョン（現在は1）
+ *   u16 reserved      予約（0）
+ *   i64 base          適用先の .dat のチェックサム（DrawingFile.checksum）
+ *   レコード × n      i32 長さ, i32 CRC-32C, 本体（長さ分）
+ * </pre>
+ * レコードの本体は種類(u8)の後に、
+ * - OP_APPLY / OP_REVERT: 編集を Java のシリアライズで書いたもの（History と同じく Edit をそのまま保存する）
+ * - OP_CHECKPOINT: i64 チェックサム, i64 そのチェックポイント以降の編集が始まるファイル上の位置
+ * - OP_SNAPSHOT: その時点の図形全体を .dat と同じ形式で書いたもの（この後の編集はこれに適用し直す）
+ *
+ * 追記はメモリ上にためておき、裏のスレッドが FLUSH_INTERVAL_MS ごとにまとめて書き出して fsync する。
+ * 異常終了したときに失われるのは、最後にまとめて書き出した後の編集だけになる。
+ * 長さ・CRC が合わないレコードがあれば、そこから後ろは書きかけとみなして捨てる。
+ * 書き込み・fsync・シリアライズに失敗したら、その例外を控えて setFailureListener の通知先を呼び、
+ * takeFailure で1度だけ返す（裏のスレッドで起きるので、表示は通知先からイベントスレッドで行う）。
+ *
+ * 保存するときは、その時点の図形で .dat を書き直し（チェックポイント）、
+ * それ以降の編集だけを残した新しいジャーナルに置き換える。書き直した .dat で置き換える直前に
+ * 古いジャーナルへ OP_CHECKPOINT を書いておくので、どの時点で止まっても
+ * 「.dat のチェックサムと一致するヘッダ、または OP_CHECKPOINT」から続きを適用できる。
+ *
+ * ジャーナルが大きくなったら（compact）、.dat は書き換えずに、その時点の図形を OP_SNAPSHOT として先頭に置き、
+ * それ以降の編集だけを残した新しいジャーナルに置き換える。.dat は利用者が保存するまで、最後に保存した内容のまま残る。
+ *
+ * 開くときに編集を適用し直すかどうかは、呼び出し側が利用者に確かめる（やめるなら discard してから attach する）。
+ */
+public class DrawingJournal implements Closeable {
+    // ファイル先頭のマジック "DSJL"
+    static final int MAGIC = 0x44534a4c;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    // レコードの長さ・CRCの大きさ
+    private static final int RECORD_HEADER = 8;
+    // 1件のレコードの大きさの上限（これを超える長さは壊れているとみなす）
+    private static final int MAX_RECORD = 256 << 20;
+
+    // レコードの種類
+    static final int OP_APPLY = 1;       // 編集を適用した（新しい編集、またはやり直し）
+    static final int OP_REVERT = 2;      // 編集を取り消した
+    static final int OP_CHECKPOINT = 3;  // .dat をこの時点の内容で書き直した
+    static final int OP_SNAPSHOT = 4;    // この時点の図形全体（これより前の編集は使わない）
+
+    // まとめて書き出す間隔（ミリ秒）
+    public static final long FLUSH_INTERVAL_MS = 500;
+    // スナップショットより後の編集がこの大きさを超えたら圧縮する
+    public static final long COMPACT_BYTES = 16L << 20;
+    // ジャーナルのファイル名の末尾
+    public static final String SUFFIX = ".journal";
+
+    /** ジャーナルから読み出した、適用し直す編集1件 */
+    private static final class Op {
+        final boolean revert;
+        final Edit edit;
+        // レコードのファイル上の位置
+        final long pos;
+
+        Op(boolean revert, Edit edit, long pos) {
+            this.revert = revert;
+            this.edit = edit;
+            this.pos = pos;
+        }
+    }
+
+    /** 開いた .dat に対応するジャーナルの内容（recover で読み、attach で引き継ぐ） */
+    public static final class Recovery {
+        private final Path dat;
+        private final long checksum;
+        private final ArrayList<Op> ops = new ArrayList<>();
+        // 編集を適用し直す前の図形（スナップショットがなければnull。.dat の内容に適用する）
+        private ArrayList<Figure> snapshot = null;
+        // スナップショットのレコードの終わりのファイル上の位置（なければ0）
+        private long snapshotEnd = 0;
+        // ヘッダのチェックサムが .dat と一致したか（一致すればファイルをそのまま使い続ける）
+        private boolean headerMatched = false;
+        // 適用し直す編集のファイル上の範囲
+        private long from = HEADER_SIZE, end = HEADER_SIZE;
+
+        private Recovery(Path dat, long checksum) {
+            this.dat = dat.toAbsolutePath().normalize();
+            this.checksum = checksum;
+        }
+
+        /** 適用し直す編集の件数 */
+        public int size() { return ops.size(); }
+
+        /** 保存していない編集がないか（あれば、適用し直すかを利用者に確かめる） */
+        public boolean isEmpty() { return ops.isEmpty() && snapshot == null; }
+
+        /**
+         * 編集を適用し直す前の図形（ジャーナルを圧縮した時点の図形）
+         * @return 描画順の図形リスト。なければnull（読み込んだ .dat の内容に適用する）
+         */
+        public ArrayList<Figure> snapshot() { return snapshot; }
+
+        /** 保存していない編集を捨てる（この後 attach すると、ジャーナルは空になる） */
+        public void discard() {
+            ops.clear();
+            snapshot = null;
+            snapshotEnd = 0;
+            from = end = HEADER_SIZE;
+        }
+
+        /**
+         * 編集をキャンバスに順に適用し直す（ジャーナルには書き足さない）
+         * 途中で合わなくなったら、その編集から後ろはジャーナルから捨てる（attach で切り詰める）。
+         * 残しておくと、この後の編集がその後ろに追記され、次に開いたときも同じ所で止まって失われるため。
+         * @param canvas 対象のキャンバス（.dat の内容、または snapshot を読み込んだ直後のもの）
+         * @return 適用できた件数
+         */
+        public int replay(PaintCanvas canvas) {
+            int n = 0;
+            for (Op op : ops) {
+                try {
+                    if (op.revert) op.edit.undo(canvas); else op.edit.redo(canvas);
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                    end = op.pos;
+                    break;
+                }
+                n++;
+            }
+            return n;
+        }
+    }
+
+    // 追記先（ファイルに結び付いていなければnull）
+    private Path dat = null;
+    private FileChannel ch = null;
+    // 書き出し前のレコード
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    // これまでに追記したバイト数（ファイルを作り直しても通しで数える）と、今のファイルの先頭レコードの通し位置
+    private long appended = 0, fileBase = 0;
+    // 今のファイルのうち、スナップショットのレコードまでのバイト数（圧縮の要否には数えない）
+    private long snapshotBytes = 0;
+    // 今のファイルで圧縮に失敗したか（別のファイルに結び付けるまで圧縮しない）
+    private boolean compactionFailed = false;
+    // チェックポイントを作っている途中か（ファイルがなくても、その間の編集はためておく）
+    private boolean checkpointing = false;
+    // チェックポイントを始めたときの追記先（書いている間に開き直されたかを見分ける）
+    private FileChannel checkpointFrom = null;
+    private boolean closed = false;
+    // まだ知らせていない失敗と、今のファイルで失敗を知らせ済みか（同じファイルで何度も知らせない）
+    private IOException failure = null;
+    private boolean failureReported = false;
+    // 失敗を控えたときに呼ぶ通知先（どのスレッドからでも呼ばれる。null可）
+    private volatile Runnable failureListener = null;
+
+    // ファイル操作の排他（追記は this で排他し、fsync の間も編集を止めない）
+    private final Object ioLock = new Object();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "DrawingJournal");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public DrawingJournal() {
+        flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // 終了するときに、ためているレコードを書き出しておく
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushQuietly, "DrawingJournal-exit"));
+    }
+
+    /**
+     * .dat ファイルに対応するジャーナルのパス
+     * @param dat .dat ファイル
+     */
+    public static Path journalOf(Path dat) {
+        return dat.resolveSibling(dat.getFileName().toString() + SUFFIX);
+    }
+
+    // ---- 読み込み ----
+
+    /**
+     * 開いた .dat に対応するジャーナルを読み、続きの編集を取り出す
+     * ジャーナルがない、またはこの .dat のものでなければ編集は空になる。
+     * @param dat 開いた .dat ファイル
+     * @param checksum .dat のチェックサム（DrawingFile.checksum）
+     * @return 読み出した内容
+     * @throws IOException ジャーナルを読めなかったとき
+     */
+    public static Recovery recover(Path dat, long checksum) throws IOException {
+        Recovery r = new Recovery(dat, checksum);
+        Path path = journalOf(r.dat);
+        if (!Files.exists(path)) return r;
+
+        // 壊れていないレコードを順に読む（編集とスナップショットは本体を、OP_CHECKPOINT は位置だけ控える）
+        // マップはしない（残っていると、Windows ではこの後ジャーナルを置き換えられないため）
+        LinkedHashMap<Long, byte[]> edits = new LinkedHashMap<>();  // 位置 → 本体
+        byte[] snapshot = null;
+        long snapshotPos = -1;
+        long from;
+        long pos = HEADER_SIZE;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch), 64 << 10))) {
+            long size = ch.size();
+            if (size < HEADER_SIZE) return r;
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != VERSION) return r;
+            in.readUnsignedShort();
+            r.headerMatched = (in.readLong() == checksum);
+            from = r.headerMatched ? HEADER_SIZE : -1;
+            while (pos + RECORD_HEADER <= size) {
+                int len = in.readInt();
+                int sum = in.readInt();
+                if (len <= 0 || len > MAX_RECORD || len > size - pos - RECORD_HEADER) break;
+                byte[] body = new byte[len];
+                in.readFully(body);
+                CRC32C crc = new CRC32C();
+                crc.update(body);
+                if ((int) crc.getValue() != sum) break;
+                int op = body[0] & 0xff;
+                if (op == OP_APPLY || op == OP_REVERT) {
+                    edits.put(pos, body);
+                } else if (op == OP_SNAPSHOT) {
+                    snapshot = body;
+                    snapshotPos = pos;
+                } else if (!r.headerMatched && op == OP_CHECKPOINT && len >= 17 && ByteBuffer.wrap(body).getLong(1) == checksum) {
+                    // この .dat を書き直した直後に止まったときの区切り（そこから後の編集だけを適用し直す）
+                    from = ByteBuffer.wrap(body).getLong(9);
+                }
+                pos += RECORD_HEADER + len;
+            }
+        }
+        if (from < 0) return r;  // この .dat のジャーナルではない
+
+        r.from = from;
+        r.end = pos;
+        long start = from;
+        if (snapshot != null && snapshotPos >= from) {
+            // スナップショットがあれば、それに続きの編集だけを適用し直す
+            try (IndexedDrawing d = IndexedDrawing.of(ByteBuffer.wrap(snapshot, 1, snapshot.length - 1))) {
+                if (d == null) throw new IOException("スナップショットの形式が正しくありません");
+                r.snapshot = d.decodeAll(null, null);
+                r.snapshotEnd = snapshotPos + RECORD_HEADER + snapshot.length;
+                start = snapshotPos;
+            } catch (IOException e) {
+                // 読めなければ、その手前までの編集だけを .dat に適用し直す
+                e.printStackTrace();
+                r.end = snapshotPos;
+            }
+        }
+        for (Map.Entry<Long, byte[]> rec : edits.entrySet()) {
+            long at = rec.getKey();
+            byte[] body = rec.getValue();
+            if (at < start) continue;
+            if (at >= r.end) break;
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(body, 1, body.length - 1))) {
+                r.ops.add(new Op(body[0] == OP_REVERT, (Edit) ois.readObject(), at));
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                // 読めない編集より後ろは適用できないので、書きかけと同じく捨てる
+                e.printStackTrace();
+                r.end = at;
+                break;
+            }
+        }
+        return r;
+    }
+
+    // ---- 追記 ----
+
+    /**
+     * 読み込んだ .dat のジャーナルに追記を始める
+     * 読み込んだジャーナルに続けて書き、この .dat のものでなければ作り直す。
+     * replay が途中で止まっていれば、適用できた編集の後ろで切り詰める。
+     * @param r recover で読み出し、replay で適用し直した内容
+     * @throws IOException ジャーナルを作れなかったとき（追記はしない）
+     */
+    public void attach(Recovery r) throws IOException {
+        synchronized (ioLock) {
+            detachLocked();
+            Path path = journalOf(r.dat);
+            if (r.headerMatched) {
+                // そのまま続きに書く（壊れた末尾は切り詰める）
+                FileChannel c = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                c.truncate(r.end);
+                c.position(r.end);
+                c.force(false);
+                setFile(r.dat, c, r.end, Math.max(0, r.snapshotEnd - HEADER_SIZE));
+            } else {
+                // 区切りから後ろだけを写して作り直す
+                byte[] tail = new byte[0];
+                if (r.end > r.from) {
+                    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                        tail = readRange(in, r.from, r.end);
+                    }
+                }
+                setFile(r.dat, rewrite(path, r.checksum, tail), HEADER_SIZE + tail.length, Math.max(0, r.snapshotEnd - r.from));
+            }
+        }
+    }
+
+    /** ファイルへの追記をやめる（ためているレコードは書き出す） */
+    public void detach() {
+        synchronized (ioLock) {
+            detachLocked();
+        }
+    }
+
+    /** 追記先の .dat（ファイルに結び付いていなければnull） */
+    public Path getPath() {
+        synchronized (ioLock) {
+            return dat;
+        }
+    }
+
+    /**
+     * 編集を適用した（新しい編集、またはやり直し）ことを記録する
+     * @param e 適用した編集
+     */
+    public void applied(Edit e) { append(OP_APPLY, e); }
+
+    /**
+     * 編集を取り消したことを記録する
+     * @param e 取り消した編集
+     */
+    public void reverted(Edit e) { append(OP_REVERT, e); }
+
+    /** 圧縮（compact）した方がよい大きさになったか */
+    public synchronized boolean needsCompaction() {
+        return ch != null && !checkpointing && !compactionFailed && appended - fileBase - snapshotBytes > COMPACT_BYTES;
+    }
+
+    private void append(int op, Edit e) {
+        synchronized (this) {
+            if (closed || (ch == null && !checkpointing)) return;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(op);
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(e);
+        } catch (IOException ex) {
+            fail(ex);
+            return;
+        }
+        byte[] record = frame(bos.toByteArray());
+        synchronized (this) {
+            pending.write(record, 0, record.length);
+            appended += record.length;
+        }
+    }
+
+    /** 本体に長さと CRC を付ける */
+    private static byte[] frame(byte[] body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER + body.length);
+        b.putInt(body.length).putInt((int) crc.getValue()).put(body);
+        return b.array();
+    }
+
+    /**
+     * ためているレコードを書き出して fsync する
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void flush() throws IOException {
+        synchronized (ioLock) {
+            flushLocked();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    /**
+     * まだ知らせていない書き込みの失敗を取り出す（同じファイルでの失敗は、最初の1度だけ返す）
+     * @return 失敗の例外（なければnull）
+     */
+    public synchronized IOException takeFailure() {
+        IOException ex = failure;
+        failure = null;
+        if (ex != null) failureReported = true;
+        return ex;
+    }
+
+    /**
+     * 書き込みに失敗したときの通知先を設定する
+     * @param listener 失敗を控えたときに呼ぶ処理（裏のスレッドから呼ばれる。null可）
+     */
+    public void setFailureListener(Runnable listener) {
+        failureListener = listener;
+    }
+
+    /** 失敗を控えて通知する（知らせるまでは最初の失敗を残す） */
+    private void fail(IOException ex) {
+        ex.printStackTrace();
+        synchronized (this) {
+            if (failure != null || failureReported) return;
+            failure = ex;
+        }
+        Runnable l = failureListener;
+        if (l != null) l.run();
+    }
+
+    private void flushLocked() throws IOException {
+        byte[] batch;
+        synchronized (this) {
+            // ファイルがないときはチェックポイントの完了までためておく
+            if (ch == null || pending.size() == 0) return;
+            batch = pending.toByteArray();
+            pending.reset();
+        }
+        ByteBuffer b = ByteBuffer.wrap(batch);
+        while (b.hasRemaining()) ch.write(b);
+        ch.force(false);
+    }
+
+    // ---- チェックポイント ----
+
+    /**
+     * チェックポイントを始める（図形のスナップショットを取るのと同時にイベントスレッドで呼ぶ）
+     * @return この時点までの編集の通し位置（checkpoint に渡す）
+     */
+    public synchronized long beginCheckpoint() {
+        checkpointing = true;
+        checkpointFrom = ch;
+        if (ch == null) {
+            // ファイルがなければ、ここから後の編集だけをためておく
+            pending.reset();
+            appended = fileBase = 0;
+        }
+        return appended;
+    }
+
+    /**
+     * スナップショットで .dat を書き直し、ジャーナルをそれ以降の編集だけに置き換える
+     * 保存先が今のファイルと違えば、以後は保存先のジャーナルに追記する。
+     * 失敗したときは今のジャーナルに追記し続ける。
+     * 書いている間に別のファイルに結び付け直した（attach・detach した）ときは、.dat だけを書き、
+     * ジャーナルはそのまま残す（置き換えると、開き直したファイルの保存していない編集を消してしまう）。
+     * @param target 保存先の .dat
+     * @param snapshot beginCheckpoint の時点の図形
+     * @param progress 進み具合の通知先（null可）
+     * @param boundary beginCheckpoint が返した位置
+     * @throws IOException 保存に失敗したとき
+     */
+    public void checkpoint(Path target, List<Figure> snapshot, DrawingFile.Progress progress, long boundary) throws IOException {
+        target = target.toAbsolutePath().normalize();
+        Path dest = target;
+        try {
+            long checksum = DrawingFile.write(target, snapshot, progress, sum -> {
+                synchronized (ioLock) {
+                    // 置き換える前に、今のジャーナルに区切りを書いておく
+                    if (ch == null || ch != checkpointFrom || !dest.equals(dat)) return;
+                    flushLocked();
+                    ByteBuffer body = ByteBuffer.allocate(17);
+                    body.put((byte) OP_CHECKPOINT).putLong(sum).putLong(HEADER_SIZE + boundary - fileBase);
+                    ByteBuffer b = ByteBuffer.wrap(frame(body.array()));
+                    synchronized (this) { appended += b.remaining(); }
+                    while (b.hasRemaining()) ch.write(b);
+                    ch.force(false);
+                }
+            });
+            synchronized (ioLock) {
+                if (ch != checkpointFrom) return;
+                // 区切りより後の編集を写して、新しいジャーナルにする
+                flushLocked();
+                byte[] tail;
+                long base;
+                synchronized (this) {
+                    base = fileBase;
+                    tail = (ch == null) ? pending.toByteArray() : new byte[0];
+                    pending.reset();
+                }
+                if (ch != null) tail = readRange(ch, HEADER_SIZE + boundary - base, ch.size());
+                Path oldDat = dat;
+                FileChannel c = rewrite(journalOf(target), checksum, tail);
+                closeChannel();
+                if (oldDat != null && !oldDat.equals(target)) Files.deleteIfExists(journalOf(oldDat));
+                setFile(target, c, HEADER_SIZE + tail.length, 0);
+            }
+        } finally {
+            synchronized (this) {
+                checkpointing = false;
+                checkpointFrom = null;
+            }
+        }
+    }
+
+    /**
+     * beginCheckpoint の時点の図形をスナップショットとして先頭に置いた新しいジャーナルに置き換え、
+     * それより前の編集を捨てる（.dat は書き換えない）
+     * 書いている間に別のファイルに結び付け直したときは何もしない。
+     * 失敗したときは今のジャーナルに追記し続け、別のファイルに結び付けるまで圧縮しない。
+     * @param snapshot beginCheckpoint の時点の図形
+     * @param boundary beginCheckpoint が返した位置
+     * @throws IOException 書き込みに失敗したとき、またはスナップショットが大きすぎるとき
+     */
+    public void compact(List<Figure> snapshot, long boundary) throws IOException {
+        Path tmp = null;
+        FileChannel out = null;
+        boolean done = false;
+        try {
+            Path path;
+            long checksum;
+            synchronized (ioLock) {
+                if (ch == null || ch != checkpointFrom) return;
+                path = journalOf(dat);
+                checksum = ByteBuffer.wrap(readRange(ch, 8, HEADER_SIZE)).getLong();
+            }
+            tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            out = FileChannel.open(tmp, StandardOpenOption.WRITE);
+
+            // ヘッダとスナップショットのレコード（長さと CRC は書き終わってから埋める）
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + RECORD_HEADER + 1);
+            head.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0).putLong(checksum)
+                .putInt(0).putInt(0).put((byte) OP_SNAPSHOT);
+            head.flip();
+            while (head.hasRemaining()) out.write(head);
+            CRC32C crc = new CRC32C();
+            crc.update(OP_SNAPSHOT);
+            long len = 1 + DrawingFile.write(out, crc, snapshot);
+            if (len > MAX_RECORD) throw new IOException("スナップショットが大きすぎます");
+            ByteBuffer rh = ByteBuffer.allocate(RECORD_HEADER);
+            rh.putInt((int) len).putInt((int) crc.getValue());
+            rh.flip();
+            while (rh.hasRemaining()) out.write(rh, HEADER_SIZE + rh.position());
+
+            synchronized (ioLock) {
+                if (ch != checkpointFrom) return;
+                // 区切りより後の編集を写して、新しいジャーナルにする
+                flushLocked();
+                long base;
+                synchronized (this) { base = fileBase; }
+                ByteBuffer tail = ByteBuffer.wrap(readRange(ch, HEADER_SIZE + boundary - base, ch.size()));
+                while (tail.hasRemaining()) out.write(tail);
+                long size = out.size();
+                out.force(false);
+                out.close();
+                replace(tmp, path);
+                done = true;
+                closeChannel();
+                FileChannel c = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                c.position(size);
+                setFile(dat, c, size, RECORD_HEADER + len);
+            }
+        } catch (IOException e) {
+            synchronized (this) { compactionFailed = true; }
+            throw e;
+        } finally {
+            if (out != null) out.close();
+            if (!done && tmp != null) Files.deleteIfExists(tmp);
+            synchronized (this) {
+                checkpointing = false;
+                checkpointFrom = null;
+            }
+        }
+    }
+
+    // ---- 内部処理 ----
+
+    /** ヘッダと tail だけのジャーナルを一時ファイルに書いてから置き換え、追記用に開く */
+    private static FileChannel rewrite(Path path, long checksum, byte[] tail) throws IOException {
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        boolean done = false;
+        try {
+            try (FileChannel c = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE + tail.length);
+                b.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0).putLong(checksum).put(tail);
+                b.flip();
+                while (b.hasRemaining()) c.write(b);
+                c.force(false);
+            }
+            replace(tmp, path);
+            done = true;
+        } finally {
+            if (!done) Files.deleteIfExists(tmp);
+        }
+        FileChannel c = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        c.position(c.size());
+        return c;
+    }
+
+    /** 一時ファイルで置き換える */
+    private static void replace(Path tmp, Path path) throws IOException {
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 追記先を切り替える（ioLock を持って呼ぶ）
+     * ファイルにあるレコードは、まだ書き出していないレコードの直前までの通し位置に対応させる
+     */
+    private void setFile(Path dat, FileChannel c, long size, long snapshotBytes) {
+        synchronized (this) {
+            this.dat = dat;
+            this.ch = c;
+            this.fileBase = appended - pending.size() - (size - HEADER_SIZE);
+            this.snapshotBytes = snapshotBytes;
+            this.compactionFailed = false;
+            this.failureReported = false;
+        }
+    }
+
+    private void detachLocked() {
+        try {
+            flushLocked();
+        } catch (IOException ex) {
+            fail(ex);
+        }
+        closeChannel();
+        synchronized (this) { dat = null; }
+    }
+
+    private void closeChannel() {
+        FileChannel c;
+        synchronized (this) {
+            c = ch;
+            ch = null;
+        }
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    private static byte[] readRange(FileChannel c, long from, long to) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate((int) Math.max(0, to - from));
+        while (b.hasRemaining() && c.read(b, from + b.position()) >= 0) {}
+        return b.array();
+    }
+
+    @Override
+    public void close() {
+        detach();
+        synchronized (this) { closed = true; }
+        flusher.shutdown();
+    }
+}
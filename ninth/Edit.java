@@ -0,0 +1,30 @@
+package ninth;
+
+import java.io.Serializable;
+
+/**
+ * Undo/Redo の履歴に積む1回分の編集
+ * キャンバス全体を保存するのではなく、元に戻す・やり直すのに必要な差分だけを持つ
+ *
+ * 図形は objList の位置（番号）で指定する。図形そのものへの参照ではないので、
+ * 複製・保存した編集を後から適用しても同じ位置の図形に作用する。
+ */
+public interface Edit extends Serializable {
+    /**
+     * 編集を取り消す（キャンバスは編集直後の状態であること）
+     * @param canvas 対象のキャンバス
+     */
+    void undo(PaintCanvas canvas);
+
+    /**
+     * 編集をやり直す（キャンバスは編集直前の状態であること）
+     * @param canvas 対象のキャンバス
+     */
+    void redo(PaintCanvas canvas);
+
+    /**
+     * この編集がメモリ上で占めるおおよそのバイト数（履歴の容量管理に使う）
+     * @return 推定バイト数
+     */
+    long sizeBytes();
+}
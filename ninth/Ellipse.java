@@ -9,13 +9,13 @@ import java.awt.geom.*;
  * 負のw, hにも対応するため、Rectと同様の正規化処理を行う
  */
 public class Ellipse extends Figure {
-    Ellipse2D f;  // 描画用の楕円オブジェクト
+    private static final long serialVersionUID = -6926761457108018381L;
 
     /**
-     * 楕円を描画
+     * 楕円の形状を作成
      * w, hを正規化してから楕円を作成
      */
-    @Override public void paint(Graphics2D g) {
+    @Override protected Shape createShape() {
         // 座標を正規化（w, hが負の場合に対応）
         double left = x, top = y;
         double width = w, height = h;
@@ -23,10 +23,18 @@ public class Ellipse extends Figure {
         if (h < 0) { top = y + h; height = -h; }   // 上方向ドラッグ対応
         
         // 正規化された座標とサイズで楕円を作成
-        f = new Ellipse2D.Double(left, top, width, height);
+        return new Ellipse2D.Double(left, top, width, height);
+    }
+
+    /**
+     * 楕円を描画
+     * キャッシュ済みの楕円を描く
+     */
+    @Override public void paint(Graphics2D g) {
+        Shape f = getShape();
         
         // 線のスタイルを設定
-        g.setStroke(new BasicStroke((float)strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.setStroke(getStroke());
         g.setPaint(color);  // 描画色を設定
         
         // 塗りつぶしまたは枠線描画
@@ -67,11 +75,11 @@ public class Ellipse extends Figure {
     }
 
     /**
-     * 外接矩形を取得
+     * 外接矩形を計算
      * @return 楕円を囲む矩形
      */
     @Override
-    public java.awt.geom.Rectangle2D getBounds2D() {
+    protected java.awt.geom.Rectangle2D computeBounds() {
         // 座標を正規化
         double left = x, top = y;
         double width = w, height = h;
@@ -0,0 +1,202 @@
+package ninth;
+
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.util.*;
+
+/**
+ * 消しゴムの軌跡を一様グリッドに登録した索引
+ * 軌跡はマウスの位置（サンプル）を順に結んだ線分を半径 radius だけ太らせた形（カプセルの列）とみなす。
+ * サンプルの間も消えるので、マウスを速く動かしても消し残しが出ない。
+ *
+ * 各線分は、カプセルがかかるセルすべてに登録する。
+ * そのため点が消えるかどうかは、点のあるセル1つに登録された線分だけを調べれば分かる。
+ * サンプルは add で1つずつ足していける（ドラッグ中に育てていく使い方もできる）。
+ */
+public class EraserTrail {
+    // セルの一辺の最小値（ピクセル）
+    private static final double MIN_CELL_SIZE = 16.0;
+    // サンプルの間で図形の当たり判定を調べる間隔（ピクセル）
+    private static final double HIT_STEP = 1.0;
+
+    /** 1つのセルに登録された線分の番号 */
+    private static final class Bucket {
+        int[] segs = new int[4];
+        int n = 0;
+
+        void add(int s) {
+            // 同じ線分を続けて登録しない（長い線分を分けて登録するときの重複）
+            if (n > 0 && segs[n - 1] == s) return;
+            if (n == segs.length) segs = Arrays.copyOf(segs, n * 2);
+            segs[n++] = s;
+        }
+    }
+
+    private final double radius, cellSize;
+    // サンプルの座標（線分 k はサンプル k から k+1 まで。サンプルが1つのときは点）
+    private final PointBuffer samples = new PointBuffer();
+    // セル座標 → そのセルにかかる線分
+    private final HashMap<Long, Bucket> cells = new HashMap<>();
+    // 軌跡全体の範囲（半径の分を含む）
+    private double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
+    private double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+    // 問い合わせ中の重複除去用（線分ごとの印）
+    private int[] marks = new int[16];
+    private int stamp = 0;
+
+    /**
+     * @param radius 消しゴムの半径
+     */
+    public EraserTrail(double radius) {
+        this.radius = radius;
+        this.cellSize = Math.max(MIN_CELL_SIZE, radius * 2);
+    }
+
+    /** サンプルの数 */
+    public int size() { return samples.size(); }
+
+    /**
+     * サンプルを足し、直前のサンプルからの線分を登録する
+     * @param x x座標
+     * @param y y座標
+     */
+    public void add(double x, double y) {
+        samples.add(x, y);
+        int n = samples.size();
+        int seg = Math.max(0, n - 2);
+        double x0 = samples.getX(seg), y0 = samples.getY(seg);
+        minx = Math.min(minx, x - radius); miny = Math.min(miny, y - radius);
+        maxx = Math.max(maxx, x + radius); maxy = Math.max(maxy, y + radius);
+
+        // 長い線分はセルの大きさごとに区切り、区切りごとのカプセルの外接矩形にかかるセルへ登録する
+        double len = Math.hypot(x - x0, y - y0);
+        int pieces = Math.max(1, (int) Math.ceil(len / cellSize));
+        for (int i = 0; i < pieces; i++) {
+            double ax = x0 + (x - x0) * i / pieces, ay = y0 + (y - y0) * i / pieces;
+            double bx = x0 + (x - x0) * (i + 1) / pieces, by = y0 + (y - y0) * (i + 1) / pieces;
+            int cx0 = cellOf(Math.min(ax, bx) - radius), cy0 = cellOf(Math.min(ay, by) - radius);
+            int cx1 = cellOf(Math.max(ax, bx) + radius), cy1 = cellOf(Math.max(ay, by) + radius);
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    cells.computeIfAbsent(key(cx, cy), k -> new Bucket()).add(seg);
+                }
+            }
+        }
+    }
+
+    /**
+     * 軌跡全体の範囲（半径の分を含む）
+     * @return 範囲（サンプルがなければnull）
+     */
+    public Rectangle2D getBounds() {
+        if (samples.isEmpty()) return null;
+        return new Rectangle2D.Double(minx, miny, maxx - minx, maxy - miny);
+    }
+
+    /**
+     * 点(px, py)が軌跡のどこかから半径以内にあるか（点のあるセルの線分だけを調べる）
+     * @param px x座標
+     * @param py y座標
+     * @return 消えるならtrue
+     */
+    public boolean covers(double px, double py) {
+        if (px < minx || px > maxx || py < miny || py > maxy) return false;
+        Bucket b = cells.get(key(cellOf(px), cellOf(py)));
+        if (b == null) return false;
+        double r2 = radius * radius;
+        for (int i = 0; i < b.n; i++) {
+            int s = b.segs[i];
+            int t = Math.min(s + 1, samples.size() - 1);
+            if (Line2D.ptSegDistSq(samples.getX(s), samples.getY(s), samples.getX(t), samples.getY(t), px, py) <= r2) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 軌跡が図形に触れるか
+     * サンプルは図形の当たり判定か外接矩形に入れば触れたとみなし、
+     * サンプルの間の線分は、図形の当たり判定を通るときだけ触れたとみなす。
+     * 外接矩形の近くにある線分だけを調べる
+     * @param f 調べる図形
+     * @return 触れるならtrue
+     */
+    public boolean touches(Figure f) {
+        Rectangle2D bb = f.getBounds2D();
+        if (bb == null || samples.isEmpty()) return false;
+        // 当たり判定は外接矩形より少し外まで広がることがある（線の判定幅は最低2.0）
+        double slop = Math.max(2.0, f.strokeWidth / 2.0) + 1.0;
+        double x0 = bb.getMinX() - slop, y0 = bb.getMinY() - slop, x1 = bb.getMaxX() + slop, y1 = bb.getMaxY() + slop;
+        if (x1 < minx || x0 > maxx || y1 < miny || y0 > maxy) return false;
+
+        int segCount = Math.max(1, samples.size() - 1);
+        int cx0 = cellOf(x0), cy0 = cellOf(y0), cx1 = cellOf(x1), cy1 = cellOf(y1);
+        long cellCount = (long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1);
+        if (cellCount > segCount) {
+            // 図形が大きいときはセルを回るより全線分を調べた方が速い
+            for (int s = 0; s < segCount; s++) if (touches(f, bb, slop, s)) return true;
+            return false;
+        }
+        if (++stamp == 0) { Arrays.fill(marks, 0); stamp = 1; }
+        if (marks.length < segCount) marks = Arrays.copyOf(marks, Math.max(segCount, marks.length * 2));
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                Bucket b = cells.get(key(cx, cy));
+                if (b == null) continue;
+                for (int i = 0; i < b.n; i++) {
+                    int s = b.segs[i];
+                    if (marks[s] == stamp) continue;
+                    marks[s] = stamp;
+                    if (touches(f, bb, slop, s)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 線分 s が図形に触れるか
+     * 端のサンプルは、図形の当たり判定か外接矩形 bb に入れば触れたとみなす。
+     * 間は、bb を slop だけ広げた範囲にかかる部分を HIT_STEP ごとにたどり、図形の当たり判定に入るかを調べる
+     * （斜めの線の外接矩形の空いた所を横切っただけでは消さない）。
+     */
+    private boolean touches(Figure f, Rectangle2D bb, double slop, int s) {
+        int t = Math.min(s + 1, samples.size() - 1);
+        double ax = samples.getX(s), ay = samples.getY(s), bx = samples.getX(t), by = samples.getY(t);
+        if (f.contains(ax, ay) || bb.contains(ax, ay) || f.contains(bx, by) || bb.contains(bx, by)) return true;
+
+        // 線分 a + (b - a) * u のうち、広げた範囲に入る u の区間 [u0, u1]
+        double dx = bx - ax, dy = by - ay;
+        double u0 = 0, u1 = 1;
+        double x0 = bb.getMinX() - slop, x1 = bb.getMaxX() + slop, y0 = bb.getMinY() - slop, y1 = bb.getMaxY() + slop;
+        if (dx != 0) {
+            double ua = (x0 - ax) / dx, ub = (x1 - ax) / dx;
+            u0 = Math.max(u0, Math.min(ua, ub));
+            u1 = Math.min(u1, Math.max(ua, ub));
+        } else if (ax < x0 || ax > x1) {
+            return false;
+        }
+        if (dy != 0) {
+            double ua = (y0 - ay) / dy, ub = (y1 - ay) / dy;
+            u0 = Math.max(u0, Math.min(ua, ub));
+            u1 = Math.min(u1, Math.max(ua, ub));
+        } else if (ay < y0 || ay > y1) {
+            return false;
+        }
+        if (u0 > u1) return false;
+
+        int steps = Math.max(1, (int) Math.ceil(Math.hypot(dx, dy) * (u1 - u0) / HIT_STEP));
+        for (int i = 0; i <= steps; i++) {
+            double u = u0 + (u1 - u0) * i / steps;
+            if (f.contains(ax + dx * u, ay + dy * u)) return true;
+        }
+        return false;
+    }
+
+    private int cellOf(double v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) ^ (cy & 0xffffffffL);
+    }
+}
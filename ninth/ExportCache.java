@@ -0,0 +1,71 @@
+package ninth;
+
+/**
+ * 前回書き出した PNG 画像を、帯ごとの圧縮データとタイルの内容のハッシュ値として取っておくクラス
+ * 同じ大きさ・同じ拡大率で書き出し直すときに ExportRenderer が使い、
+ * 内容が変わったタイルだけを描き直し、変わったタイルを含む帯だけを圧縮し直す。
+ *
+ * タイルの内容は、かかる図形の Figure.fingerprint を描画順に混ぜたハッシュ値で見分ける。
+ * 図形全体の範囲が変わると拡大率や位置が変わるので、そのときはすべて描き直す。
+ * 取っておくのは圧縮後のデータなので、メモリの使用量は出力した PNG ファイルと同じくらいになる。
+ */
+public class ExportCache {
+    private int width, height, bandRows;
+    private double scale, tx, ty;
+    // 帯ごとの、タイルの列ごとのハッシュ値と、帯の圧縮データ（まだなければ null）
+    private long[][] fingerprints = new long[0][];
+    private PngBandWriter.Segment[] segments = new PngBandWriter.Segment[0];
+    // 前回の書き出しで描き直したタイル（帯の中の部分）の数
+    private int renderedTiles = 0;
+
+    /** 書き出す画像の大きさ・拡大率・帯の高さが前回と同じかどうか */
+    boolean matches(int width, int height, double scale, double tx, double ty, int bandRows) {
+        return this.width == width && this.height == height && this.bandRows == bandRows
+            && this.scale == scale && this.tx == tx && this.ty == ty;
+    }
+
+    /** 取っておいた内容を捨てて、新しい大きさ・拡大率で使い始める */
+    void reset(int width, int height, double scale, double tx, double ty, int bandRows) {
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.tx = tx;
+        this.ty = ty;
+        this.bandRows = bandRows;
+        int bands = (height + bandRows - 1) / bandRows;
+        fingerprints = new long[bands][];
+        segments = new PngBandWriter.Segment[bands];
+    }
+
+    /** 帯 band のタイルのハッシュ値（まだなければ null） */
+    long[] fingerprints(int band) { return fingerprints[band]; }
+
+    /** 帯 band の圧縮データ（まだなければ null） */
+    PngBandWriter.Segment segment(int band) { return segments[band]; }
+
+    /** 帯 band を圧縮し直した結果を取っておく */
+    void put(int band, long[] prints, PngBandWriter.Segment seg) {
+        fingerprints[band] = prints;
+        segments[band] = seg;
+    }
+
+    void setRenderedTiles(int n) { renderedTiles = n; }
+
+    /** 前回の書き出しで描き直したタイル（帯の中の部分）の数 */
+    public int getRenderedTiles() { return renderedTiles; }
+
+    /** 取っておいた内容をすべて捨てる（図形をまとめて読み込み直したときなど） */
+    public void clear() {
+        width = height = bandRows = 0;
+        fingerprints = new long[0][];
+        segments = new PngBandWriter.Segment[0];
+    }
+
+    /** 取っておいた圧縮データのおおよそのバイト数 */
+    public long sizeBytes() {
+        long n = 0;
+        for (PngBandWriter.Segment s : segments) if (s != null) n += s.size();
+        for (long[] p : fingerprints) if (p != null) n += p.length * 8L;
+        return n;
+    }
+}
@@ -0,0 +1,363 @@
+package ninth;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+
+/**
+ * 画像出力用に図形を描くクラス
+ * 出力画像を TILE_SIZE 四方のタイルに分け、タイルごとにかかる図形だけを描く。
+ * タイルどうしは独立しているので、ForkJoinPool で並列に描ける。
+ * PNG に書き出すときは帯状に描いて順に圧縮するので、出力画像の大きさによらずメモリの使用量は一定になる。
+ * ExportCache を渡すと、前回から内容の変わったタイルだけを描き直す。
+ *
+ * タイルの描画はタイルの位置だけ平行移動（整数）した座標系で行うので、
+ * 1枚の画像にまとめて描いたときと同じ画素になる。
+ *
+ * 図形の形状・外接矩形などのキャッシュは作成時（呼び出したスレッド）に作っておき、
+ * 描画中は図形を読むだけにする。描画が終わるまで図形を書き換えないこと。
+ */
+public class ExportRenderer {
+    // タイルの一辺（ピクセル）
+    public static final int TILE_SIZE = 512;
+    // PNG に書き出すときの帯1本の画素数の目安（幅がこれを超えるときは1行ずつ）
+    // 帯の高さは TILE_SIZE を割り切る2のべき乗にするので、1本の帯が2段のタイルにまたがることはない
+    public static final long BAND_PIXELS = 8L << 20;
+
+    private final int width, height;
+    // 図形の座標 → 出力画像の座標（scale 倍してから tx, ty だけずらす）
+    private final double scale, tx, ty;
+    // 描画順の図形
+    private final Figure[] figures;
+    private final int tilesX, tilesY;
+    // タイルごとの、かかる図形の番号（描画順）
+    private final int[][] tileFigures;
+
+    /**
+     * @param figures 描画順の図形（出力範囲にかからないものは含めなくてよい）
+     * @param width 出力画像の幅
+     * @param height 出力画像の高さ
+     * @param scale 拡大率
+     * @param tx 拡大した後の x 方向のずれ
+     * @param ty 拡大した後の y 方向のずれ
+     */
+    public ExportRenderer(List<Figure> figures, int width, int height, double scale, double tx, double ty) {
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.tx = tx;
+        this.ty = ty;
+        this.figures = figures.toArray(new Figure[0]);
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+        // 図形をかかるタイルに振り分ける（キャッシュもここで作っておく）
+        int[] counts = new int[tilesX * tilesY];
+        int[] range = new int[this.figures.length * 4];  // tx0, ty0, tx1, ty1（かからなければ tx0 > tx1）
+        for (int i = 0; i < this.figures.length; i++) {
+            Figure f = this.figures[i];
+            f.getShape(scale);  // この拡大率で描く形状（縮小するときは間引いた形状）
+            f.getStroke();
+            Rectangle2D bb = f.getBounds2D();
+            int r = i * 4;
+            range[r] = 1; range[r + 2] = 0;
+            if (bb == null) continue;
+            // 枠線は外接矩形から線幅の半分だけはみ出す（さらに丸め誤差の分を足す）
+            double pad = f.strokeWidth / 2.0 + 1.0;
+            double x0 = (bb.getMinX() - pad) * scale + tx, y0 = (bb.getMinY() - pad) * scale + ty;
+            double x1 = (bb.getMaxX() + pad) * scale + tx, y1 = (bb.getMaxY() + pad) * scale + ty;
+            if (x1 < 0 || y1 < 0 || x0 >= width || y0 >= height) continue;
+            range[r] = tileOf(x0, tilesX);
+            range[r + 1] = tileOf(y0, tilesY);
+            range[r + 2] = tileOf(x1, tilesX);
+            range[r + 3] = tileOf(y1, tilesY);
+            for (int y = range[r + 1]; y <= range[r + 3]; y++) {
+                for (int x = range[r]; x <= range[r + 2]; x++) counts[y * tilesX + x]++;
+            }
+        }
+        tileFigures = new int[tilesX * tilesY][];
+        for (int t = 0; t < counts.length; t++) tileFigures[t] = new int[counts[t]];
+        int[] fill = new int[counts.length];
+        for (int i = 0; i < this.figures.length; i++) {
+            int r = i * 4;
+            for (int y = range[r + 1]; y <= range[r + 3] && range[r] <= range[r + 2]; y++) {
+                for (int x = range[r]; x <= range[r + 2]; x++) {
+                    int t = y * tilesX + x;
+                    tileFigures[t][fill[t]++] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * 図形全体が収まるように拡大率と位置を決めて作る（図形がなければ空の範囲を中央に置く）
+     * @param all 描画順の図形
+     * @param index all を登録した空間インデックス（出力範囲にかかる図形を選ぶのに使う）
+     * @param width 出力画像の幅
+     * @param height 出力画像の高さ
+     * @param emptyWidth 図形がないときに収める範囲の幅
+     * @param emptyHeight 図形がないときに収める範囲の高さ
+     */
+    public static ExportRenderer fit(List<Figure> all, SpatialGrid index, int width, int height,
+                                     double emptyWidth, double emptyHeight) {
+        double[] t = fitTransform(all, width, height, emptyWidth, emptyHeight);
+        double scale = t[0], tx = t[1], ty = t[2];
+
+        // 出力画像に写る範囲（図形の座標系）にかかる図形だけを描く
+        Rectangle2D view = new Rectangle2D.Double(-tx / scale, -ty / scale, width / scale, height / scale);
+        return new ExportRenderer(index.figuresIn(view), width, height, scale, tx, ty);
+    }
+
+    /**
+     * 図形全体が width x height に収まる拡大率と位置を求める（SvgExporter でも使う）
+     * @return {拡大率, x 方向のずれ, y 方向のずれ}
+     */
+    static double[] fitTransform(List<Figure> all, int width, int height, double emptyWidth, double emptyHeight) {
+        double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY, maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+        for (Figure f : all) {
+            Rectangle2D bb = f.getBounds2D();
+            if (bb == null) continue;
+            if (bb.getX() < minx) minx = bb.getX();
+            if (bb.getY() < miny) miny = bb.getY();
+            if (bb.getX() + bb.getWidth() > maxx) maxx = bb.getX() + bb.getWidth();
+            if (bb.getY() + bb.getHeight() > maxy) maxy = bb.getY() + bb.getHeight();
+        }
+        double contentW = (minx == Double.POSITIVE_INFINITY) ? emptyWidth : (maxx - minx);
+        double contentH = (miny == Double.POSITIVE_INFINITY) ? emptyHeight : (maxy - miny);
+        if (contentW <= 0) contentW = Math.max(1, emptyWidth);
+        if (contentH <= 0) contentH = Math.max(1, emptyHeight);
+
+        double scale = Math.min(width / contentW, height / contentH);
+        double tx, ty;
+        if (minx != Double.POSITIVE_INFINITY) {
+            tx = -minx * scale + (width - contentW * scale) / 2.0;
+            ty = -miny * scale + (height - contentH * scale) / 2.0;
+        } else {
+            tx = (width - emptyWidth * scale) / 2.0;
+            ty = (height - emptyHeight * scale) / 2.0;
+        }
+        return new double[] {scale, tx, ty};
+    }
+
+    /** 出力画像の幅 */
+    public int getWidth() { return width; }
+
+    /** 出力画像の高さ */
+    public int getHeight() { return height; }
+
+    /**
+     * 出力画像の一部を image に描く（かかるタイルごとに分けて並列に描く）
+     * @param image 描き込む画像（左上が出力画像の (x0, y0) にあたる）
+     * @param x0 出力画像での左端
+     * @param y0 出力画像での上端
+     */
+    public void render(BufferedImage image, int x0, int y0) {
+        int w = Math.min(image.getWidth(), width - x0), h = Math.min(image.getHeight(), height - y0);
+        if (w <= 0 || h <= 0) return;
+        int cx0 = x0 / TILE_SIZE, cy0 = y0 / TILE_SIZE;
+        int cols = (x0 + w - 1) / TILE_SIZE - cx0 + 1, rows = (y0 + h - 1) / TILE_SIZE - cy0 + 1;
+        ForkJoinPool.commonPool().invoke(new Tiles(image, x0, y0, w, h, cx0, cy0, cols, 0, cols * rows));
+    }
+
+    /**
+     * PNG 画像として書き出す
+     * 上から帯状に描いては PngBandWriter に渡して捨てるので、画像全体をメモリに置かない
+     * （持つのは BAND_PIXELS 画素の帯2本分だけ。1本を圧縮している間に次の帯を描く）。
+     * @param file 出力先
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void writePng(File file) throws IOException {
+        writePng(file, null);
+    }
+
+    /**
+     * PNG 画像として書き出す（前回の結果を cache から使い回す）
+     * 帯ごとに、タイルの内容のハッシュ値が前回と同じなら圧縮データをそのまま書き、
+     * 違えば前回の帯を展開した上に変わったタイルだけを描き直して、その帯を圧縮し直す。
+     * @param file 出力先
+     * @param cache 前回の結果（null なら使わない。書き出した結果で更新する）
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void writePng(File file, ExportCache cache) throws IOException {
+        int rows = bandRows(width);
+        if (cache != null && !cache.matches(width, height, scale, tx, ty, rows)) cache.reset(width, height, scale, tx, ty, rows);
+        long[] prints = (cache != null) ? figureFingerprints() : null;
+        int rendered = 0;
+        BufferedImage[] bands = {
+            new BufferedImage(width, Math.min(rows, height), BufferedImage.TYPE_INT_ARGB),
+            new BufferedImage(width, Math.min(rows, height), BufferedImage.TYPE_INT_ARGB)
+        };
+        ExecutorService encoder = Executors.newSingleThreadExecutor();
+        try (PngBandWriter png = new PngBandWriter(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), width, height)) {
+            Future<?> encoding = null;
+            for (int y = 0, k = 0; y < height; y += rows, k++) {
+                BufferedImage band = bands[k & 1];
+                int h = Math.min(rows, height - y);
+                Callable<Void> task;
+                if (cache == null) {
+                    render(band, 0, y);
+                    rendered += tilesX;
+                    task = () -> { png.writeRows(band, h); return null; };
+                } else {
+                    int bandIndex = k;
+                    long[] now = tilePrints(prints, y / TILE_SIZE);
+                    long[] before = cache.fingerprints(k);
+                    PngBandWriter.Segment cached = cache.segment(k);
+                    if (cached != null && Arrays.equals(before, now)) {
+                        task = () -> { png.writeSegment(cached); return null; };
+                    } else {
+                        rendered += redraw(band, y, h, cached, before, now);
+                        task = () -> {
+                            PngBandWriter.Segment seg = png.encode(band, h);
+                            cache.put(bandIndex, now, seg);
+                            png.writeSegment(seg);
+                            return null;
+                        };
+                    }
+                }
+                // 前の帯の圧縮が終わるのを待ってから、この帯を渡す（前々回の帯の画像は次に描き直せる）
+                if (encoding != null) waitFor(encoding);
+                encoding = encoder.submit(task);
+            }
+            if (encoding != null) waitFor(encoding);
+        } finally {
+            encoder.shutdownNow();
+        }
+        if (cache != null) cache.setRenderedTiles(rendered);
+    }
+
+    /**
+     * 上端 y、高さ h の帯を band に用意する
+     * 前回の圧縮データがあれば展開し、ハッシュ値が変わったタイルの列だけを並列に描き直す
+     * @return 描いたタイルの数
+     */
+    private int redraw(BufferedImage band, int y, int h, PngBandWriter.Segment cached, long[] before, long[] now) throws IOException {
+        if (cached == null) {
+            render(band, 0, y);
+            return tilesX;
+        }
+        PngBandWriter.decode(cached, band, width);
+        int[] changed = IntStream.range(0, tilesX).filter(c -> before[c] != now[c]).toArray();
+        IntStream.of(changed).parallel().forEach(c -> {
+            int x = c * TILE_SIZE;
+            renderRegion(band.getSubimage(x, 0, Math.min(TILE_SIZE, width - x), h), x, y);
+        });
+        return changed.length;
+    }
+
+    /** 描画順の各図形の Figure.fingerprint */
+    private long[] figureFingerprints() {
+        long[] prints = new long[figures.length];
+        for (int i = 0; i < figures.length; i++) prints[i] = figures[i].fingerprint();
+        return prints;
+    }
+
+    /** タイルの段 row の、列ごとのハッシュ値（かかる図形のハッシュ値を描画順に混ぜる） */
+    private long[] tilePrints(long[] prints, int row) {
+        long[] h = new long[tilesX];
+        for (int col = 0; col < tilesX; col++) {
+            int[] list = tileFigures[row * tilesX + col];
+            long v = Figure.mix(0, list.length);
+            for (int i : list) v = Figure.mix(v, prints[i]);
+            h[col] = v;
+        }
+        return h;
+    }
+
+    /** 幅 width の画像を書き出すときの帯の高さ（TILE_SIZE 以下の2のべき乗） */
+    static int bandRows(int width) {
+        return Integer.highestOneBit((int) Math.max(1, Math.min(TILE_SIZE, BAND_PIXELS / width)));
+    }
+
+    private static void waitFor(Future<?> f) throws IOException {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("画像の出力を中断しました");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            if (c instanceof RuntimeException) throw (RuntimeException) c;
+            throw new IOException(c);
+        }
+    }
+
+    /**
+     * 出力画像の一部を dest に描く（呼び出したスレッドで描く）
+     * @param dest 描き込む画像（左上が出力画像の (x0, y0) にあたる）
+     * @param x0 出力画像での左端
+     * @param y0 出力画像での上端
+     */
+    public void renderRegion(BufferedImage dest, int x0, int y0) {
+        int w = Math.min(dest.getWidth(), width - x0), h = Math.min(dest.getHeight(), height - y0);
+        if (w <= 0 || h <= 0) return;
+        Graphics2D g = dest.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, h);
+            g.clipRect(0, 0, w, h);
+            g.translate(-x0, -y0);
+            g.translate(tx, ty);
+            g.scale(scale, scale);
+            int cx0 = x0 / TILE_SIZE, cy0 = y0 / TILE_SIZE;
+            int cx1 = (x0 + w - 1) / TILE_SIZE, cy1 = (y0 + h - 1) / TILE_SIZE;
+            if (cx0 == cx1 && cy0 == cy1) {
+                for (int i : tileFigures[cy0 * tilesX + cx0]) figures[i].paint(g);
+            } else {
+                // 複数のタイルにまたがるときは、かかる図形を描画順にまとめて1回ずつ描く
+                BitSet hit = new BitSet(figures.length);
+                for (int row = cy0; row <= cy1; row++) {
+                    for (int col = cx0; col <= cx1; col++) {
+                        for (int i : tileFigures[row * tilesX + col]) hit.set(i);
+                    }
+                }
+                for (int i = hit.nextSetBit(0); i >= 0; i = hit.nextSetBit(i + 1)) figures[i].paint(g);
+            }
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private int tileOf(double v, int tiles) {
+        return Math.max(0, Math.min(tiles - 1, (int) Math.floor(v / TILE_SIZE)));
+    }
+
+    /**
+     * 描く範囲にかかるタイル [from, to) を描くタスク（半分ずつに分けて並列に描く）
+     * タイルは範囲の左上のタイル (cx0, cy0) から横 cols 個ずつ数える
+     */
+    private final class Tiles extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient BufferedImage image;
+        private final int x0, y0, w, h, cx0, cy0, cols, from, to;
+
+        Tiles(BufferedImage image, int x0, int y0, int w, int h, int cx0, int cy0, int cols, int from, int to) {
+            this.image = image;
+            this.x0 = x0; this.y0 = y0; this.w = w; this.h = h;
+            this.cx0 = cx0; this.cy0 = cy0; this.cols = cols;
+            this.from = from; this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Tiles(image, x0, y0, w, h, cx0, cy0, cols, from, mid),
+                          new Tiles(image, x0, y0, w, h, cx0, cy0, cols, mid, to));
+                return;
+            }
+            // タイルと描く範囲の重なり（出力画像の座標）
+            int tx = (cx0 + from % cols) * TILE_SIZE, ty = (cy0 + from / cols) * TILE_SIZE;
+            int px0 = Math.max(tx, x0), py0 = Math.max(ty, y0);
+            int px1 = Math.min(tx + TILE_SIZE, x0 + w), py1 = Math.min(ty + TILE_SIZE, y0 + h);
+            // 部分画像は元の画像とラスタを共有するので、タイルごとに別の範囲へ書き込むだけになる
+            renderRegion(image.getSubimage(px0 - x0, py0 - y0, px1 - px0, py1 - py0), px0, py0);
+        }
+    }
+}
@@ -8,12 +8,23 @@ import java.io.*;
  * 座標管理(Coord)を継承し、図形の共通属性と描画インターフェースを定義
  * Serializable実装により、図形データの保存・読み込みが可能
  */
-public abstract class Figure extends Coord implements Serializable {
+public abstract class Figure extends Coord implements Serializable, Cloneable {
+    // 既存の .dat ファイルを読めるよう、フィールド変更前の値に固定する
+    private static final long serialVersionUID = -5979374439632812964L;
+
     double w = 0, h = 0;              // 図形の幅と高さ（ドラッグ量）
     Color color = Color.BLACK;        // 図形の描画色（デフォルト：黒）
     double strokeWidth = 2.0;         // 線幅（デフォルト：2.0ピクセル）
     boolean filled = false;           // 塗りつぶしフラグ（false=枠線のみ、true=塗りつぶし）
 
+    // 描画用にキャッシュした形状（位置・サイズが変わったら作り直す。保存はしない）
+    transient Shape shape;
+    // 描画用の線のスタイル（StrokeCache から共有のものを取得する）
+    transient BasicStroke stroke;
+    // キャッシュした外接矩形と、計算したときの線幅（余白が線幅で変わるため）
+    transient java.awt.geom.Rectangle2D bounds;
+    transient double boundsStrokeWidth;
+
     /**
      * 図形のサイズを設定
      * @param w 幅（または横方向のドラッグ量）
@@ -21,8 +32,117 @@ public abstract class Figure extends Coord implements Serializable {
      */
     public void setWH(double w, double h){
         this.w = w; this.h = h;
+        invalidate();
+    }
+
+    /** 相対移動（形状のキャッシュも捨てる） */
+    @Override
+    public void move(double dx, double dy){
+        super.move(dx, dy);
+        invalidate();
+    }
+
+    /** 絶対移動（形状のキャッシュも捨てる） */
+    @Override
+    public void moveto(double x, double y){
+        super.moveto(x, y);
+        invalidate();
     }
 
+    /**
+     * 形状のキャッシュを捨てる
+     * 座標やサイズをフィールドに直接書き込んだときは必ず呼ぶこと
+     */
+    public void invalidate() {
+        shape = null;
+        bounds = null;
+    }
+
+    /**
+     * 描画用の形状を取得（キャッシュがなければ作成する）
+     * @return 図形の形状
+     */
+    public Shape getShape() {
+        if (shape == null) shape = createShape();
+        return shape;
+    }
+
+    /**
+     * 拡大率 scale で描くときの形状を取得（縮小して描くときに、見た目が変わらない範囲で簡略化した形状を返せる）
+     * 既定では getShape と同じ
+     * @param scale 図形の座標から描画先の画素への拡大率
+     * @return 図形の形状
+     */
+    public Shape getShape(double scale) {
+        return getShape();
+    }
+
+    /**
+     * 現在の座標・サイズから描画用の形状を作成する（各サブクラスで実装）
+     * @return 図形の形状
+     */
+    protected abstract Shape createShape();
+
+    /**
+     * 描画用の線のスタイルを取得
+     * 線幅が変わったときだけ StrokeCache から取り直す
+     * @return 線幅に応じた BasicStroke（端・接続部は丸）
+     */
+    public BasicStroke getStroke() {
+        if (stroke == null || stroke.getLineWidth() != (float) strokeWidth) {
+            stroke = StrokeCache.get(strokeWidth);
+        }
+        return stroke;
+    }
+
+    /**
+     * 図形の複製を作成（Undo/Redo で変更前の状態を残すときなどに使う）
+     * 形状のキャッシュは作り直させる（点列を持つ図形はパスに書き足すため共有できない）
+     * @return 同じ内容の新しい図形
+     */
+    public Figure copy() {
+        try {
+            Figure f = (Figure) super.clone();
+            f.shape = null;
+            return f;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * この図形がメモリ上で占めるおおよそのバイト数（Undo 履歴の容量管理に使う）
+     * @return 推定バイト数
+     */
+    public long sizeBytes() { return 96; }
+
+    /**
+     * 描いたときの見た目を決める内容（種類・座標・サイズ・色・線幅・塗り）から作るハッシュ値
+     * 画像出力で、前回から変わったタイルを見分けるのに使う（ExportCache を参照）
+     * @return 64ビットのハッシュ値
+     */
+    public long fingerprint() {
+        long h = mix(getClass().getName().hashCode(), Double.doubleToLongBits(x));
+        h = mix(h, Double.doubleToLongBits(y));
+        h = mix(h, Double.doubleToLongBits(w));
+        h = mix(h, Double.doubleToLongBits(this.h));
+        h = mix(h, color.getRGB());
+        h = mix(h, Double.doubleToLongBits(strokeWidth));
+        return mix(h, filled ? 1 : 0);
+    }
+
+    /** ハッシュ値 h に v を混ぜる */
+    static long mix(long h, long v) {
+        h = (h ^ v) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+
+    /** paint で形状を塗るかどうか（SVG 出力で使う） */
+    public boolean paintsFill() { return filled; }
+
+    /** paint で形状の枠線を描くかどうか（SVG 出力で使う） */
+    public boolean paintsStroke() { return !filled; }
+
     /** 線幅を設定 */
     public void setStrokeWidth(double sw) { this.strokeWidth = sw; }
     /** 線幅を取得 */
@@ -50,7 +170,21 @@ public abstract class Figure extends Coord implements Serializable {
     /**
      * 図形の外接矩形（バウンディングボックス）を取得
      * 選択矩形の描画やリサイズハンドルの配置に使用
+     * 計算結果はキャッシュし、図形が変わったときだけ新しい矩形を作り直す
+     * （返した矩形は共有されるので、呼び出し側で書き換えないこと）
+     * @return 図形を囲む矩形
+     */
+    public java.awt.geom.Rectangle2D getBounds2D() {
+        if (bounds == null || boundsStrokeWidth != strokeWidth) {
+            bounds = computeBounds();
+            boundsStrokeWidth = strokeWidth;
+        }
+        return bounds;
+    }
+
+    /**
+     * 現在の座標・サイズから外接矩形を計算する（各サブクラスで実装）
      * @return 図形を囲む矩形
      */
-    public abstract java.awt.geom.Rectangle2D getBounds2D();
+    protected abstract java.awt.geom.Rectangle2D computeBounds();
 }
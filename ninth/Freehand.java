@@ -2,15 +2,29 @@ package ninth;
 
 import java.awt.*;
 import java.awt.geom.*;
-import java.util.ArrayList;
+import java.io.*;
 
 /**
  * フリーハンド（自由曲線）を描画するクラス
  * マウスをドラッグしながら通った経路を点列として記録し、
  * それらを線で接続して描画する
+ *
+ * fitCurves で3次ベジェ曲線の列に置き換えると、点列は曲線の制御点
+ * （始点, 制御点1, 制御点2, 終点, 制御点1, ... の 3k+1 点）になる。
+ * 制御点は平行移動・拡大縮小をそのまま当てはめられるので、移動やリサイズは点列と同じに扱える。
  */
 public class Freehand extends Figure {
-    ArrayList<Point2D.Double> pts = new ArrayList<>();  // マウスが通った点の列
+    private static final long serialVersionUID = 4958530361244492938L;
+
+    PointBuffer points = new PointBuffer();  // マウスが通った点の列
+    boolean curved = false;                  // true なら points は3次ベジェ曲線の制御点
+
+    // 縮小表示用の詳細度の段数（段 k は 1/2^k 倍以下で描くときに使う）
+    private static final int LOD_LEVELS = 8;
+    // 縮小表示で許す形のずれ（描画先の画素）
+    private static final double LOD_PIXELS = 0.5;
+    // 段ごとに点を間引いた形状（必要になった段だけ作る。levels[0] は使わない。保存はしない）
+    private transient Shape[] levels;
 
     /**
      * コンストラクタ：開始点、色、線幅を設定
@@ -27,7 +41,7 @@ public class Freehand extends Figure {
         // 線幅を設定
         this.strokeWidth = strokeWidth;
         // 開始点を点列に追加
-        pts.add(new Point2D.Double(x, y));
+        points.add(x, y);
     }
 
     /**
@@ -36,36 +50,184 @@ public class Freehand extends Figure {
      * @param y 追加する点のy座標
      */
     public void addPoint(double x, double y) {
-        pts.add(new Point2D.Double(x, y));
+        points.add(x, y);
+        // 作成済みのパスには末尾に線分を足すだけ（作り直さない）
+        if (shape != null) ((Path2D) shape).lineTo(x, y);
+        // 外接矩形は点列側で差分更新済みなので、取り直すだけで済む
+        bounds = null;
+        levels = null;
     }
 
-    /** 点列を取得 */
-    public ArrayList<Point2D.Double> getPoints() { return pts; }
+    /**
+     * 記録した点を、形が tolerance より大きくずれない範囲で間引く（描き終えたときに使う）
+     * マウスの細かな揺れや一直線に並んだ点を捨てるので、描画・当たり判定・保存が軽くなる
+     * @param tolerance 許容する形のずれ（ピクセル、0以下なら何もしない）
+     */
+    public void simplify(double tolerance) {
+        if (tolerance <= 0 || points.size() <= 2) return;
+        points = points.simplify(tolerance);
+        invalidate();
+    }
+
+    /**
+     * 記録した点を、形が error より大きくずれない3次ベジェ曲線の列に置き換える（描き終えたときに使う）
+     * 元の点は捨てる。制御点は保存時に差分で書けるよう 1/64 ピクセルの倍数に丸める
+     * 曲線にしても点が減らないときは何もしない
+     * @param error 元の点から曲線までの距離の上限（ピクセル、0以下なら何もしない）
+     */
+    public void fitCurves(double error) {
+        if (curved || error <= 0 || points.size() <= 2) return;
+        PointBuffer fitted = CurveFitter.fit(points, error);
+        if (fitted.size() >= points.size() || fitted.size() < 4) return;
+        PointBuffer c = new PointBuffer(fitted.size());
+        for (int i = 0; i < fitted.size(); i++) {
+            c.add(Math.round(fitted.getX(i) * 64) / 64.0, Math.round(fitted.getY(i) * 64) / 64.0);
+        }
+        points = c;
+        curved = true;
+        invalidate();
+    }
+
+    /** 3次ベジェ曲線の列に置き換えてあるかどうか */
+    public boolean isCurved() { return curved; }
+
+    /**
+     * 曲線をたどった点列を持つフリーハンドを作成（曲線にしたものを消しゴムで分割するときに使う）
+     * 点の間隔は step 以下にする（曲線にしていなければ、そのまま複製する）
+     * @param step 点の間隔の上限
+     * @return 新しいフリーハンド
+     */
+    public Freehand flattened(double step) {
+        if (!curved) return copy();
+        Freehand f = new Freehand(points.getX(0), points.getY(0), color, (float) strokeWidth);
+        double[] seg = new double[6];
+        double lx = points.getX(0), ly = points.getY(0);
+        for (PathIterator it = new FlatteningPathIterator(getShape().getPathIterator(null), 0.1); !it.isDone(); it.next()) {
+            if (it.currentSegment(seg) != PathIterator.SEG_LINETO) continue;
+            // 長い線分は間に点を足して、間隔を step 以下にする
+            int pieces = Math.max(1, (int) Math.ceil(Math.hypot(seg[0] - lx, seg[1] - ly) / step));
+            for (int k = 1; k <= pieces; k++) f.points.add(lx + (seg[0] - lx) * k / pieces, ly + (seg[1] - ly) * k / pieces);
+            lx = seg[0];
+            ly = seg[1];
+        }
+        return f;
+    }
+
+    /**
+     * 点列を取得
+     * 取得した点列を書き換えた場合は invalidate() を呼ぶこと
+     */
+    public PointBuffer getPoints() { return points; }
+
+    /**
+     * 点列の一部 [from, to) だけを持つフリーハンドを作成（消しゴムで分割するときに使う）
+     * 曲線にしたものには使わない（flattened で点列に直してから使う）
+     * @param from 最初の点の番号
+     * @param to 最後の点の次の番号
+     * @return 新しいフリーハンド
+     */
+    public Freehand fragment(int from, int to) {
+        Freehand f = new Freehand(points.getX(from), points.getY(from), color, (float) strokeWidth);
+        f.points = points.range(from, to);
+        return f;
+    }
+
+    /** 複製を作成（点列も複製する） */
+    @Override
+    public Freehand copy() {
+        Freehand f = (Freehand) super.copy();
+        f.points = points.copy();
+        f.levels = null;
+        return f;
+    }
+
+    /** 形状のキャッシュを捨てる（縮小表示用の形状も捨てる） */
+    @Override
+    public void invalidate() {
+        super.invalidate();
+        levels = null;
+    }
+
+    @Override
+    public long sizeBytes() { return super.sizeBytes() + points.sizeBytes(); }
+
+    @Override
+    public long fingerprint() { return points.fingerprint(mix(super.fingerprint(), curved ? 1 : 0)); }
+
+    /** 相対移動：すべての点を平行移動する */
+    @Override
+    public void move(double dx, double dy) {
+        super.move(dx, dy);
+        points.translate(dx, dy);
+    }
+
+    /** 絶対移動：開始点が(x, y)に来るように全体を平行移動する */
+    @Override
+    public void moveto(double x, double y) {
+        move(x - this.x, y - this.y);
+    }
+
+    /**
+     * 点列を順に線で接続したパスを作成（曲線にしたものは curveTo でつなぐ）
+     */
+    @Override
+    protected Shape createShape() {
+        // Path2Dを使って連続したパスを作成（点の数だけ領域を確保しておく）
+        Path2D path = new Path2D.Double(Path2D.WIND_NON_ZERO, Math.max(points.size(), 2));
+        if (!curved) {
+            points.appendTo(path);
+            return path;
+        }
+        path.moveTo(points.getX(0), points.getY(0));
+        for (int i = 1; i + 2 < points.size(); i += 3) {
+            path.curveTo(points.getX(i), points.getY(i), points.getX(i + 1), points.getY(i + 1),
+                         points.getX(i + 2), points.getY(i + 2));
+        }
+        return path;
+    }
+
+    /**
+     * 拡大率 scale で描くときの形状
+     * 1/2^k 倍以下に縮小するときは、LOD_PIXELS * 2^k まで形のずれを許して間引いた形状を使う
+     * （描画先では LOD_PIXELS 画素以内のずれになるので、見た目は変わらない）
+     */
+    @Override
+    public Shape getShape(double scale) {
+        if (curved) return getShape();  // 曲線は制御点が少ないので間引かない
+        int k = (scale > 0) ? Math.min(LOD_LEVELS - 1, (int) Math.floor(-Math.log(scale) / Math.log(2))) : 0;
+        if (k < 1 || points.size() <= 2) return getShape();
+        if (levels == null) levels = new Shape[LOD_LEVELS];
+        if (levels[k] == null) {
+            PointBuffer coarse = points.simplify(LOD_PIXELS * (1 << k));
+            Path2D path = new Path2D.Double(Path2D.WIND_NON_ZERO, Math.max(coarse.size(), 2));
+            coarse.appendTo(path);
+            levels[k] = path;
+        }
+        return levels[k];
+    }
+
+    /** フリーハンドは塗らずに線だけを描く */
+    @Override
+    public boolean paintsFill() { return false; }
+    @Override
+    public boolean paintsStroke() { return !points.isEmpty(); }
 
     /**
      * フリーハンド曲線を描画
-     * 点列を順に線で接続して連続した曲線を描く
+     * キャッシュ済みのパスを描く（縮小して描くときは、拡大率に合わせて間引いたパス）
      */
     @Override
     public void paint(Graphics2D g) {
-        if (pts.isEmpty()) return;  // 点がない場合は何も描かない
-        
+        if (points.isEmpty()) return;  // 点がない場合は何も描かない
+
         g.setColor(color);  // 描画色を設定
         // 線のスタイルを設定
-        g.setStroke(new BasicStroke((float)strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-        
-        // Path2Dを使って連続したパスを作成
-        Path2D path = new Path2D.Double();
-        Point2D.Double p0 = pts.get(0);
-        path.moveTo(p0.x, p0.y);  // 最初の点に移動
-        
-        // 2番目以降の点を順に線で接続
-        for (int i = 1; i < pts.size(); i++) {
-            Point2D.Double p = pts.get(i);
-            path.lineTo(p.x, p.y);
-        }
-        
-        g.draw(path);  // パスを描画
+        g.setStroke(getStroke());
+
+        // 描画先の拡大率（縦横で違うときは大きい方）
+        AffineTransform t = g.getTransform();
+        double scale = Math.max(Math.hypot(t.getScaleX(), t.getShearY()), Math.hypot(t.getShearX(), t.getScaleY()));
+        g.draw(getShape(scale));  // パスを描画
     }
 
     /**
@@ -77,44 +239,58 @@ public class Freehand extends Figure {
      */
     @Override
     public boolean contains(double px, double py) {
-        if (pts.size() == 0) return false;  // 点がない場合はfalse
-        
+        if (points.isEmpty()) return false;  // 点がない場合はfalse
+
         // 判定用のしきい値（最低2.0または線幅の半分）
         double thresh = Math.max(2.0, strokeWidth/2.0);
-        
-        // 各線分に対して距離を計算
-        for (int i = 0; i + 1 < pts.size(); i++) {
-            Point2D.Double a = pts.get(i);      // 線分の始点
-            Point2D.Double b = pts.get(i+1);    // 線分の終点
-            // 点から線分までの最短距離
-            double dist = Line2D.ptSegDist(a.x, a.y, b.x, b.y, px, py);
-            if (dist <= thresh) return true;  // しきい値以下なら選択可能
+        if (!curved) return points.isNear(px, py, thresh);
+
+        // 曲線は、制御点の範囲がしきい値以内にかかる区間だけを折れ線に直して調べる
+        double t2 = thresh * thresh;
+        double[] seg = new double[6];
+        for (int i = 0; i + 3 < points.size(); i += 3) {
+            double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
+            double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+            for (int k = i; k <= i + 3; k++) {
+                minx = Math.min(minx, points.getX(k)); maxx = Math.max(maxx, points.getX(k));
+                miny = Math.min(miny, points.getY(k)); maxy = Math.max(maxy, points.getY(k));
+            }
+            if (px < minx - thresh || px > maxx + thresh || py < miny - thresh || py > maxy + thresh) continue;
+            CubicCurve2D c = new CubicCurve2D.Double(points.getX(i), points.getY(i), points.getX(i + 1), points.getY(i + 1),
+                                                     points.getX(i + 2), points.getY(i + 2), points.getX(i + 3), points.getY(i + 3));
+            double lx = points.getX(i), ly = points.getY(i);
+            for (PathIterator it = c.getPathIterator(null, 0.1); !it.isDone(); it.next()) {
+                if (it.currentSegment(seg) != PathIterator.SEG_LINETO) continue;
+                if (Line2D.ptSegDistSq(lx, ly, seg[0], seg[1], px, py) <= t2) return true;
+                lx = seg[0];
+                ly = seg[1];
+            }
         }
         return false;
     }
 
     /**
-     * 外接矩形を取得
-     * すべての点を囲む最小の矩形を計算
+     * 外接矩形を計算
+     * 点列側で差分更新している範囲から求める（O(1)）
+     * 曲線にしたものは制御点を囲む範囲になる（曲線は必ずその中に収まる）
      * @return 曲線を囲む矩形（パディング付き）
      */
     @Override
-    public java.awt.geom.Rectangle2D getBounds2D() {
-        if (pts.isEmpty()) return null;  // 点がない場合はnull
-        
-        // すべての点から最小・最大座標を探す
-        double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
-        double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
-        for (Point2D.Double p : pts) {
-            if (p.x < minx) minx = p.x;
-            if (p.y < miny) miny = p.y;
-            if (p.x > maxx) maxx = p.x;
-            if (p.y > maxy) maxy = p.y;
-        }
-        
+    protected java.awt.geom.Rectangle2D computeBounds() {
         // 選択しやすくするためのパディング
         double pad = Math.max(2.0, strokeWidth/2.0);
-        // パディングを含めた矩形を返す
-        return new java.awt.geom.Rectangle2D.Double(minx - pad, miny - pad, (maxx - minx) + pad*2, (maxy - miny) + pad*2);
+        // パディングを含めた矩形を返す（点がない場合はnull）
+        return points.bounds(pad);
+    }
+
+    /**
+     * 読み込み時の処理
+     * 旧形式（点列を ArrayList の pts に持っていた頃）のデータも変換して読む
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        points = (PointBuffer) fields.get("points", null);
+        if (points == null) points = PointBuffer.fromLegacy(fields);
+        curved = fields.get("curved", false);
     }
 }
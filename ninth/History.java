@@ -0,0 +1,289 @@
+package ninth;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Undo/Redo の履歴
+ * 操作ごとに Edit を積み、取り消し・やり直しではその差分だけをキャンバスに適用する
+ *
+ * 履歴の件数ではなく、メモリ上で占めるバイト数に上限（予算）を設ける。
+ * - 新しい方から LIVE_ENTRIES 件はそのまま保持する
+ * - それより古い編集はシリアライズして Deflate で圧縮しておく
+ * - 予算を超えた分は古い順に HistorySpill（メモリマップしたリングファイル）へ退避する
+ * - 退避先からも押し出された履歴は、それより古いものと一緒に捨てる
+ * 取り消し・やり直しで使うときに、必要なものだけを展開する。
+ */
+public class History {
+    // 既定のメモリ上の予算（バイト）
+    public static final long DEFAULT_BYTE_BUDGET = 32L << 20;
+    // 既定の退避ファイルの大きさ（バイト）
+    public static final int DEFAULT_SPILL_CAPACITY = 256 << 20;
+    // 圧縮せずに保持する直近の件数
+    private static final int LIVE_ENTRIES = 16;
+    // 圧縮・退避した履歴1件あたりの管理情報のおおよその大きさ
+    private static final long ENTRY_OVERHEAD = 32;
+
+    /** 履歴1件分（展開済み・圧縮済み・退避済みのいずれか） */
+    private static final class Entry {
+        Edit edit;            // 展開済みの編集（圧縮・退避中はnull）
+        byte[] packed;        // 圧縮した編集（メモリ上）
+        long spillId = -1;    // 退避先のレコード番号（退避していなければ-1）
+        long charge;          // heapBytes に計上している量
+
+        Entry(Edit edit) { this.edit = edit; }
+    }
+
+    // 取り消せる編集（末尾が最新）
+    private final ArrayList<Entry> undoStack = new ArrayList<>();
+    // やり直せる編集（末尾が直前に取り消したもの）
+    private final ArrayList<Entry> redoStack = new ArrayList<>();
+    // 各スタックの先頭から何件が退避済みか（退避は古い方から行うので常に先頭側に並ぶ）
+    private int undoSpilled = 0, redoSpilled = 0;
+
+    // メモリ上の予算と、現在の使用量
+    private long byteBudget;
+    private long heapBytes = 0;
+    // 退避先（必要になったときに作る。作れなかったら退避せずに古い履歴を捨てる）
+    private final int spillCapacity;
+    private HistorySpill spill = null;
+    private boolean spillFailed = false;
+
+    public History() { this(DEFAULT_BYTE_BUDGET, DEFAULT_SPILL_CAPACITY); }
+
+    /**
+     * @param byteBudget メモリ上に置く履歴の上限（バイト）
+     * @param spillCapacity 退避ファイルの大きさ（バイト、0なら退避しない）
+     */
+    public History(long byteBudget, int spillCapacity) {
+        this.byteBudget = byteBudget;
+        this.spillCapacity = spillCapacity;
+        this.spillFailed = (spillCapacity <= 0);
+    }
+
+    /**
+     * 適用済みの編集を記録する（やり直し側の履歴は捨てる）
+     * @param e 記録する編集
+     */
+    public void record(Edit e) {
+        clearStack(redoStack);
+        redoSpilled = 0;
+        push(undoStack, new Entry(e));
+        trim();
+    }
+
+    /**
+     * 直前の編集を取り消す
+     * @param canvas 対象のキャンバス
+     * @return 取り消した編集（履歴が空、または失われていたらnull）
+     */
+    public Edit undo(PaintCanvas canvas) {
+        Edit e = pop(undoStack, true);
+        if (e == null) return null;
+        e.undo(canvas);
+        push(redoStack, new Entry(e));
+        trim();
+        return e;
+    }
+
+    /**
+     * 直前に取り消した編集をやり直す
+     * @param canvas 対象のキャンバス
+     * @return やり直した編集（履歴が空、または失われていたらnull）
+     */
+    public Edit redo(PaintCanvas canvas) {
+        Edit e = pop(redoStack, false);
+        if (e == null) return null;
+        e.redo(canvas);
+        push(undoStack, new Entry(e));
+        trim();
+        return e;
+    }
+
+    /** 履歴をすべて捨てる（別のファイルを読み込んだときなど） */
+    public void clear() {
+        clearStack(undoStack);
+        clearStack(redoStack);
+        undoSpilled = redoSpilled = 0;
+    }
+
+    /** 取り消せる件数 */
+    public int undoCount() { return undoStack.size(); }
+
+    /** やり直せる件数 */
+    public int redoCount() { return redoStack.size(); }
+
+    /** 履歴がメモリ上で占めているおおよそのバイト数 */
+    public long heapBytes() { return heapBytes; }
+
+    /** 退避ファイルに書き出している履歴のバイト数 */
+    public long spilledBytes() { return (spill != null) ? spill.usedBytes() : 0; }
+
+    /** メモリ上の予算（バイト） */
+    public long getByteBudget() { return byteBudget; }
+
+    /**
+     * メモリ上の予算を変更する（超えていればすぐに圧縮・退避する）
+     * @param bytes 予算（バイト）
+     */
+    public void setByteBudget(long bytes) {
+        if (bytes <= 0) return;
+        byteBudget = bytes;
+        trim();
+    }
+
+    // ---- 内部処理 ----
+
+    private void push(ArrayList<Entry> stack, Entry e) {
+        charge(e, e.edit.sizeBytes());
+        stack.add(e);
+    }
+
+    /**
+     * スタックの末尾から1件取り出して展開する
+     * 退避先から失われていたら、それより先の履歴もたどれないので一緒に捨てる
+     */
+    private Edit pop(ArrayList<Entry> stack, boolean undoSide) {
+        if (stack.isEmpty()) return null;
+        Entry entry = stack.remove(stack.size() - 1);
+        if (undoSide) undoSpilled = Math.min(undoSpilled, stack.size());
+        else redoSpilled = Math.min(redoSpilled, stack.size());
+        Edit e = unpack(entry);
+        release(entry);
+        if (e == null) {
+            clearStack(stack);
+            if (undoSide) undoSpilled = 0; else redoSpilled = 0;
+        }
+        return e;
+    }
+
+    /** 圧縮・退避された編集を元に戻す（失われていればnull） */
+    private Edit unpack(Entry entry) {
+        if (entry.edit != null) return entry.edit;
+        byte[] data = entry.packed;
+        if (data == null && entry.spillId >= 0 && spill != null) data = spill.read(entry.spillId);
+        if (data == null) return null;
+        try (ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            return (Edit) in.readObject();
+        } catch (IOException | ClassNotFoundException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 予算に収まるように、古い履歴から圧縮・退避・破棄する
+     */
+    private void trim() {
+        // 直近の件数より古い編集は圧縮しておく（境界を越えるのは1回の操作で高々数件）
+        packOlder(undoStack);
+        packOlder(redoStack);
+        if (heapBytes <= byteBudget) return;
+
+        // 直近の編集も、最新の1件を除いて古い方から圧縮する
+        packRecent(undoStack);
+        packRecent(redoStack);
+
+        // それでも超えていれば古い順に退避する
+        while (heapBytes > byteBudget && undoSpilled < undoStack.size() - 1 && spillOut(undoStack.get(undoSpilled))) undoSpilled++;
+        while (heapBytes > byteBudget && redoSpilled < redoStack.size() - 1 && spillOut(redoStack.get(redoSpilled))) redoSpilled++;
+
+        // 退避できなかった分は古い履歴を捨てる
+        while (heapBytes > byteBudget && undoStack.size() > 1 && undoStack.get(0).spillId < 0) dropOldest(undoStack, true);
+        while (heapBytes > byteBudget && redoStack.size() > 1 && redoStack.get(0).spillId < 0) dropOldest(redoStack, false);
+
+        // 退避ファイルで上書きされて読めなくなった履歴は、先頭側から取り除いておく
+        while (!undoStack.isEmpty() && isLost(undoStack.get(0))) dropOldest(undoStack, true);
+        while (!redoStack.isEmpty() && isLost(redoStack.get(0))) dropOldest(redoStack, false);
+    }
+
+    /** 直近 LIVE_ENTRIES 件のうち、最新の1件を除いて古い方から予算に収まるまで圧縮する */
+    private void packRecent(ArrayList<Entry> stack) {
+        for (int i = Math.max(0, stack.size() - 1 - LIVE_ENTRIES); i < stack.size() - 1 && heapBytes > byteBudget; i++) {
+            pack(stack.get(i));
+        }
+    }
+
+    /** 退避先で上書きされて失われたかどうか */
+    private boolean isLost(Entry entry) {
+        return entry.spillId >= 0 && (spill == null || !spill.contains(entry.spillId));
+    }
+
+    /** 新しい方から LIVE_ENTRIES 件より古い展開済みの編集を圧縮する */
+    private void packOlder(ArrayList<Entry> stack) {
+        for (int i = stack.size() - 1 - LIVE_ENTRIES; i >= 0; i--) {
+            Entry e = stack.get(i);
+            if (e.edit == null) break;  // これより古いものは圧縮済み
+            pack(e);
+        }
+    }
+
+    /** 編集をシリアライズして圧縮する */
+    private void pack(Entry entry) {
+        if (entry.edit == null) return;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bos, deflater))) {
+            out.writeObject(entry.edit);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return;  // 圧縮できなければ展開したまま持つ
+        } finally {
+            deflater.end();
+        }
+        entry.packed = bos.toByteArray();
+        entry.edit = null;
+        charge(entry, entry.packed.length + ENTRY_OVERHEAD);
+    }
+
+    /** 圧縮した編集を退避ファイルに書き出す（書き出せなければfalse） */
+    private boolean spillOut(Entry entry) {
+        if (entry.spillId >= 0) return true;
+        pack(entry);
+        if (entry.packed == null || !openSpill()) return false;
+        long id = spill.write(entry.packed);
+        if (id < 0) return false;
+        entry.spillId = id;
+        entry.packed = null;
+        charge(entry, ENTRY_OVERHEAD);
+        return true;
+    }
+
+    private boolean openSpill() {
+        if (spill != null) return true;
+        if (spillFailed) return false;
+        try {
+            spill = new HistorySpill(spillCapacity);
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            ex.printStackTrace();
+            spillFailed = true;
+            return false;
+        }
+    }
+
+    /** スタックの先頭（最も古い1件）を捨てる */
+    private void dropOldest(ArrayList<Entry> stack, boolean undoSide) {
+        release(stack.remove(0));
+        if (undoSide) { if (undoSpilled > 0) undoSpilled--; }
+        else { if (redoSpilled > 0) redoSpilled--; }
+    }
+
+    private void clearStack(ArrayList<Entry> stack) {
+        for (Entry e : stack) release(e);
+        stack.clear();
+    }
+
+    /** 履歴1件分の計上と退避先のレコードを解放する */
+    private void release(Entry entry) {
+        charge(entry, 0);
+        if (entry.spillId >= 0 && spill != null) spill.free(entry.spillId);
+        entry.spillId = -1;
+    }
+
+    private void charge(Entry entry, long bytes) {
+        heapBytes += bytes - entry.charge;
+        entry.charge = bytes;
+    }
+}
@@ -0,0 +1,128 @@
+package ninth;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Undo 履歴の退避先（メモリマップした一時ファイルをリングバッファとして使う）
+ * メモリ上に置ききれない古い履歴を書き出し、必要になったら読み戻す
+ *
+ * 先頭から順に書き、末尾に入りきらなくなったら先頭に戻って古いレコードを上書きする。
+ * 上書きされたレコードは読めなくなる（read が null を返す）ので、呼び出し側で履歴を切り捨てる。
+ * スレッドセーフではない。
+ */
+public class HistorySpill implements Closeable {
+    /** 書き出したレコード1つ分の位置 */
+    private static final class Record {
+        final int offset, length;
+        Record(int offset, int length) { this.offset = offset; this.length = length; }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+    private final int capacity;
+    // 次に書き込む位置
+    private int head = 0;
+    // 次に割り当てるレコード番号
+    private long nextId = 1;
+    // 有効なレコード（書き込んだ順 = 上書きされる順）
+    private final LinkedHashMap<Long, Record> records = new LinkedHashMap<>();
+    // 有効なレコードの合計バイト数
+    private long usedBytes = 0;
+
+    /**
+     * 一時ファイルを作成してマップする
+     * @param capacity リングの大きさ（バイト）
+     */
+    public HistorySpill(int capacity) throws IOException {
+        this.capacity = capacity;
+        file = Files.createTempFile("drawsoft-history", ".spill");
+        file.toFile().deleteOnExit();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * データを書き出す
+     * 空きが足りなければ古いレコードから上書きする
+     * @param data 書き出すデータ
+     * @return レコード番号（リングより大きくて書けなければ-1）
+     */
+    public long write(byte[] data) {
+        int len = data.length;
+        if (len > capacity) return -1;
+        if (head + len > capacity) {
+            // 末尾の余りは使わずに先頭へ戻る（余りに残っている前の周のレコードは捨てる）
+            evictWhile(r -> r.offset >= head);
+            head = 0;
+        }
+        int start = head, end = head + len;
+        evictWhile(r -> r.offset < end && r.offset + r.length > start);
+
+        MappedByteBuffer b = buf;
+        b.position(start);
+        b.put(data);
+        long id = nextId++;
+        records.put(id, new Record(start, len));
+        usedBytes += len;
+        head = end;
+        return id;
+    }
+
+    /**
+     * レコードを読み戻す
+     * @param id write が返したレコード番号
+     * @return データ（上書きされていればnull）
+     */
+    public byte[] read(long id) {
+        Record r = records.get(id);
+        if (r == null) return null;
+        byte[] data = new byte[r.length];
+        buf.position(r.offset);
+        buf.get(data);
+        return data;
+    }
+
+    /** レコードがまだ読めるかどうか */
+    public boolean contains(long id) {
+        return records.containsKey(id);
+    }
+
+    /**
+     * 不要になったレコードを解放する（領域は上書きされるまでそのまま）
+     * @param id レコード番号
+     */
+    public void free(long id) {
+        Record r = records.remove(id);
+        if (r != null) usedBytes -= r.length;
+    }
+
+    /** 有効なレコードの合計バイト数 */
+    public long usedBytes() { return usedBytes; }
+
+    /** リングの大きさ（バイト） */
+    public int capacity() { return capacity; }
+
+    /** 古い方から条件を満たすレコードを捨てる（書き込み順に並んでいるので先頭だけを見ればよい） */
+    private void evictWhile(java.util.function.Predicate<Record> p) {
+        Iterator<Record> it = records.values().iterator();
+        while (it.hasNext()) {
+            Record r = it.next();
+            if (!p.test(r)) break;
+            usedBytes -= r.length;
+            it.remove();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        records.clear();
+        usedBytes = 0;
+        channel.close();
+        try { Files.deleteIfExists(file); } catch (IOException e) {}
+    }
+}
@@ -0,0 +1,200 @@
+package ninth;
+
+import java.awt.Color;
+import java.awt.geom.Rectangle2D;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * チャンクの索引を持つ .dat ファイル（DrawingFile のバージョン2）を読むクラス
+ * 開いた時点では索引だけを読み、図形はチャンク単位で必要になったときにデコードする
+ *
+ * ファイルはメモリマップせず、必要な範囲だけを位置指定で読む
+ * （マップが残っていると、Windows では保存時にファイルを置き換えられないため）。
+ * 読み終わったら close すること。
+ * ジャーナルのスナップショット（DrawingJournal.OP_SNAPSHOT）のように、同じ形式がメモリ上にあるときは of で読む。
+ * 各チャンクのデコードは独立しているので、別々のスレッドから同時に呼んでよい。
+ */
+public class IndexedDrawing implements Closeable {
+    // 読み込み元（どちらか一方だけ）
+    private final FileChannel ch;
+    private final ByteBuffer image;
+    private final Color[] palette;
+    private final int figureCount;
+    // チャンクごとの位置・長さ・図形の数・描画範囲
+    private final long[] offset;
+    private final int[] length;
+    private final int[] count;
+    private final float[] bounds;  // minx, miny, maxx, maxy の順にチャンクの数だけ
+
+    private IndexedDrawing(FileChannel ch, ByteBuffer image, Color[] palette, int figureCount,
+                           long[] offset, int[] length, int[] count, float[] bounds) {
+        this.ch = ch;
+        this.image = image;
+        this.palette = palette;
+        this.figureCount = figureCount;
+        this.offset = offset;
+        this.length = length;
+        this.count = count;
+        this.bounds = bounds;
+    }
+
+    /**
+     * ファイルを開いて索引を読む
+     * @param path 読み込むファイル
+     * @return 索引付きの形式でなければnull（旧形式は DrawingFile.read で読む）
+     * @throws IOException 読み込みに失敗したとき、または索引が壊れているとき
+     */
+    public static IndexedDrawing open(Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            IndexedDrawing d = readIndex(ch, null, ch.size());
+            if (d == null) ch.close();
+            return d;
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * メモリ上にあるファイル1つ分の内容から索引を読む
+     * @param image ファイルの内容（位置・上限の間。共有したまま使うので書き換えないこと）
+     * @return 索引付きの形式でなければnull
+     * @throws IOException 索引が壊れているとき
+     */
+    public static IndexedDrawing of(ByteBuffer image) throws IOException {
+        ByteBuffer b = image.slice();
+        return readIndex(null, b, b.limit());
+    }
+
+    private static IndexedDrawing readIndex(FileChannel ch, ByteBuffer image, long size) throws IOException {
+        if (size < DrawingFile.HEADER_SIZE + DrawingFile.TRAILER_SIZE) return null;
+        ByteBuffer head = read(ch, image, 0, DrawingFile.HEADER_SIZE);
+        if (head.getInt(0) != DrawingFile.MAGIC || (head.getShort(4) & 0xffff) != DrawingFile.VERSION) return null;
+
+        ByteBuffer tail = read(ch, image, size - DrawingFile.TRAILER_SIZE, DrawingFile.TRAILER_SIZE);
+        if (tail.getInt(8) != DrawingFile.INDEX_MAGIC) throw new IOException("索引が見つかりません");
+        long indexPos = tail.getLong(0);
+        if (indexPos < DrawingFile.HEADER_SIZE || indexPos > size - DrawingFile.TRAILER_SIZE) throw new IOException("索引の位置が正しくありません");
+        long indexLen = size - DrawingFile.TRAILER_SIZE - indexPos;
+        if (indexLen > Integer.MAX_VALUE) throw new IOException("索引が壊れています");
+
+        DrawingFile.In in = new DrawingFile.In(read(ch, image, indexPos, (int) indexLen));
+        Color[] palette = new Color[in.count()];
+        for (int i = 0; i < palette.length; i++) palette[i] = new Color(in.i32(), true);
+        long figures = in.varint();
+        int chunks = in.count();
+        long[] offset = new long[chunks];
+        int[] length = new int[chunks], count = new int[chunks];
+        float[] bounds = new float[chunks * 4];
+        long total = 0;
+        for (int i = 0; i < chunks; i++) {
+            offset[i] = in.i64();
+            length[i] = in.i32();
+            long c = in.varint();
+            for (int k = 0; k < 4; k++) bounds[i * 4 + k] = in.f32();
+            if (offset[i] < DrawingFile.HEADER_SIZE || length[i] < 0 || offset[i] + length[i] > indexPos
+                    || c < 0 || c > length[i]) throw new IOException("索引が壊れています");
+            count[i] = (int) c;
+            total += c;
+        }
+        if (total != figures || figures > Integer.MAX_VALUE) throw new IOException("索引が壊れています");
+        return new IndexedDrawing(ch, image, palette, (int) figures, offset, length, count, bounds);
+    }
+
+    /** 図形の総数 */
+    public int figureCount() { return figureCount; }
+
+    /** チャンクの数 */
+    public int chunkCount() { return offset.length; }
+
+    /**
+     * 描画範囲が r と重なるチャンクの番号（描画順）
+     * @param r 範囲
+     * @return チャンクの番号
+     */
+    public int[] chunksIn(Rectangle2D r) {
+        return IntStream.range(0, chunkCount()).filter(i ->
+                bounds[i*4 + 2] >= r.getMinX() && bounds[i*4] <= r.getMaxX()
+                && bounds[i*4 + 3] >= r.getMinY() && bounds[i*4 + 1] <= r.getMaxY()).toArray();
+    }
+
+    /**
+     * チャンク1つ分の図形をデコードする
+     * @param chunk チャンクの番号
+     * @return 描画順の図形
+     * @throws IOException 読み込みに失敗したとき、またはチャンクが壊れているとき
+     */
+    public List<Figure> decodeChunk(int chunk) throws IOException {
+        DrawingFile.In in = new DrawingFile.In(read(ch, image, offset[chunk], length[chunk]));
+        ArrayList<Figure> list = new ArrayList<>(count[chunk]);
+        for (int i = 0; i < count[chunk]; i++) list.add(DrawingFile.readFigure(in, palette));
+        if (!in.atEnd()) throw new IOException("チャンクが壊れています");
+        return list;
+    }
+
+    /**
+     * すべてのチャンクを並列にデコードして、描画順の図形リストを作る
+     * @param decoded デコード済みのチャンク（番号 → 図形。null可）。あるものはデコードし直さない
+     * @param progress 進み具合の通知先（null可。複数のスレッドから呼ばれる）
+     * @return 描画順の図形リスト
+     * @throws IOException 読み込みに失敗したとき、またはチャンクが壊れているとき
+     * @throws InterruptedIOException progress が中断を指示したとき
+     */
+    public ArrayList<Figure> decodeAll(Map<Integer, List<Figure>> decoded, DrawingFile.Progress progress) throws IOException {
+        List<List<Figure>> parts;
+        java.util.concurrent.atomic.AtomicInteger done = new java.util.concurrent.atomic.AtomicInteger();
+        try {
+            parts = IntStream.range(0, chunkCount()).parallel().mapToObj(i -> {
+                List<Figure> d = (decoded != null) ? decoded.get(i) : null;
+                if (d != null) return d;
+                try {
+                    if (progress != null && !progress.update(done.get(), figureCount)) {
+                        throw new InterruptedIOException("読み込みを中断しました");
+                    }
+                    List<Figure> list = decodeChunk(i);
+                    done.addAndGet(count[i]);
+                    // 外接矩形もここで求めておく（インデックスの作成を速くするため）
+                    for (Figure f : list) f.getBounds2D();
+                    return list;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).collect(java.util.stream.Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        ArrayList<Figure> all = new ArrayList<>(figureCount);
+        for (List<Figure> p : parts) all.addAll(p);
+        return all;
+    }
+
+    /** ファイルを閉じる */
+    @Override public void close() throws IOException {
+        if (ch != null) ch.close();
+    }
+
+    /**
+     * ファイルの [pos, pos+len) を読む（メモリ上の内容なら、その範囲を切り出す）
+     * 位置指定の読み込みはチャネルの位置を動かさないので、複数のスレッドから同時に呼んでよい
+     */
+    private static ByteBuffer read(FileChannel ch, ByteBuffer image, long pos, int len) throws IOException {
+        if (image != null) {
+            ByteBuffer b = image.duplicate();
+            b.position((int) pos);
+            b.limit((int) pos + len);
+            return b.slice();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0) throw new EOFException("ファイルが途中で終わっています");
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,260 @@
+package ninth;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * 予測インク（InkPredictor）が、線の先端とカーソルのずれをどれだけ縮めるかを測るベンチマーク
+ * 記録したマウスの軌跡（トレース）を1サンプルずつ再生し、サンプルを受けてから latency ミリ秒後に
+ * 画面に出る線の先端（予測なしなら最後のサンプル、予測ありなら予測した点）を、その時刻の本当のカーソル位置と比べる。
+ *
+ * 測るもの（予測する時間ごと）：
+ *   err  先端と本当のカーソル位置の距離（平均と95パーセンタイル、ピクセル）
+ *   lag  先端の位置をカーソルが実際に通った時刻が、画面に出た時刻より何ミリ秒前か（実効的な遅れ。負なら先回り。
+ *        ずれが SAME_PIXELS 未満なら 0 とする。止まっている間は通った時刻が決まらないため）
+ *   over 先端がカーソルより先へ行きすぎた（lag が -2 ミリ秒より小さい）サンプルの割合
+ *
+ * トレースは1行に「時刻(ミリ秒) x y」を空白区切りで書いたテキスト（# から後は読まない）。
+ * 同じ時刻が続いてもよい（MouseEvent.getWhen のようにミリ秒単位に丸めた時刻でもよい）。
+ * ファイルを渡さなければ、円・ジグザグ・なぐり書き・止まっては動く線の4つを作って使う。
+ *
+ * 実行例: java ninth.InkLatencyBenchmark -l 16 -p 0,8,16,24 trace1.txt trace2.txt
+ *   -l  サンプルを受けてから画面に出るまでの時間（既定 16 ミリ秒）
+ *   -p  予測する時間の一覧（既定 0,8,16,24,32 ミリ秒。0 は予測なし）
+ *   -s  作ったトレースを、このディレクトリにテキストで書き出す（ファイルを渡さないとき）
+ */
+public class InkLatencyBenchmark {
+    // カーソル位置を探すときの時間の刻み（ミリ秒）と、画面に出た時刻から前後に探す幅
+    private static final double SEARCH_STEP = 0.25;
+    private static final double SEARCH_BEFORE = 150.0, SEARCH_AFTER = 100.0;
+    // 先端がカーソルと重なっているとみなすずれ（ピクセル）
+    private static final double SAME_PIXELS = 1.0;
+    // 先回りしすぎとみなす lag（ミリ秒）
+    private static final double OVERSHOOT_LAG = -2.0;
+
+    /** 記録したマウスの軌跡（時刻は昇順） */
+    static final class Trace {
+        final String name;
+        final double[] t, x, y;
+
+        Trace(String name, double[] t, double[] x, double[] y) {
+            this.name = name;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+        }
+
+        int size() { return t.length; }
+
+        /** 時刻 time のカーソル位置（サンプルの間は直線で補う。範囲外なら端の点） */
+        double[] at(double time) {
+            int n = t.length;
+            if (time <= t[0]) return new double[]{x[0], y[0]};
+            if (time >= t[n - 1]) return new double[]{x[n - 1], y[n - 1]};
+            int i = Arrays.binarySearch(t, time);
+            if (i >= 0) {
+                // 同じ時刻が続くときは最後のサンプル
+                while (i + 1 < n && t[i + 1] == time) i++;
+                return new double[]{x[i], y[i]};
+            }
+            int b = -i - 1, a = b - 1;
+            double u = (time - t[a]) / (t[b] - t[a]);
+            return new double[]{x[a] + (x[b] - x[a]) * u, y[a] + (y[b] - y[a]) * u};
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        double latency = 16.0;
+        double[] horizons = {0, 8, 16, 24, 32};
+        Path saveDir = null;
+        List<Trace> traces = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-l": latency = Double.parseDouble(args[++i]); break;
+                case "-p": horizons = Arrays.stream(args[++i].split(",")).mapToDouble(Double::parseDouble).toArray(); break;
+                case "-s": saveDir = Paths.get(args[++i]); break;
+                default: traces.add(read(Paths.get(args[i]))); break;
+            }
+        }
+        if (traces.isEmpty()) {
+            traces = synthetic(new Random(42));
+            if (saveDir != null) {
+                Files.createDirectories(saveDir);
+                for (Trace tr : traces) write(tr, saveDir.resolve(tr.name + ".txt"));
+            }
+        }
+
+        System.out.printf("latency: %.1f ms%n", latency);
+        System.out.printf("%-10s %8s %9s %9s %9s %9s %7s %9s%n",
+                          "trace", "predict", "err(px)", "err95", "lag(ms)", "lag95", "over", "us/smp");
+        for (Trace tr : traces) {
+            for (double h : horizons) {
+                Result r = replay(tr, latency, h);
+                System.out.printf("%-10s %6.0fms %9.2f %9.2f %9.2f %9.2f %6.1f%% %9.2f%n",
+                                  tr.name, h, r.meanError, r.p95Error, r.meanLag, r.p95Lag, r.overshoot * 100, r.microsPerSample);
+            }
+        }
+    }
+
+    /** 1つのトレースを、予測する時間 horizon で再生した結果 */
+    static final class Result {
+        double meanError, p95Error, meanLag, p95Lag, overshoot, microsPerSample;
+    }
+
+    /**
+     * トレースを再生し、各サンプルについて画面に出る先端と本当のカーソル位置を比べる
+     * （画面に出る時刻がトレースの終わりを過ぎるサンプルは数えない）
+     * @param tr トレース
+     * @param latency サンプルを受けてから画面に出るまでの時間（ミリ秒）
+     * @param horizon 予測する時間（ミリ秒、0なら予測しない）
+     * @return 結果
+     */
+    static Result replay(Trace tr, double latency, double horizon) {
+        InkPredictor predictor = new InkPredictor();
+        int n = tr.size();
+        double[] tipX = new double[n], tipY = new double[n];
+        // 先に予測だけを通しで行い、1サンプルあたりの時間を測る
+        // （予測器は実際の描画と同じく、線の描き始めからのサンプルをすべて受ける）
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            predictor.add(tr.x[i], tr.y[i], tr.t[i]);
+            double[] p = (horizon > 0) ? predictor.predict(horizon, 1) : null;
+            tipX[i] = (p != null) ? p[0] : tr.x[i];
+            tipY[i] = (p != null) ? p[1] : tr.y[i];
+        }
+        long elapsed = System.nanoTime() - t0;
+
+        double end = tr.t[n - 1];
+        double[] errors = new double[n], lags = new double[n];
+        int m = 0, over = 0;
+        for (int i = 0; i < n; i++) {
+            double shown = tr.t[i] + latency;
+            if (shown > end) break;
+            double[] cur = tr.at(shown);
+            errors[m] = Math.hypot(tipX[i] - cur[0], tipY[i] - cur[1]);
+            lags[m] = (errors[m] < SAME_PIXELS) ? 0 : shown - nearestTime(tr, tipX[i], tipY[i], shown);
+            if (lags[m] < OVERSHOOT_LAG) over++;
+            m++;
+        }
+        Result r = new Result();
+        r.microsPerSample = elapsed / 1e3 / n;
+        if (m == 0) return r;
+        errors = Arrays.copyOf(errors, m);
+        lags = Arrays.copyOf(lags, m);
+        r.meanError = Arrays.stream(errors).average().orElse(0);
+        r.meanLag = Arrays.stream(lags).average().orElse(0);
+        Arrays.sort(errors);
+        double[] absLags = Arrays.stream(lags).map(Math::abs).sorted().toArray();
+        r.p95Error = errors[(int) Math.min(m - 1, Math.round(m * 0.95))];
+        r.p95Lag = absLags[(int) Math.min(m - 1, Math.round(m * 0.95))];
+        r.overshoot = (double) over / m;
+        return r;
+    }
+
+    /**
+     * 画面に出た時刻 shown の前後で、カーソルが点 (px, py) にいちばん近づいた時刻
+     * （止まっている間は、同じ近さなら画面に出た時刻に近い方を選ぶ）
+     */
+    private static double nearestTime(Trace tr, double px, double py, double shown) {
+        double best = shown, bestDist = Double.POSITIVE_INFINITY;
+        double from = Math.max(tr.t[0], shown - SEARCH_BEFORE), to = Math.min(tr.t[tr.size() - 1], shown + SEARCH_AFTER);
+        for (double time = from; time <= to; time += SEARCH_STEP) {
+            double[] c = tr.at(time);
+            double d = Math.hypot(c[0] - px, c[1] - py);
+            if (d < bestDist || (d == bestDist && Math.abs(time - shown) < Math.abs(best - shown))) {
+                bestDist = d;
+                best = time;
+            }
+        }
+        return best;
+    }
+
+    /** トレースのテキストファイルを読む（時刻が戻っている行は、前の行と同じ時刻とみなす） */
+    static Trace read(Path file) throws IOException {
+        List<double[]> rows = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int hash = line.indexOf('#');
+            if (hash >= 0) line = line.substring(0, hash);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            String[] f = line.split("\\s+");
+            if (f.length < 3) throw new IOException(file + ": 「時刻 x y」の形ではない行があります: " + line);
+            double time = Double.parseDouble(f[0]);
+            if (!rows.isEmpty()) time = Math.max(time, rows.get(rows.size() - 1)[0]);
+            rows.add(new double[]{time, Double.parseDouble(f[1]), Double.parseDouble(f[2])});
+        }
+        if (rows.size() < 2) throw new IOException(file + ": サンプルが2つ以上必要です");
+        String name = file.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        return toTrace(name, rows);
+    }
+
+    static void write(Trace tr, Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("# 時刻(ms) x y");
+            for (int i = 0; i < tr.size(); i++) out.printf(Locale.ROOT, "%.0f %.2f %.2f%n", tr.t[i], tr.x[i], tr.y[i]);
+        }
+    }
+
+    private static Trace toTrace(String name, List<double[]> rows) {
+        int n = rows.size();
+        double[] t = new double[n], x = new double[n], y = new double[n];
+        for (int i = 0; i < n; i++) {
+            double[] r = rows.get(i);
+            t[i] = r[0]; x[i] = r[1]; y[i] = r[2];
+        }
+        return new Trace(name, t, x, y);
+    }
+
+    /**
+     * 試しに使うトレースを作る
+     * マウスのサンプルに似せて、約 8 ミリ秒ごと（ゆらぎ ±1 ミリ秒）に、ミリ秒単位に丸めた時刻と
+     * 0.3 ピクセルほどの揺れを加えた位置を並べる
+     */
+    static List<Trace> synthetic(Random rnd) {
+        List<Trace> list = new ArrayList<>();
+        // 円：半径 150 ピクセルを1秒で1周
+        list.add(sample("circle", 2000, rnd, t -> {
+            double a = 2 * Math.PI * t / 1000.0;
+            return new double[]{400 + 150 * Math.cos(a), 300 + 150 * Math.sin(a)};
+        }));
+        // ジグザグ：右へ進みながら 120 ミリ秒ごとに上下に折り返す（折り返しでは一瞬止まる）
+        list.add(sample("zigzag", 2000, rnd, t -> {
+            double phase = (t % 240.0) / 240.0;
+            double tri = (phase < 0.5) ? phase * 2 : 2 - phase * 2;
+            double eased = (1 - Math.cos(Math.PI * tri)) / 2;
+            return new double[]{100 + t * 0.3, 200 + 150 * eased};
+        }));
+        // なぐり書き：周期の違う波の重ね合わせ
+        list.add(sample("scribble", 3000, rnd, t -> {
+            double s = t / 1000.0;
+            return new double[]{400 + 180 * Math.sin(2.1 * s) + 60 * Math.sin(7.3 * s + 1),
+                                300 + 140 * Math.sin(3.3 * s + 0.5) + 50 * Math.cos(9.1 * s)};
+        }));
+        // 止まっては動く線：400 ミリ秒ごとに 250 ミリ秒だけ、滑らかに加速・減速して右へ進む
+        list.add(sample("stopgo", 3000, rnd, t -> {
+            double k = Math.floor(t / 400.0), u = Math.min(1.0, (t - k * 400.0) / 250.0);
+            double eased = (1 - Math.cos(Math.PI * u)) / 2;
+            return new double[]{100 + (k + eased) * 80, 300};
+        }));
+        return list;
+    }
+
+    /** 時刻（ミリ秒）からカーソル位置を返す、試し用の動き */
+    private interface Motion { double[] at(double t); }
+
+    private static Trace sample(String name, double duration, Random rnd, Motion motion) {
+        List<double[]> rows = new ArrayList<>();
+        double time = 0;
+        while (time <= duration) {
+            double[] p = motion.at(time);
+            double when = Math.floor(time);
+            if (!rows.isEmpty()) when = Math.max(when, rows.get(rows.size() - 1)[0]);
+            rows.add(new double[]{when, p[0] + rnd.nextGaussian() * 0.3, p[1] + rnd.nextGaussian() * 0.3});
+            time += 8.0 + (rnd.nextDouble() * 2 - 1);
+        }
+        return toTrace(name, rows);
+    }
+}
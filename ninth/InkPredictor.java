@@ -0,0 +1,118 @@
+package ninth;
+
+/**
+ * 描画中のマウスの動きを、直近のサンプルから少し先まで予測するクラス
+ * 直近 WINDOW ミリ秒のサンプルに、時刻の2次式（位置・速度・加速度）を最小二乗法で当てはめ、
+ * horizon ミリ秒先の位置を求める。画面には、最後の実際の点からこの予測までを仮の線として描き、
+ * 次のサンプルが来たら描き直す（予測は図形には入れない）。
+ *
+ * 加速度は外れやすいので半分だけ効かせる。次の場合は予測しない（仮の線を描かない）：
+ * サンプルが足りない・時間の幅が短すぎる、ほとんど動いていない、
+ * 予測が今の進む向きと逆を向く（止まりかけ・折り返し）。
+ * 予測の長さは、今の速さで horizon ミリ秒進む距離の MAX_OVERSHOOT 倍までに抑える。
+ */
+public class InkPredictor {
+    // 当てはめに使うサンプルの時間の幅（ミリ秒）とサンプル数の上限
+    private static final double WINDOW = 40.0;
+    private static final int MAX_SAMPLES = 16;
+    // 当てはめに必要な時間の幅（ミリ秒。タイムスタンプの刻みが粗いときの外れを避ける）
+    private static final double MIN_SPAN = 3.0;
+    // これより遅ければ予測しない（ピクセル/ミリ秒）
+    private static final double MIN_SPEED = 0.05;
+    // 加速度を効かせる割合と、予測の長さの上限（今の速さで進む距離に対する倍率）
+    private static final double ACCEL_GAIN = 0.5;
+    private static final double MAX_OVERSHOOT = 1.5;
+
+    // サンプルのリングバッファ（時刻はミリ秒）
+    private final double[] xs = new double[MAX_SAMPLES], ys = new double[MAX_SAMPLES], ts = new double[MAX_SAMPLES];
+    private int head = 0, count = 0;
+    // 当てはめた速度（ピクセル/ミリ秒）と加速度（ピクセル/ミリ秒^2）。最後のサンプルの時刻での値
+    private double vx, vy, ax, ay;
+    private boolean fitted = false;
+
+    /** サンプルをすべて捨てる（線を描き始めるとき） */
+    public void reset() {
+        head = count = 0;
+        fitted = false;
+    }
+
+    /**
+     * サンプルを足し、速度と加速度を当てはめ直す
+     * 前のサンプルより古い時刻のものは、前のサンプルと同じ時刻とみなす
+     * @param x x座標
+     * @param y y座標
+     * @param time 時刻（ミリ秒）
+     */
+    public void add(double x, double y, double time) {
+        if (count > 0) time = Math.max(time, ts[(head + MAX_SAMPLES - 1) % MAX_SAMPLES]);
+        xs[head] = x; ys[head] = y; ts[head] = time;
+        head = (head + 1) % MAX_SAMPLES;
+        if (count < MAX_SAMPLES) count++;
+        fit();
+    }
+
+    /**
+     * 最後のサンプルから horizon ミリ秒先までの予測を、steps 個の点として返す
+     * @param horizon 予測する時間（ミリ秒）
+     * @param steps 点の数（1以上）
+     * @return 予測した点（x0, y0, x1, y1, ... の順、最後が horizon 先）。予測しないときはnull
+     */
+    public double[] predict(double horizon, int steps) {
+        if (!fitted || horizon <= 0 || steps < 1) return null;
+        double speed = Math.hypot(vx, vy);
+        if (speed < MIN_SPEED) return null;
+        int last = (head + MAX_SAMPLES - 1) % MAX_SAMPLES;
+        double x0 = xs[last], y0 = ys[last];
+        double limit = speed * horizon * MAX_OVERSHOOT;
+        double[] out = new double[steps * 2];
+        for (int i = 1; i <= steps; i++) {
+            double h = horizon * i / steps;
+            double dx = vx * h + ACCEL_GAIN * ax * h * h / 2, dy = vy * h + ACCEL_GAIN * ay * h * h / 2;
+            // 止まりかけ・折り返しでは、今の向きと逆へ伸びた仮の線が見えてしまうので予測しない
+            if (dx * vx + dy * vy <= 0) return null;
+            double len = Math.hypot(dx, dy);
+            if (len > limit) { dx *= limit / len; dy *= limit / len; }
+            out[(i - 1) * 2] = x0 + dx;
+            out[(i - 1) * 2 + 1] = y0 + dy;
+        }
+        return out;
+    }
+
+    /**
+     * 直近 WINDOW ミリ秒のサンプルに、最後のサンプルの時刻を 0 とした2次式を当てはめる
+     * （3点に満たないときは1次式。最後のサンプルを通るように、位置の項は最後の点に固定する）
+     */
+    private void fit() {
+        fitted = false;
+        int last = (head + MAX_SAMPLES - 1) % MAX_SAMPLES;
+        double t0 = ts[last], x0 = xs[last], y0 = ys[last];
+        // 最後の点を原点とした変位 d = v*tau + c*tau^2（c = 加速度/2）の正規方程式
+        double s2 = 0, s3 = 0, s4 = 0, bx1 = 0, bx2 = 0, by1 = 0, by2 = 0, span = 0;
+        int n = 0;
+        for (int k = 1; k < count; k++) {
+            int i = (last + MAX_SAMPLES - k) % MAX_SAMPLES;
+            double tau = ts[i] - t0;
+            if (-tau > WINDOW) break;
+            double dx = xs[i] - x0, dy = ys[i] - y0;
+            double t2 = tau * tau;
+            s2 += t2; s3 += t2 * tau; s4 += t2 * t2;
+            bx1 += dx * tau; bx2 += dx * t2;
+            by1 += dy * tau; by2 += dy * t2;
+            span = -tau;
+            n++;
+        }
+        if (n < 1 || span < MIN_SPAN) return;
+        double det = s2 * s4 - s3 * s3;
+        if (n >= 2 && det > 1e-9 * s2 * s4) {
+            vx = (s4 * bx1 - s3 * bx2) / det;
+            vy = (s4 * by1 - s3 * by2) / det;
+            ax = 2 * (s2 * bx2 - s3 * bx1) / det;
+            ay = 2 * (s2 * by2 - s3 * by1) / det;
+        } else {
+            // 点が2つだけ（または時刻が揃っている）ときは速度だけ
+            vx = bx1 / s2; vy = by1 / s2;
+            ax = ay = 0;
+        }
+        fitted = true;
+    }
+}
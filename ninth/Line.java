@@ -9,18 +9,29 @@ import java.awt.geom.*;
  * 選択しやすくするため、線からの距離でヒット判定を行う
  */
 public class Line extends Figure {
-    Line2D f;  // 描画用の線分オブジェクト
+    private static final long serialVersionUID = -4559055078023201054L;
+
+    /**
+     * 直線の形状を作成
+     * 始点(x, y)から終点(x+w, y+h)までの線分
+     */
+    @Override protected Shape createShape() {
+        return new Line2D.Double(x, y, x + w, y + h);
+    }
+
+    /** 直線は塗らずに線だけを描く */
+    @Override public boolean paintsFill() { return false; }
+    @Override public boolean paintsStroke() { return true; }
 
     /**
      * 直線を描画
-     * 始点から終点までの線分を描く
+     * キャッシュ済みの線分を描く
      */
     @Override public void paint(Graphics2D g) {
-        // 始点(x, y)から終点(x+w, y+h)までの線分を作成
-        f = new Line2D.Double(x, y, x + w, y + h);
+        Shape f = getShape();
         
         // 線のスタイルを設定（線幅、端を丸める、接続部を丸める）
-        g.setStroke(new BasicStroke((float)strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.setStroke(getStroke());
         g.setPaint(color);  // 描画色を設定
         
         // 直線を描画
@@ -36,21 +47,19 @@ public class Line extends Figure {
      */
     @Override
     public boolean contains(double px, double py) {
-        // 線分を再作成
-        Line2D seg = new Line2D.Double(x, y, x + w, y + h);
         // 点から線分までの最短距離を計算
-        double dist = seg.ptSegDist(px, py);
+        double dist = Line2D.ptSegDist(x, y, x + w, y + h, px, py);
         // 距離がしきい値以下なら選択可能（最低2.0または線幅の半分）
         return dist <= Math.max(2.0, strokeWidth/2.0);
     }
 
     /**
-     * 外接矩形を取得
+     * 外接矩形を計算
      * 線分を囲む矩形を返す。選択しやすくするためパディングを追加
      * @return 線分を囲む矩形（パディング付き）
      */
     @Override
-    public java.awt.geom.Rectangle2D getBounds2D() {
+    protected java.awt.geom.Rectangle2D computeBounds() {
         // 左端と上端を計算（始点と終点の小さい方）
         double left = Math.min(x, x + w);
         double top = Math.min(y, y + h);
@@ -0,0 +1,38 @@
+package ninth;
+
+/**
+ * 図形を平行移動する編集
+ * 移動量だけを持つので、点の多いフリーハンドでも履歴の大きさは一定
+ */
+public class MoveEdit implements Edit {
+    private static final long serialVersionUID = 1L;
+
+    private final int index;
+    private final double dx, dy;
+
+    /**
+     * @param index 移動した図形の位置
+     * @param dx x方向の移動量
+     * @param dy y方向の移動量
+     */
+    public MoveEdit(int index, double dx, double dy) {
+        this.index = index;
+        this.dx = dx;
+        this.dy = dy;
+    }
+
+    @Override
+    public void undo(PaintCanvas canvas) {
+        Figure f = canvas.getFigure(index);
+        canvas.changeFigure(f, () -> f.move(-dx, -dy));
+    }
+
+    @Override
+    public void redo(PaintCanvas canvas) {
+        Figure f = canvas.getFigure(index);
+        canvas.changeFigure(f, () -> f.move(dx, dy));
+    }
+
+    @Override
+    public long sizeBytes() { return 40; }
+}
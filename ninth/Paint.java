@@ -31,6 +31,11 @@ public class Paint extends JFrame {
      * @param args コマンドライン引数（ファイル名を指定可能）
      */
     public static void main(String[] args) {
+        // --batch のときは画面を作らずに PNG へ変換する（BatchRender を参照）
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchRender.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         Paint p = new Paint();
         PaintCanvas canvas;
         String fname = null;
@@ -68,10 +73,11 @@ public class Paint extends JFrame {
         JButton openBtn = new JButton("開く");           // ファイル読み込み
         JButton saveBtn = new JButton("保存");           // ファイル保存
         JButton exportBtn = new JButton("PNG出力");      // PNG画像として出力
+        JButton svgBtn = new JButton("SVG出力");         // SVG画像として出力
         
         // 保存サイズの設定用スピナー（幅・高さ）
-        SpinnerNumberModel wModel = new SpinnerNumberModel(800, 16, 8192, 16);
-        SpinnerNumberModel hModel = new SpinnerNumberModel(600, 16, 8192, 16);
+        SpinnerNumberModel wModel = new SpinnerNumberModel(800, 16, 32768, 16);
+        SpinnerNumberModel hModel = new SpinnerNumberModel(600, 16, 32768, 16);
         JSpinner widthSpinner = new JSpinner(wModel);
         JSpinner heightSpinner = new JSpinner(hModel);
         JLabel sizeLabel = new JLabel("保存サイズ: 800 x 600");
@@ -79,6 +85,7 @@ public class Paint extends JFrame {
         filePanel.add(openBtn);
         filePanel.add(saveBtn);
         filePanel.add(exportBtn);
+        filePanel.add(svgBtn);
         filePanel.add(new JLabel("幅:")); filePanel.add(widthSpinner);
         filePanel.add(new JLabel("高:")); filePanel.add(heightSpinner);
         filePanel.add(sizeLabel);
@@ -137,13 +144,13 @@ public class Paint extends JFrame {
         openBtn.addActionListener(ev -> {
             JFileChooser fc = new JFileChooser();
             if (fc.showOpenDialog(p) == JFileChooser.APPROVE_OPTION) {
-                canvas.load(fc.getSelectedFile().getAbsolutePath());
+                canvas.startLoad(fc.getSelectedFile().getAbsolutePath());
             }
         });
         saveBtn.addActionListener(ev -> {
             JFileChooser fc = new JFileChooser();
             if (fc.showSaveDialog(p) == JFileChooser.APPROVE_OPTION) {
-                canvas.save(fc.getSelectedFile().getAbsolutePath());
+                canvas.startSave(fc.getSelectedFile().getAbsolutePath(), null);
             }
         });
         ChangeListener sizeChange = ev -> {
@@ -179,6 +186,21 @@ public class Paint extends JFrame {
                 }
             }
         });
+        svgBtn.addActionListener(ev -> {
+            JFileChooser fc2 = new JFileChooser();
+            if (fc2.showSaveDialog(p) == JFileChooser.APPROVE_OPTION) {
+                String path = fc2.getSelectedFile().getAbsolutePath();
+                if (!path.toLowerCase().endsWith(".svg")) path += ".svg";
+                int w = (Integer) widthSpinner.getValue();
+                int h = (Integer) heightSpinner.getValue();
+                try {
+                    canvas.exportSvg(path, w, h);
+                    JOptionPane.showMessageDialog(p, "SVG を出力しました: " + path);
+                } catch (Exception ex) {
+                    JOptionPane.showMessageDialog(p, "出力に失敗しました: " + ex.getMessage());
+                }
+            }
+        });
         colorBtn.addActionListener(ev -> {
             Color c = JColorChooser.showDialog(p, "色を選択", Color.BLACK);
             if (c != null) canvas.setSelectedColor(c);
@@ -195,6 +217,26 @@ public class Paint extends JFrame {
             double v = (Double) strokeSpinner.getValue();
             canvas.setStrokeWidth((float)v);
         });
+        // フリーハンドを描き終えたときに点を間引く許容誤差（ピクセル）
+        JSpinner simplifySpinner = new JSpinner(new SpinnerNumberModel(0.5, 0.0, 5.0, 0.1));
+        optPanel.add(new JLabel("間引き:"));
+        optPanel.add(simplifySpinner);
+        simplifySpinner.addChangeListener(ev -> canvas.setSimplifyTolerance((Double) simplifySpinner.getValue()));
+        // 間引く代わりに曲線に置き換えるときの許容誤差（ピクセル、0なら置き換えない）
+        JSpinner curveSpinner = new JSpinner(new SpinnerNumberModel(0.0, 0.0, 5.0, 0.5));
+        optPanel.add(new JLabel("曲線化:"));
+        optPanel.add(curveSpinner);
+        curveSpinner.addChangeListener(ev -> canvas.setCurveError((Double) curveSpinner.getValue()));
+        // 1秒あたりの再描画の回数（画面のリフレッシュレートに合わせる）
+        JComboBox<Integer> frameBox = new JComboBox<>(new Integer[]{60, 120, 144});
+        optPanel.add(new JLabel("描画Hz:"));
+        optPanel.add(frameBox);
+        frameBox.addActionListener(ev -> canvas.setFrameRate((Integer) frameBox.getSelectedItem()));
+        // フリーハンド・直線を描くときに、マウスの動きを何ミリ秒先まで予測して仮の線を描くか（0なら予測しない）
+        JComboBox<Integer> predictBox = new JComboBox<>(new Integer[]{0, 8, 16, 24, 32});
+        optPanel.add(new JLabel("予測ms:"));
+        optPanel.add(predictBox);
+        predictBox.addActionListener(ev -> canvas.setPredictMillis((Integer) predictBox.getSelectedItem()));
 
         JButton undoBtn = new JButton("Undo");
         JButton redoBtn = new JButton("Redo");
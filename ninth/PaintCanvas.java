@@ -21,6 +21,8 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
     Paint p4;
     // すべての図形を保持するリスト（描画順）
     ArrayList<Figure> objList;
+    // objList の図形の外接矩形を登録した空間インデックス（クリック判定用）
+    SpatialGrid figureIndex = new SpatialGrid();
     // 描画モード（1=点、2=通常図形、3=フリーハンド、4=折れ線）
     int mode = 0;
     
@@ -35,9 +37,22 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
     // 消しゴムモード中かどうか
     private boolean erasing = false;
     // 消しゴムが通った経路の点列
-    private java.util.List<java.awt.geom.Point2D.Double> eraserPoints = new ArrayList<>();
+    private PointBuffer eraserPoints = new PointBuffer();
     // 消しゴムの半径（ピクセル）
     private double eraserRadius = 8.0;
+    // ドラッグを始めたときの図形リスト（離したときに、これとの差を1つの編集として記録する）
+    private ArrayList<Figure> eraserBase = null;
+    // ドラッグ中に消した元からある図形と、差し込んでまだ残っている断片
+    private final IdentityHashMap<Figure, Boolean> eraserRemoved = new IdentityHashMap<>();
+    private final IdentityHashMap<Figure, Boolean> eraserAdded = new IdentityHashMap<>();
+    // ドラッグ中に調べたフリーハンドの、点 ERASER_CHUNK 個ごとの範囲（minx, miny, maxx, maxy の順）
+    private final IdentityHashMap<Freehand, double[]> eraserChunks = new IdentityHashMap<>();
+    private static final int ERASER_CHUNK = 32;
+    // ドラッグ中に調べた、曲線にしたフリーハンドをたどった点列（点の間隔は ERASER_STEP 以下）
+    private final IdentityHashMap<Freehand, Freehand> eraserSamples = new IdentityHashMap<>();
+    private static final double ERASER_STEP = 2.0;
+    // 曲線にしたフリーハンドを分割した断片を、曲線に置き換え直すときの許容誤差（点は元の曲線の上にある）
+    private static final double ERASER_REFIT_ERROR = 0.25;
     
     // === 選択・移動・リサイズモード用 ===
     // 現在選択中の図形
@@ -50,18 +65,79 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
     private double selInitialX, selInitialY, selInitialW, selInitialH;
     // マウスドラッグ開始座標
     private double selMouseStartX, selMouseStartY;
+    // リサイズ開始時の点列（フリーハンド・折れ線のみ）
+    private PointBuffer resizeOrigin = null;
     // アクティブなハンドルID: 0=なし、1〜8=コーナー/辺（NW,N,NE,E,SE,S,SW,W）
     private int activeHandle = 0;
     // ハンドルの半サイズ（ピクセル）
     private static final int HS = 6;
+    // 選択枠の点線
+    private static final BasicStroke SELECTION_STROKE =
+            new BasicStroke(1.0f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 1.0f, new float[]{4f,4f}, 0f);
+    // 折れ線のプレビュー線（線幅が変わったときだけ作り直す）
+    private BasicStroke previewStroke = null;
     
     // === Undo/Redo機能用 ===
-    // Undo用スタック（シリアライズされたキャンバス状態のスナップショット）
-    private Deque<byte[]> undoStack = new ArrayDeque<>();
-    // Redo用スタック
-    private Deque<byte[]> redoStack = new ArrayDeque<>();
-    // 履歴の最大保持数
-    private int maxHistory = 50;
+    // 操作ごとの差分（Edit）の履歴（メモリ上の大きさで上限を設け、古いものは圧縮・退避する）
+    private History history = new History();
+    // 確定した編集を .dat の隣に追記するジャーナル（自動保存。ファイルを開く・保存すると結び付く）
+    private final DrawingJournal journal = new DrawingJournal();
+    // リサイズ開始時の図形の複製（確定時に変更前の状態として履歴に残す）
+    private Figure resizeBefore = null;
+
+    // === 描画キャッシュ用 ===
+    // 確定済み図形（objList）を一度だけラスタライズしておくオフスクリーン画像
+    private java.awt.image.BufferedImage sceneCache = null;
+    // キャッシュ全体を作り直す必要があるか（objList 全体が変わったとき true）
+    private boolean sceneDirty = true;
+    // キャッシュのうち描き直しが必要な範囲（一部の図形だけが変わったとき）
+    private Rectangle2D sceneDirtyRegion = null;
+    // キャッシュ作成時の背景色と画面スケール（変化したら作り直す）
+    private Color sceneBackground = null;
+    private double sceneScaleX = 1.0, sceneScaleY = 1.0;
+    // 移動・リサイズ中の図形（キャッシュから外し、毎フレーム上に重ねて描く）
+    private Figure liftedFigure = null;
+    // 描画中のフリーハンドを、点が増えるたびに新しい線分だけ描き足していく透明な画像
+    // （線は不透明な色で描き、画面に重ねるときに色の透明度を掛ける。線分の継ぎ目が濃くならないように）
+    private java.awt.image.BufferedImage strokeOverlay = null;
+    private Graphics2D strokeOverlayGraphics = null;
+    // strokeOverlay に描いているフリーハンドと、描いた範囲（次の線を描く前に消す範囲）
+    private Freehand overlayStroke = null;
+    private Rectangle2D strokeOverlayUsed = null;
+
+    // === 読み込み用 ===
+    // 画面にかかる部分だけを読み込んで表示し、残りを裏で読み込んでいる間はtrue
+    private boolean loading = false;
+    // 裏で保存中の図形のスナップショット（保存中でなければnull）
+    private SaveSnapshot saveSnapshot = null;
+
+    // === 部分再描画用 ===
+    // 再描画範囲に加える余白（アンチエイリアスや座標の丸め誤差の分）
+    private static final double DAMAGE_PAD = 2.0;
+    // 消しゴムの軌跡全体の範囲（軌跡を消すときに再描画する）
+    private Rectangle2D eraserTrailBounds = null;
+
+    // === フレーム単位の再描画用 ===
+    // 1秒あたりの再描画の回数（0ならマウスイベントごとにすぐ再描画を依頼する）
+    private int frameRate = 60;
+    // 次のフレームで再描画する範囲（フレームの間に受けた再描画範囲をまとめたもの）
+    private Rectangle2D pendingDamage = null;
+    // 次のフレームで、選択中の図形を最後のマウス位置に合わせて移動・リサイズするか
+    private boolean pendingDrag = false;
+    // フレームを刻むタイマー（イベントディスパッチスレッドで動く。することがなくなったら止める）
+    private final javax.swing.Timer frameTimer = new javax.swing.Timer(1000 / 60, e -> runFrame());
+
+    // === 予測インク用 ===
+    // フリーハンド・直線を描いている間、マウスの動きを何ミリ秒先まで予測して仮の線を描くか（0なら予測しない）
+    private int predictMillis = 0;
+    private final InkPredictor predictor = new InkPredictor();
+    // 今のマウス位置から予測した位置までの仮の線（x0, y0, x1, y1, ... の順。描いていなければnull）
+    // 図形には入れず、次のマウスイベントで描き直す
+    private double[] predictedTail = null;
+    // predictedTail を結んだ線（予測し直すときに作り直し、再描画では使い回す）
+    private final Path2D.Double tailPath = new Path2D.Double();
+    // 仮の線の点の数（今のマウス位置を除く）
+    private static final int PREDICT_STEPS = 3;
 
     /**
      * コンストラクタ
@@ -74,9 +150,11 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
         // マウスイベントリスナーを登録
         addMouseListener(this);
         addMouseMotionListener(this);
+        // 自動保存の書き込みに失敗したら、イベントスレッドで1度だけ知らせる
+        journal.setFailureListener(() -> SwingUtilities.invokeLater(this::reportJournalFailure));
 
-        // ファイル名が指定されていれば読み込む
-        if(fname != null) load(fname);
+        // ファイル名が指定されていれば裏で読み込む
+        if(fname != null) startLoad(fname);
     }
 
     /**
@@ -86,35 +164,39 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
      * - 各描画モード：新しい図形の作成開始
      */
     @Override public void mousePressed(MouseEvent e) {
+        if (loading) return;  // 読み込みが終わるまでは編集しない
         Point2D p = e.getPoint();
         x = p.getX();
         y = p.getY();
+        // 変更前のオーバーレイ範囲（折れ線のプレビュー線など）
+        Rectangle2D before = overlayBounds();
 
         // === 右クリック：既存図形の編集 ===
         if (e.getButton() == MouseEvent.BUTTON3) {
-            // 最上層の図形から順に当たり判定
-            for (int i = objList.size() - 1; i >= 0; i--) {
-                Figure f = objList.get(i);
+            // クリック位置にかかる図形だけを最上層から順に当たり判定
+            for (Figure f : figureIndex.figuresAt(x, y)) {
                 if (f.contains(x, y)) {
-                    // Undo用スナップショットを保存
-                    pushUndo();
-                    
+                    // ダイアログで新しい値を集めてから、変更前後の値を持つ編集として適用する
+                    Color newColor = f.color;
+                    double newWidth = f.strokeWidth;
+
                     // 色選択ダイアログを表示
                     Color c = JColorChooser.showDialog(this, "色を選択", f.color != null ? f.color : Color.BLACK);
-                    if (c != null) f.color = c;
+                    if (c != null) newColor = c;
                     
                     // 線幅入力ダイアログを表示
                     String in = JOptionPane.showInputDialog(this, "線幅を入力:", f.strokeWidth);
                     if (in != null) {
-                        try { f.strokeWidth = Float.parseFloat(in); } catch (Exception ex) {}
+                        try { newWidth = Float.parseFloat(in); } catch (Exception ex) {}
                     }
                     
                     // 塗りつぶしの確認ダイアログを表示
                     int ans = JOptionPane.showConfirmDialog(this, "塗りにしますか?", "塗り", JOptionPane.YES_NO_OPTION);
-                    f.filled = (ans == JOptionPane.YES_OPTION);
+                    boolean newFilled = (ans == JOptionPane.YES_OPTION);
 
-                    redoStack.clear();  // 新操作でRedoスタックをクリア
-                    repaint();
+                    PropertyEdit edit = new PropertyEdit(indexOfFigure(f), f.color, f.strokeWidth, f.filled,
+                                                         newColor, newWidth, newFilled);
+                    if (!edit.isEmpty()) perform(edit);
                     return;
                 }
             }
@@ -122,9 +204,8 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
 
         // === 選択モード：図形の選択と移動/リサイズ開始 ===
         if (p4.r0 != null && p4.r0.isSelected()) {
-            // 最上層の図形から順に当たり判定
-            for (int i = objList.size() - 1; i >= 0; i--) {
-                Figure f = objList.get(i);
+            // クリック位置にかかる図形だけを最上層から順に当たり判定
+            for (Figure f : figureIndex.figuresAt(x, y)) {
                 java.awt.geom.Rectangle2D bb = f.getBounds2D();
                 // 図形本体またはバウンディングボックスがクリックされたか判定
                 if (f.contains(x, y) || (bb != null && bb.contains(x, y))) {
@@ -144,11 +225,19 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
                     // どのハンドルがクリックされたかを判定（0=なし、1〜8=コーナー/辺）
                     activeHandle = getHandleAt(selInitialX, selInitialY, selInitialW, selInitialH, x, y);
                     resizing = (activeHandle != 0);  // ハンドルがクリックされたらリサイズモード
-                    
-                    // 変更前のスナップショットを保存
-                    pushUndo();
-                    redoStack.clear();
-                    repaint();
+                    // 点列を持つ図形はリサイズ開始時の点列を控えておく
+                    PointBuffer pts = pointsOf(f);
+                    resizeOrigin = (resizing && pts != null) ? pts.copy() : null;
+                    // リサイズは変更前の複製と入れ替える編集として記録する
+                    // （移動は移動量だけを記録するので複製しない。クリックだけなら何も記録しない）
+                    resizeBefore = resizing ? f.copy() : null;
+
+                    // ドラッグ中はその場で書き換えるので、保存中なら先に控えておく
+                    beforeMutate(f);
+                    // ドラッグ中はキャッシュから外して上に重ねて描く
+                    liftedFigure = f;
+                    invalidateScene(strokedBounds(f));
+                    damage(overlayBounds());
                     return;
                 }
             }
@@ -166,8 +255,6 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
                 obj.color = selectedColor;
                 obj.strokeWidth = strokeWidth;
                 obj.filled = filled;
-                pushUndo();  // 開始時のスナップショット
-                redoStack.clear();
             }
         } else if(p4.r2.isSelected()){ 
             // 円モード
@@ -189,7 +276,11 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
             // 消しゴムモード：経路記録開始
             erasing = true;
             eraserPoints.clear();
-            eraserPoints.add(new java.awt.geom.Point2D.Double(x, y));
+            eraserPoints.add(x, y);
+            eraserTrailBounds = eraserBrushBounds(x, y);
+            damage(eraserTrailBounds);
+            eraserBase = new ArrayList<>(objList);
+            eraseSegment(x, y, x, y);
         }
         
         // 新しく作る図形に開始座標を設定
@@ -201,7 +292,12 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
             obj.strokeWidth = strokeWidth;
             obj.filled = filled;
         }
-        repaint();
+        predictedTail = null;
+        if (predicting()) {
+            predictor.reset();
+            predictor.add(x, y, e.getWhen());
+        }
+        damage(union(before, overlayBounds()));
     }
 
     /**
@@ -212,89 +308,124 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
      * - その他の描画モード：図形のサイズを更新
      */
     @Override public void mouseDragged(MouseEvent e) {
+        if (loading) return;  // 読み込みを始めるときに操作は確定させてある（finishGesture）
         Point2D p = e.getPoint();
         x = p.getX();
         y = p.getY();
 
         if (erasing) {
-            // 消しゴムモード：経路に点を追加
-            eraserPoints.add(new java.awt.geom.Point2D.Double(x, y));
-        } else if (selectedFigure != null) {
+            // 消しゴムモード：直前の点からの区間で消し、経路に点を追加（新しいブラシの円だけを再描画）
+            int last = eraserPoints.size() - 1;
+            eraseSegment(eraserPoints.getX(last), eraserPoints.getY(last), x, y);
+            eraserPoints.add(x, y);
+            Rectangle2D brush = eraserBrushBounds(x, y);
+            eraserTrailBounds = union(eraserTrailBounds, brush);
+            damage(brush);
+            return;
+        }
+
+        if (obj instanceof Freehand) {
+            // フリーハンドモード：現在のマウス位置を点として追加
+            // 変化するのは最後の線分だけなので、それを重ね描き用の画像に描き足し、その範囲だけを再描画
+            Freehand fh = (Freehand) obj;
+            PointBuffer pts = fh.getPoints();
+            double lastX = pts.getX(pts.size() - 1), lastY = pts.getY(pts.size() - 1);
+            fh.addPoint(x, y);
+            appendStrokeSegment(fh, lastX, lastY, x, y);
+            // 予測した仮の線は、前の分を消して新しい分を描く
+            Rectangle2D tail = tailBounds();
+            updatePrediction(e);
+            damage(union(segmentBounds(lastX, lastY, x, y, fh.strokeWidth), union(tail, tailBounds())));
+            return;
+        }
+
+        if (selectedFigure != null) {
             // 選択モード：移動またはリサイズ
-            if (resizing) {
-                // === リサイズ処理 ===
-                // 選択開始時の境界ボックスを基準に、ハンドルに応じて新しい境界を計算
-                double left = selInitialX;
-                double top = selInitialY;
-                double right = selInitialX + selInitialW;
-                double bottom = selInitialY + selInitialH;
-                
-                // アクティブなハンドルに応じて境界を更新
-                switch (activeHandle) {
-                    case 1: left = x; top = y; break;       
-                    case 2: top = y; break;                 
-                    case 3: right = x; top = y; break;    
-                    case 4: right = x; break;              
-                    case 5: right = x; bottom = y; break;   
-                    case 6: bottom = y; break;              
-                    case 7: left = x; bottom = y; break;   
-                    case 8: left = x; break;                
-                }
-                
-                // 新しいサイズを計算（最小1ピクセル）
-                double newW = right - left;
-                double newH = bottom - top;
-                if (newW < 1) newW = 1;
-                if (newH < 1) newH = 1;
-                
-                // 図形の種類に応じてリサイズを適用
-                if (selectedFigure instanceof Freehand) {
-                    // フリーハンド：すべての点をスケール変換
-                    Freehand fh = (Freehand) selectedFigure;
-                    ArrayList<java.awt.geom.Point2D.Double> pts = fh.getPoints();
-                    ArrayList<java.awt.geom.Point2D.Double> newPts = new ArrayList<>();
-                    double ox = selInitialX, oy = selInitialY, ow = selInitialW, oh = selInitialH;
-                    if (ow <= 0) ow = 1; if (oh <= 0) oh = 1;
-                    for (java.awt.geom.Point2D.Double pt : pts) {
-                        double nx = left + ((pt.x - ox) * newW / ow);
-                        double ny = top + ((pt.y - oy) * newH / oh);
-                        newPts.add(new java.awt.geom.Point2D.Double(nx, ny));
-                    }
-                    pts.clear();
-                    pts.addAll(newPts);
-                } else if (selectedFigure instanceof Circle) {
-                    // 円：中心と半径を更新（幅を半径として使用）
-                    selectedFigure.x = left + newW / 2.0;
-                    selectedFigure.y = top + newH / 2.0;
-                    selectedFigure.w = newW / 2.0;
-                    selectedFigure.h = 0;
-                } else {
-                    // その他の図形：境界ボックスを直接更新
-                    selectedFigure.x = left;
-                    selectedFigure.y = top;
-                    selectedFigure.w = newW;
-                    selectedFigure.h = newH;
-                }
+            // 図形の書き換えは次のフレームで、最後のマウス位置に対して1回だけ行う
+            if (frameRate > 0) {
+                pendingDrag = true;
+                scheduleFrame();
             } else {
-                // === 移動処理 ===
-                // 前回からの移動量を計算して図形を移動
-                double dx = x - lastMouseX;
-                double dy = y - lastMouseY;
-                selectedFigure.move(dx, dy);
-                lastMouseX = x; lastMouseY = y;
+                applySelectionDrag();
             }
-        } else if (obj instanceof Freehand) {
-            // フリーハンドモード：現在のマウス位置を点として追加
-            ((Freehand)obj).addPoint(x, y);
-        } else if(mode == 1) {
+            return;
+        }
+
+        Rectangle2D before = overlayBounds();
+        if(mode == 1) {
             // 点モード：現在のマウス位置に移動
             obj.moveto(x, y);
         } else if(mode == 2) {
             // 通常図形モード：ドラッグ量に応じてサイズを更新
             obj.setWH(x - obj.x, y - obj.y);
+            updatePrediction(e);
         }
 
-        repaint();  // 再描画
+        damage(union(before, overlayBounds()));  // 変化した範囲だけ再描画
+    }
+
+    /**
+     * 選択中の図形を、今のマウス位置 (x, y) に合わせて移動またはリサイズする
+     * フレーム単位で再描画するときは、1フレームに1回だけ呼ばれる（間のマウスイベントはまとめる）
+     */
+    private void applySelectionDrag() {
+        Rectangle2D before = overlayBounds();
+        if (resizing) {
+            // === リサイズ処理 ===
+            // 選択開始時の境界ボックスを基準に、ハンドルに応じて新しい境界を計算
+            double left = selInitialX;
+            double top = selInitialY;
+            double right = selInitialX + selInitialW;
+            double bottom = selInitialY + selInitialH;
+            
+            // アクティブなハンドルに応じて境界を更新
+            switch (activeHandle) {
+                case 1: left = x; top = y; break;       
+                case 2: top = y; break;                 
+                case 3: right = x; top = y; break;    
+                case 4: right = x; break;              
+                case 5: right = x; bottom = y; break;   
+                case 6: bottom = y; break;              
+                case 7: left = x; bottom = y; break;   
+                case 8: left = x; break;                
+            }
+            
+            // 新しいサイズを計算（最小1ピクセル）
+            double newW = right - left;
+            double newH = bottom - top;
+            if (newW < 1) newW = 1;
+            if (newH < 1) newH = 1;
+            
+            // 図形の種類に応じてリサイズを適用
+            PointBuffer pts = pointsOf(selectedFigure);
+            if (pts != null) {
+                // フリーハンド・折れ線：すべての点をスケール変換
+                // （前回のドラッグ結果ではなく、押した時点の点列から毎回計算する）
+                double ox = selInitialX, oy = selInitialY, ow = selInitialW, oh = selInitialH;
+                if (ow <= 0) ow = 1; if (oh <= 0) oh = 1;
+                pts.setScaled(resizeOrigin, ox, oy, newW / ow, newH / oh, left, top);
+                selectedFigure.x = pts.getX(0);
+                selectedFigure.y = pts.getY(0);
+                selectedFigure.invalidate();
+            } else if (selectedFigure instanceof Circle) {
+                // 円：中心と半径を更新（幅を半径として使用）
+                selectedFigure.moveto(left + newW / 2.0, top + newH / 2.0);
+                selectedFigure.setWH(newW / 2.0, 0);
+            } else {
+                // その他の図形：境界ボックスを直接更新
+                selectedFigure.moveto(left, top);
+                selectedFigure.setWH(newW, newH);
+            }
+        } else {
+            // === 移動処理 ===
+            // 前回からの移動量を計算して図形を移動
+            double dx = x - lastMouseX;
+            double dy = y - lastMouseY;
+            selectedFigure.move(dx, dy);
+            lastMouseX = x; lastMouseY = y;
+        }
+        figureIndex.update(selectedFigure);
+        damage(union(before, overlayBounds()));  // 変化した範囲だけ再描画
     }
 
     /**
@@ -304,123 +435,186 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
      * - 描画モード：図形をリストに追加して確定
      */
     @Override public void mouseReleased(MouseEvent e) {
+        if (loading) return;  // 読み込みを始めるときに操作は確定させてある（finishGesture）
         Point2D p = e.getPoint();
-        x = p.getX();
-        y = p.getY();
+        finishGesture(p.getX(), p.getY());
+    }
+
+    /**
+     * ドラッグ中の操作を (px, py) で確定する（マウスボタンを離したときの処理）
+     * 読み込みを始めるときにも、最後のマウス位置で呼んで確定させておく
+     * （消しゴムと移動は図形をその場で書き換えているので、捨てると図形リストと履歴・ジャーナルが食い違うため）。
+     * 操作中でなければ何もしない。
+     */
+    private void finishGesture(double px, double py) {
+        // まだ当てはめていない移動・リサイズを先に済ませる（確定する形を最後のドラッグ位置に合わせる）
+        if (pendingDrag) {
+            pendingDrag = false;
+            applySelectionDrag();
+        }
+        x = px;
+        y = py;
         
         if (erasing) {
             // === 消しゴムモード終了 ===
-            pushUndo();           // スナップショット保存
-            applyEraser();        // 消しゴム処理実行
-            redoStack.clear();
+            // 図形はドラッグ中に消してあるので、始めたときとの差を1回の操作として記録する
+            Rectangle2D trail = eraserTrailBounds;
+            ReplaceEdit edit = eraserEdit();
             erasing = false;
             eraserPoints.clear();
+            eraserTrailBounds = null;
+            eraserChunks.clear();
+            eraserSamples.clear();
+            eraserBase = null;
+            eraserRemoved.clear();
+            eraserAdded.clear();
             mode = 0;
-            repaint();
+            if (!edit.isEmpty()) recordEdit(edit);
+            damage(trail);        // 軌跡を消す
             return;
         }
 
+        Rectangle2D before = overlayBounds();
+        predictedTail = null;  // 仮の線は確定する図形に入れない
+
         // 図形のサイズを最終更新
         if(mode == 1) obj.moveto(x, y);
         else if(mode == 2) obj.setWH(x - obj.x, y - obj.y);
 
         // === 選択モード：移動/リサイズを確定 ===
         if (selectedFigure != null) {
-            // mousePressed で既に Undo スナップショットを保存済み
+            // 実際に動かしたときだけ履歴に記録する
+            Figure f = selectedFigure;
+            if (resizing) {
+                if (!sameGeometry(resizeBefore, f)) recordEdit(ReplaceEdit.replace(indexOfFigure(f), resizeBefore, f.copy()));
+            } else {
+                double dx = lastMouseX - selMouseStartX, dy = lastMouseY - selMouseStartY;
+                if (dx != 0 || dy != 0) recordEdit(new MoveEdit(indexOfFigure(f), dx, dy));
+            }
             selectedFigure = null;
             activeHandle = 0;
             resizing = false;
-            redoStack.clear();
+            resizeOrigin = null;
+            resizeBefore = null;
+            // 移動後の位置でキャッシュに戻す
+            Rectangle2D after = strokedBounds(liftedFigure);
+            liftedFigure = null;
+            invalidateScene(after);
             mode = 0;
-            repaint();
+            damage(union(before, after));
             return;
         }
 
         // === 描画モード：図形を確定してリストに追加 ===
         // 折れ線モード（mode==4）以外は、リリース時に図形を確定
         if(mode >= 1 && mode != 4){
-            pushUndo();           // 変更前のスナップショット保存
-            objList.add(obj);     // 図形をリストに追加
+            Figure f = obj;
             obj = null;           // 描画中オブジェクトをクリア
-            redoStack.clear();    // 新操作でRedoスタックをクリア
+            overlayStroke = null; // 重ね描き用の画像は次の線まで取っておく（キャッシュには addFigure で描かれる）
+            // フリーハンドはマウスの細かな揺れを間引いてから（または曲線に置き換えてから）確定する
+            if (f instanceof Freehand) {
+                if (curveError > 0) ((Freehand) f).fitCurves(curveError);
+                else ((Freehand) f).simplify(simplifyTolerance);
+            }
+            addFigure(f);         // 図形をリストの最前面に追加
         }
         mode = 0;
-        repaint();
+        damage(union(before, overlayBounds()));
     }
 
     @Override public void mouseEntered(MouseEvent e) {}
     @Override public void mouseExited(MouseEvent e) {}
     @Override public void mouseClicked(MouseEvent e) {
+        if (loading) return;
         if (p4.r8 != null && p4.r8.isSelected()) {
             Point2D p = e.getPoint();
             double px = p.getX(), py = p.getY();
             if (obj instanceof Polyline) {
+                Rectangle2D before = overlayBounds();
                 if (e.getClickCount() == 2) {
                     Polyline pl = (Polyline) obj;
 
-                    java.util.List<java.awt.geom.Point2D.Double> pts = pl.getPoints();
-                    if (pts.isEmpty() || Math.hypot(pts.get(pts.size()-1).x - px, pts.get(pts.size()-1).y - py) > 0.5) {
+                    PointBuffer pts = pl.getPoints();
+                    if (pts.isEmpty() || Math.hypot(pts.getX(pts.size()-1) - px, pts.getY(pts.size()-1) - py) > 0.5) {
                         pl.addPoint(px, py);
                     }
-                    objList.add(obj);
+                    Figure f = obj;
                     obj = null;
                     mode = 0;
-                    redoStack.clear();
-                    repaint();
+                    addFigure(f);
+                    damage(before);
                 } else {
                 
                     Polyline pl = (Polyline) obj;
-                    java.util.List<java.awt.geom.Point2D.Double> pts = pl.getPoints();
-                    if (pts.isEmpty() || Math.hypot(pts.get(pts.size()-1).x - px, pts.get(pts.size()-1).y - py) > 0.5) {
+                    PointBuffer pts = pl.getPoints();
+                    if (pts.isEmpty() || Math.hypot(pts.getX(pts.size()-1) - px, pts.getY(pts.size()-1) - py) > 0.5) {
                         pl.addPoint(px, py);
                     }
-                    repaint();
+                    damage(union(before, overlayBounds()));
                 }
             } else {
             }
         }
     }
     @Override public void mouseMoved(MouseEvent e) {
+        if (!(obj instanceof Polyline)) return;
+        // プレビュー線の移動前後だけを再描画
+        Rectangle2D before = previewBounds();
         Point2D p = e.getPoint();
         x = p.getX();
         y = p.getY();
-        if (obj instanceof Polyline) repaint();
+        damage(union(before, previewBounds()));
     }
 
     @Override public void actionPerformed(ActionEvent e){
         if(e.getSource() == p4.endBtn) {
             String fname = JOptionPane.showInputDialog(this, "ファイル名を入力してください:", "paint.dat");
             if (fname != null && !fname.trim().isEmpty()) {
-                save(fname);
+                // 保存できたら終了する（失敗・キャンセルしたときは終了しない）
+                startSave(fname, () -> System.exit(0));
+                return;
             }
             System.exit(0);
         } else if(e.getSource() == p4.clearBtn){
-            pushUndo();
-            objList.clear();
-            redoStack.clear();
-            repaint();
+            if (loading || objList.isEmpty()) return;
+            // すべての図形を取り除く編集（取り消せば元の位置に戻る）
+            int n = objList.size();
+            int[] at = new int[n];
+            for (int i = 0; i < n; i++) at[i] = i;
+            perform(new ReplaceEdit(at, objList.toArray(new Figure[0]), new int[0], new Figure[0]));
         }
     }
 
     @Override protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
         Graphics2D g2 = (Graphics2D) g;
 
-        for(Figure f : objList)
-            f.paint(g2);
+        // 確定済み図形はキャッシュ画像を転送するだけ（キャッシュが作れない場合は直接描く）
+        if (!paintScene(g2)) {
+            super.paintComponent(g);
+            // 再描画範囲にかかる図形だけをインデックスから取り出して描く
+            Rectangle clip = g2.getClipBounds();
+            for(Figure f : (clip != null) ? figureIndex.figuresIn(clip) : objList)
+                f.paint(g2);
+        }
+
+        // 移動・リサイズ中の図形はキャッシュの上に重ねる
+        if (liftedFigure != null) liftedFigure.paint(g2);
 
-        if (obj != null) obj.paint(g2);
+        // 描画中のフリーハンドは重ね描き用の画像を転送する（点の数によらず、再描画範囲の分だけで済む）
+        if (obj != null && !(obj == overlayStroke && paintStrokeOverlay(g2))) obj.paint(g2);
+        // 予測した仮の線（図形の続きとして同じ色・線幅で描く）
+        if (obj != null && predictedTail != null) paintPredictedTail(g2, obj);
 
         if (obj instanceof Polyline) {
             Polyline pl = (Polyline) obj;
-            java.util.List<java.awt.geom.Point2D.Double> pts = pl.getPoints();
+            PointBuffer pts = pl.getPoints();
             if (!pts.isEmpty()) {
-                java.awt.geom.Point2D.Double last = pts.get(pts.size()-1);
+                double lastX = pts.getX(pts.size()-1), lastY = pts.getY(pts.size()-1);
                 Color oldc = g2.getColor();
                 Stroke olds = g2.getStroke();
                 g2.setColor(new Color(0,0,0,128));
-                g2.setStroke(new BasicStroke((float)pl.strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 1.0f, new float[]{4f,4f}, 0f));
-                g2.draw(new Line2D.Double(last.x, last.y, x, y));
+                g2.setStroke(previewStroke((float)pl.strokeWidth));
+                g2.draw(new Line2D.Double(lastX, lastY, x, y));
                 g2.setStroke(olds);
                 g2.setColor(oldc);
             }
@@ -429,10 +623,14 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
         
         if (erasing && !eraserPoints.isEmpty()) {
             Color old = g2.getColor();
-            for (java.awt.geom.Point2D.Double pt : eraserPoints) {
-                g2.setColor(Color.LIGHT_GRAY);
-                double r = eraserRadius;
-                g2.fill(new Ellipse2D.Double(pt.x - r, pt.y - r, r * 2, r * 2));
+            // 再描画範囲の外にあるブラシの円は描かない
+            Rectangle clip = g2.getClipBounds();
+            double r = eraserRadius;
+            g2.setColor(Color.LIGHT_GRAY);
+            for (int i = 0; i < eraserPoints.size(); i++) {
+                double ex = eraserPoints.getX(i), ey = eraserPoints.getY(i);
+                if (clip != null && !clip.intersects(ex - r, ey - r, r * 2, r * 2)) continue;
+                g2.fill(new Ellipse2D.Double(ex - r, ey - r, r * 2, r * 2));
             }
             g2.setColor(old);
         }
@@ -443,7 +641,7 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
                 Color old = g2.getColor();
                 Stroke os = g2.getStroke();
                 g2.setColor(Color.BLUE);
-                g2.setStroke(new BasicStroke(1.0f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 1.0f, new float[]{4f,4f}, 0f));
+                g2.setStroke(SELECTION_STROKE);
                 g2.draw(bb);
                 g2.setStroke(os);
                 double cx = bb.getX() + bb.getWidth()/2.0;
@@ -467,196 +665,963 @@ public class PaintCanvas extends JPanel implements MouseListener, MouseMotionLis
         }
     }
 
-    
+    /** 折れ線のプレビュー用の点線を取得 */
+    private BasicStroke previewStroke(float width) {
+        if (previewStroke == null || previewStroke.getLineWidth() != width) {
+            previewStroke = new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 1.0f, new float[]{4f,4f}, 0f);
+        }
+        return previewStroke;
+    }
+
+    /**
+     * 確定済み図形のキャッシュ画像を描画する
+     * キャッシュが無効なら objList から作り直す
+     * @param g2 描画先
+     * @return キャッシュを描画できたらtrue
+     */
+    private boolean paintScene(Graphics2D g2) {
+        int w = getWidth(), h = getHeight();
+        if (w <= 0 || h <= 0) return false;
+
+        // HiDPI 環境でもぼやけないよう、画面のスケールに合わせた解像度で保持する
+        java.awt.geom.AffineTransform tx = g2.getTransform();
+        double sx = tx.getScaleX(), sy = tx.getScaleY();
+        if (sx <= 0 || sy <= 0) { sx = 1.0; sy = 1.0; }
+        int iw = (int) Math.ceil(w * sx), ih = (int) Math.ceil(h * sy);
+
+        if (sceneCache == null || sceneCache.getWidth() != iw || sceneCache.getHeight() != ih
+                || sx != sceneScaleX || sy != sceneScaleY || !getBackground().equals(sceneBackground)) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            sceneCache = (gc != null) ? gc.createCompatibleImage(iw, ih)
+                    : new java.awt.image.BufferedImage(iw, ih, java.awt.image.BufferedImage.TYPE_INT_RGB);
+            sceneScaleX = sx; sceneScaleY = sy;
+            sceneBackground = getBackground();
+            sceneDirty = true;
+        }
+
+        if (sceneDirty || sceneDirtyRegion != null) {
+            // 全体、または変わった範囲だけを描き直す
+            Rectangle area = new Rectangle(0, 0, w, h);
+            if (!sceneDirty) area = area.intersection(sceneDirtyRegion.getBounds());
+            if (!area.isEmpty()) {
+                Graphics2D cg = createSceneGraphics();
+                cg.clip(area);
+                cg.setColor(sceneBackground);
+                cg.fill(area);
+                // 画面外の図形は描かない（範囲にかかる図形だけをインデックスから取り出す）
+                for (Figure f : figureIndex.figuresIn(area)) {
+                    if (f != liftedFigure) f.paint(cg);
+                }
+                cg.dispose();
+            }
+            sceneDirty = false;
+            sceneDirtyRegion = null;
+        }
+
+        g2.drawImage(sceneCache, 0, 0, w, h, null);
+        return true;
+    }
+
+    /**
+     * 描画中のフリーハンドに足した線分を、重ね描き用の画像に描き足す
+     * 1回の処理量は線分1本分で、それまでの点の数にはよらない
+     */
+    private void appendStrokeSegment(Freehand fh, double x0, double y0, double x1, double y1) {
+        if (!strokeOverlayReady(fh)) return;
+        strokeOverlayGraphics.draw(new Line2D.Double(x0, y0, x1, y1));
+        strokeOverlayUsed = union(strokeOverlayUsed, segmentBounds(x0, y0, x1, y1, fh.strokeWidth));
+    }
+
+    /**
+     * 重ね描き用の画像を fh 用に用意する（大きさとスケールは確定済み図形のキャッシュ画像に合わせる）
+     * 別の線を描いていたときや、画面の大きさ・スケールが変わったときは描き直す
+     * @return 用意できたらtrue
+     */
+    private boolean strokeOverlayReady(Freehand fh) {
+        int w = getWidth(), h = getHeight();
+        if (w <= 0 || h <= 0) return false;
+        int iw = (int) Math.ceil(w * sceneScaleX), ih = (int) Math.ceil(h * sceneScaleY);
+        if (fh == overlayStroke && strokeOverlayGraphics != null
+                && strokeOverlay.getWidth() == iw && strokeOverlay.getHeight() == ih
+                && strokeOverlayGraphics.getTransform().getScaleX() == sceneScaleX
+                && strokeOverlayGraphics.getTransform().getScaleY() == sceneScaleY) {
+            return true;
+        }
+
+        // 前に描いた線の範囲だけを透明に戻す（大きさが変わったときは作り直す）
+        if (strokeOverlayGraphics != null) {
+            if (strokeOverlayUsed != null) {
+                strokeOverlayGraphics.setComposite(AlphaComposite.Clear);
+                strokeOverlayGraphics.fill(strokeOverlayUsed);
+            }
+            strokeOverlayGraphics.dispose();
+            strokeOverlayGraphics = null;
+        }
+        strokeOverlayUsed = null;
+        if (strokeOverlay == null || strokeOverlay.getWidth() != iw || strokeOverlay.getHeight() != ih) {
+            strokeOverlay = new java.awt.image.BufferedImage(iw, ih, java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        Graphics2D cg = strokeOverlay.createGraphics();
+        cg.scale(sceneScaleX, sceneScaleY);
+        cg.setColor(new Color(fh.color.getRGB() & 0xffffff));
+        cg.setStroke(fh.getStroke());
+        strokeOverlayGraphics = cg;
+        overlayStroke = fh;
+
+        // そこまでの線を一度だけ描く
+        if (fh.getPoints().size() > 1) {
+            cg.draw(fh.getShape());
+            strokeOverlayUsed = strokedBounds(fh);
+        }
+        return true;
+    }
+
+    /**
+     * 描画中のフリーハンドを重ね描き用の画像から転送する（色の透明度はここで掛ける）
+     * @return 転送できたらtrue
+     */
+    private boolean paintStrokeOverlay(Graphics2D g2) {
+        if (!strokeOverlayReady(overlayStroke)) return false;
+        Composite old = g2.getComposite();
+        int alpha = overlayStroke.color.getAlpha();
+        if (alpha != 255) g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, alpha / 255f));
+        g2.drawImage(strokeOverlay, 0, 0, getWidth(), getHeight(), null);
+        g2.setComposite(old);
+        return true;
+    }
+
+    /** キャッシュ画像に論理座標で描くための Graphics2D を作る */
+    private Graphics2D createSceneGraphics() {
+        Graphics2D cg = sceneCache.createGraphics();
+        cg.scale(sceneScaleX, sceneScaleY);
+        return cg;
+    }
+
+    /**
+     * 現在画面に重ねて描いているもの（描画中の図形、折れ線のプレビュー線、
+     * 選択枠とハンドル）を囲む範囲を返す
+     * @return 範囲（何も描いていなければnull）
+     */
+    private Rectangle2D overlayBounds() {
+        Rectangle2D r = strokedBounds(obj);
+        r = union(r, previewBounds());
+        r = union(r, tailBounds());
+        if (liftedFigure != null) {
+            Rectangle2D bb = liftedFigure.getBounds2D();
+            r = union(r, strokedBounds(liftedFigure));
+            // 選択枠のハンドルは外接矩形から HS だけはみ出す
+            if (bb != null) r = union(r, grow(bb, HS + 1));
+        }
+        return r;
+    }
+
+    /** 描画中の折れ線の最後の頂点からマウス位置までのプレビュー線の範囲 */
+    private Rectangle2D previewBounds() {
+        if (!(obj instanceof Polyline)) return null;
+        PointBuffer pts = ((Polyline) obj).getPoints();
+        if (pts.isEmpty()) return null;
+        return segmentBounds(pts.getX(pts.size()-1), pts.getY(pts.size()-1), x, y, obj.strokeWidth);
+    }
+
+    /** 予測した仮の線の範囲（描いていなければnull） */
+    private Rectangle2D tailBounds() {
+        if (predictedTail == null || obj == null) return null;
+        double[] t = predictedTail;
+        double minx = t[0], miny = t[1], maxx = t[0], maxy = t[1];
+        for (int i = 2; i < t.length; i += 2) {
+            minx = Math.min(minx, t[i]); maxx = Math.max(maxx, t[i]);
+            miny = Math.min(miny, t[i + 1]); maxy = Math.max(maxy, t[i + 1]);
+        }
+        return grow(new Rectangle2D.Double(minx, miny, maxx - minx, maxy - miny), obj.strokeWidth / 2.0 + DAMAGE_PAD);
+    }
+
+    /** フリーハンド・折れ線なら点列を返す（それ以外はnull） */
+    private static PointBuffer pointsOf(Figure f) {
+        if (f instanceof Freehand) return ((Freehand) f).getPoints();
+        if (f instanceof Polyline) return ((Polyline) f).getPoints();
+        return null;
+    }
+
+    /** 消しゴムのブラシ1つ分の範囲 */
+    private Rectangle2D eraserBrushBounds(double ex, double ey) {
+        double r = eraserRadius;
+        return grow(new Rectangle2D.Double(ex - r, ey - r, r * 2, r * 2), 1);
+    }
+
+    /** 線幅 sw の線分(x0,y0)-(x1,y1)を描いたときに塗られる範囲 */
+    private static Rectangle2D segmentBounds(double x0, double y0, double x1, double y1, double sw) {
+        Rectangle2D r = new Rectangle2D.Double(Math.min(x0, x1), Math.min(y0, y1), Math.abs(x1 - x0), Math.abs(y1 - y0));
+        return grow(r, sw / 2.0 + DAMAGE_PAD);
+    }
+
+    /** 図形の外接矩形を線幅の半分だけ広げた範囲（枠線は外接矩形からはみ出すため） */
+    private static Rectangle2D strokedBounds(Figure f) {
+        if (f == null) return null;
+        Rectangle2D bb = f.getBounds2D();
+        if (bb == null) return null;
+        return grow(bb, f.strokeWidth / 2.0 + DAMAGE_PAD);
+    }
+
+    private static Rectangle2D grow(Rectangle2D r, double d) {
+        return new Rectangle2D.Double(r.getX() - d, r.getY() - d, r.getWidth() + d * 2, r.getHeight() + d * 2);
+    }
+
+    /** 2つの範囲の和（どちらかがnullならもう一方） */
+    private static Rectangle2D union(Rectangle2D a, Rectangle2D b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.createUnion(b);
+    }
+
+    /**
+     * 指定範囲を再描画する
+     * フレーム単位で再描画するときは範囲をためておき、次のフレームでまとめて1回だけ再描画する
+     * @param r 再描画する範囲（論理座標、nullなら何もしない）
+     */
+    private void damage(Rectangle2D r) {
+        if (r == null) return;
+        if (frameRate <= 0) {
+            repaintArea(r);
+            return;
+        }
+        pendingDamage = union(pendingDamage, r);
+        scheduleFrame();
+    }
+
+    private void repaintArea(Rectangle2D r) {
+        Rectangle rect = r.getBounds();  // 外側へ切り上げた整数矩形
+        repaint(rect.x, rect.y, rect.width + 1, rect.height + 1);
+    }
+
+    /**
+     * フレームのタイマーを動かす
+     * 止まっていたときは最初のフレームをすぐに出す（操作を始めたときに1フレーム待たせない）
+     */
+    private void scheduleFrame() {
+        if (frameTimer.isRunning()) return;
+        frameTimer.setInitialDelay(0);
+        frameTimer.start();
+    }
+
+    /**
+     * 1フレーム分の処理：ためておいた移動・リサイズを当てはめ、まとめた範囲を1回だけ再描画する
+     * 何もすることがなければタイマーを止める
+     */
+    private void runFrame() {
+        if (pendingDrag) {
+            pendingDrag = false;
+            applySelectionDrag();
+        }
+        Rectangle2D r = pendingDamage;
+        pendingDamage = null;
+        if (r == null) {
+            frameTimer.stop();
+            return;
+        }
+        repaintArea(r);
+    }
+
+    /**
+     * 1秒あたりの再描画の回数を設定する（画面のリフレッシュレートに合わせて 60/120/144 など）
+     * @param hz 回数（0ならフレームにまとめず、マウスイベントごとにすぐ再描画を依頼する）
+     */
+    public void setFrameRate(int hz) {
+        if (hz < 0) return;
+        if (hz == 0) runFrame();  // ためている処理と再描画を、次のフレームを待たずに済ませる
+        frameRate = hz;
+        if (hz > 0) frameTimer.setDelay(Math.max(1, Math.round(1000f / hz)));
+    }
+
+    /** objList が変わったのでキャッシュを次の描画で作り直す */
+    private void invalidateScene() {
+        sceneDirty = true;
+    }
+
+    /**
+     * キャッシュのうち指定範囲だけを次の描画で描き直す
+     * @param r 描き直す範囲（論理座標、nullなら何もしない）
+     */
+    private void invalidateScene(Rectangle2D r) {
+        sceneDirtyRegion = union(sceneDirtyRegion, r);
+    }
+
+    /** objList 全体が入れ替わったので、インデックスとキャッシュを作り直す */
+    private void figureListReplaced() {
+        figureIndex.rebuild(objList);
+        invalidateScene();
+    }
+
+    /**
+     * 図形を確定してリストの最前面に追加する（履歴にも記録する）
+     * @param f 追加する図形
+     */
+    private void addFigure(Figure f) {
+        perform(ReplaceEdit.add(objList.size(), f));
+    }
+
+    /**
+     * 編集を適用して履歴に記録する
+     * @param e 適用する編集
+     */
+    private void perform(Edit e) {
+        e.redo(this);
+        recordEdit(e);
+    }
 
-    public void save(String fname){
-        try {
-            FileOutputStream fos = new FileOutputStream(fname);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(objList);
-            oos.close();
-            fos.close();
-        } catch(IOException e){}
+    /**
+     * 適用済みの編集を履歴とジャーナルに記録する
+     * ジャーナルが大きくなっていれば、裏で圧縮する（startCompaction を参照）
+     * @param e 適用した編集
+     */
+    private void recordEdit(Edit e) {
+        history.record(e);
+        journal.applied(e);
+        if (journal.needsCompaction() && !loading && saveSnapshot == null) {
+            startCompaction();
+        }
     }
 
-    private void applyEraser() {
-        if (eraserPoints.isEmpty()) return;
-        ArrayList<Figure> newList = new ArrayList<>();
+    // ---- 編集の適用（Edit から呼ばれる） ----
+
+    /** index 番目の図形を取得 */
+    Figure getFigure(int index) {
+        return objList.get(index);
+    }
 
-        for (Figure f : objList) {
+    /**
+     * 図形のリスト上の位置を探す（同じ内容の図形も別物として扱う）
+     * 最近の図形ほど編集されやすいので後ろから探す
+     * @return 位置（見つからなければ-1）
+     */
+    int indexOfFigure(Figure f) {
+        for (int i = objList.size() - 1; i >= 0; i--) {
+            if (objList.get(i) == f) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 図形を index 番目に差し込む
+     * 最前面への追加でキャッシュが有効なら、作り直さずその図形だけを上に描き足す
+     * @param index 差し込む位置
+     * @param f 差し込む図形
+     */
+    void insertFigure(int index, Figure f) {
+        objList.add(index, f);
+        figureIndex.insert(objList, index);
+        Rectangle2D r = strokedBounds(f);
+        if (index == objList.size() - 1 && sceneCache != null && !sceneDirty) {
+            Graphics2D cg = createSceneGraphics();
+            f.paint(cg);
+            cg.dispose();
+        } else {
+            invalidateScene(r);
+        }
+        damage(r);
+    }
+
+    /**
+     * index 番目の図形を取り除く
+     * @param index 取り除く位置
+     * @return 取り除いた図形
+     */
+    Figure removeFigure(int index) {
+        Figure f = objList.remove(index);
+        figureIndex.remove(f);
+        Rectangle2D r = strokedBounds(f);
+        invalidateScene(r);
+        damage(r);
+        return f;
+    }
+
+    /**
+     * リスト中の図形に変更を加え、インデックスとキャッシュを追従させる
+     * @param f 変更する図形
+     * @param change 図形を書き換える処理
+     */
+    void changeFigure(Figure f, Runnable change) {
+        beforeMutate(f);
+        Rectangle2D before = strokedBounds(f);
+        change.run();
+        figureIndex.update(f);
+        // 線幅が変わると範囲も変わるので、変更前後の和を描き直す
+        Rectangle2D r = union(before, strokedBounds(f));
+        invalidateScene(r);
+        damage(r);
+    }
+
+    /** 2つの図形の位置・大きさ（点列を含む）が同じかどうか */
+    private static boolean sameGeometry(Figure a, Figure b) {
+        if (a.x != b.x || a.y != b.y || a.w != b.w || a.h != b.h) return false;
+        PointBuffer pa = pointsOf(a), pb = pointsOf(b);
+        if (pa == null || pb == null) return pa == pb;
+        if (pa.size() != pb.size()) return false;
+        for (int i = 0; i < pa.size(); i++) {
+            if (pa.getX(i) != pb.getX(i) || pa.getY(i) != pb.getY(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 図形をファイルに保存する（形式は DrawingFile を参照）
+     * 呼び出したスレッドで書き出す。画面から保存するときは startSave を使う
+     * @param fname 保存先のファイル名
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void save(String fname) throws IOException {
+        if (loading) throw new IOException("読み込み中のため保存できません");
+        DrawingFile.write(java.nio.file.Paths.get(fname), objList);
+    }
+
+    /**
+     * 消しゴムの区間 (x0, y0)-(x1, y1) で消える図形をその場で消し、フリーハンドは分割して残す
+     * 区間の近くの図形だけを空間インデックスから取り出し、フリーハンドは区間にかかる点の塊だけを調べるので、
+     * 1回の処理量はブラシの周りにある図形の量で決まる（軌跡全体の長さや図形の総数にはよらない）。
+     * 履歴にはまだ記録せず、消した図形と差し込んだ断片を控えておく（eraserEdit を参照）。
+     */
+    private void eraseSegment(double x0, double y0, double x1, double y1) {
+        EraserTrail step = new EraserTrail(eraserRadius);
+        step.add(x0, y0);
+        if (x0 != x1 || y0 != y1) step.add(x1, y1);
+        Rectangle2D reach = step.getBounds();
+        // 当たり判定は外接矩形より少し外まで広がることがあるので、その分広げて候補を取る
+        java.util.List<Figure> near = figureIndex.figuresIn(grow(reach, 3.0));
+        if (near.isEmpty()) return;
+
+        ArrayList<Integer> removedAt = new ArrayList<>(), addedAt = new ArrayList<>();
+        ArrayList<Figure> removed = new ArrayList<>(), added = new ArrayList<>();
+        // ここまでに調べた図形で、編集後のリストの位置がいくつずれたか（断片の数 - 消した数）
+        int shift = 0;
+        for (Figure f : near) {  // 描画順なので位置の昇順になる
+            int index = figureIndex.indexOf(objList, f);
+            if (index < 0) index = indexOfFigure(f);
+            if (index < 0) continue;
             if (f instanceof Freehand) {
                 Freehand fh = (Freehand) f;
-                ArrayList<java.awt.geom.Point2D.Double> pts = fh.getPoints();
-                int n = pts.size();
-                if (n == 0) continue;
-                // mark points that survive
-                boolean[] keep = new boolean[n];
-                for (int i = 0; i < n; i++) {
-                    java.awt.geom.Point2D.Double p = pts.get(i);
-                    boolean erased = false;
-                    for (java.awt.geom.Point2D.Double ept : eraserPoints) {
-                        double dx = p.x - ept.x;
-                        double dy = p.y - ept.y;
-                        if (dx*dx + dy*dy <= eraserRadius*eraserRadius) { erased = true; break; }
-                    }
-                    keep[i] = !erased;
-                }
-                int i = 0;
+                // 曲線にしたものは、曲線をたどった点列に直してから分割する（断片は曲線に置き換え直す）
+                boolean curved = fh.isCurved();
+                if (curved) fh = eraserSamples.computeIfAbsent(fh, k -> k.flattened(ERASER_STEP));
+                int n = fh.getPoints().size();
+                boolean[] keep = (n == 0) ? new boolean[0] : survivingPoints(fh, step, reach);
+                if (keep == null) continue;  // 消える点がなければそのまま残す
+                removedAt.add(index); removed.add(f);
+                int pieces = 0, i = 0;
                 while (i < n) {
                     while (i < n && !keep[i]) i++;
                     int start = i;
                     while (i < n && keep[i]) i++;
                     int end = i; // [start, end)
                     if (end - start >= 2) {
-                        java.awt.geom.Point2D.Double p0 = pts.get(start);
-                        Freehand nf = new Freehand(p0.x, p0.y, fh.color, (float)fh.strokeWidth);
-                        for (int k = start+1; k < end; k++) nf.addPoint(pts.get(k).x, pts.get(k).y);
-                        newList.add(nf);
-                    }
-                }
-            } else {
-                boolean hit = false;
-                for (java.awt.geom.Point2D.Double ept : eraserPoints) {
-                    if (f.contains(ept.x, ept.y)) { hit = true; break; }
-                    java.awt.geom.Rectangle2D bb = f.getBounds2D();
-                    if (bb != null) {
-                        double ex = ept.x, ey = ept.y;
-                        if (bb.contains(ex, ey)) { hit = true; break; }
+                        Freehand piece = fh.fragment(start, end);
+                        if (curved) piece.fitCurves(ERASER_REFIT_ERROR);
+                        addedAt.add(index + shift + pieces++); added.add(piece);
                     }
                 }
-                if (!hit) newList.add(f);
+                shift += pieces - 1;
+            } else if (step.touches(f)) {
+                removedAt.add(index); removed.add(f);
+                shift--;
+            }
+        }
+        if (removed.isEmpty()) return;
+        // 変わった図形の範囲は removeFigure / insertFigure 側で再描画される
+        for (int i = removedAt.size() - 1; i >= 0; i--) {
+            removeFigure(removedAt.get(i));
+            Figure f = removed.get(i);
+            // このドラッグで差し込んだ断片をまた消したときは、元からなかったことにする
+            if (eraserAdded.remove(f) == null) eraserRemoved.put(f, Boolean.TRUE);
+        }
+        for (int i = 0; i < addedAt.size(); i++) {
+            insertFigure(addedAt.get(i), added.get(i));
+            eraserAdded.put(added.get(i), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * ドラッグを始めたときの図形リストと今のリストの差を、1つの編集として求める
+     * 途中で分割し直した断片は含めないので、長いフリーハンドを少しずつ消しても編集は大きくならない
+     * @return 消した図形を取り除き、残っている断片を差し込む編集
+     */
+    private ReplaceEdit eraserEdit() {
+        ArrayList<Integer> removedAt = new ArrayList<>(), addedAt = new ArrayList<>();
+        ArrayList<Figure> removed = new ArrayList<>(), added = new ArrayList<>();
+        if (eraserBase != null && !eraserRemoved.isEmpty()) {
+            for (int i = 0; i < eraserBase.size(); i++) {
+                Figure f = eraserBase.get(i);
+                if (eraserRemoved.containsKey(f)) { removedAt.add(i); removed.add(f); }
+            }
+            for (int i = 0; i < objList.size(); i++) {
+                Figure f = objList.get(i);
+                // リストの図形はこの後も書き換えられるので、編集には複製を持たせる
+                if (eraserAdded.containsKey(f)) { addedAt.add(i); added.add(f.copy()); }
             }
         }
+        return toReplaceEdit(removedAt, removed, addedAt, added);
+    }
 
-        objList = newList;
+    /**
+     * フリーハンドの点のうち、区間で消えずに残るものに印を付ける
+     * 点 ERASER_CHUNK 個ごとの範囲を控えておき、区間にかかる塊の点だけを調べる
+     * @return 残る点に true を入れた配列（1点も消えなければnull）
+     */
+    private boolean[] survivingPoints(Freehand fh, EraserTrail step, Rectangle2D reach) {
+        PointBuffer pts = fh.getPoints();
+        int n = pts.size();
+        double[] chunks = eraserChunks.computeIfAbsent(fh, k -> chunkBounds(pts));
+        double rx0 = reach.getMinX(), ry0 = reach.getMinY(), rx1 = reach.getMaxX(), ry1 = reach.getMaxY();
+        boolean[] keep = null;
+        for (int c = 0, i0 = 0; i0 < n; c++, i0 += ERASER_CHUNK) {
+            int b = c * 4;
+            if (chunks[b + 2] < rx0 || chunks[b] > rx1 || chunks[b + 3] < ry0 || chunks[b + 1] > ry1) continue;
+            for (int i = i0, i1 = Math.min(n, i0 + ERASER_CHUNK); i < i1; i++) {
+                if (!step.covers(pts.getX(i), pts.getY(i))) continue;
+                if (keep == null) {
+                    keep = new boolean[n];
+                    Arrays.fill(keep, true);
+                }
+                keep[i] = false;
+            }
+        }
+        return keep;
     }
 
-    private void pushUndo() {
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(objList);
-            oos.close();
-            undoStack.addLast(bos.toByteArray());
-            while (undoStack.size() > maxHistory) undoStack.removeFirst();
-        } catch (IOException ex) {
-            ex.printStackTrace();
+    /** 点 ERASER_CHUNK 個ごとの範囲（minx, miny, maxx, maxy の順） */
+    private static double[] chunkBounds(PointBuffer pts) {
+        int n = pts.size();
+        double[] b = new double[((n + ERASER_CHUNK - 1) / ERASER_CHUNK) * 4];
+        for (int c = 0, i0 = 0; i0 < n; c++, i0 += ERASER_CHUNK) {
+            double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
+            double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
+            for (int i = i0, i1 = Math.min(n, i0 + ERASER_CHUNK); i < i1; i++) {
+                double px = pts.getX(i), py = pts.getY(i);
+                if (px < minx) minx = px;
+                if (py < miny) miny = py;
+                if (px > maxx) maxx = px;
+                if (py > maxy) maxy = py;
+            }
+            b[c * 4] = minx; b[c * 4 + 1] = miny; b[c * 4 + 2] = maxx; b[c * 4 + 3] = maxy;
         }
+        return b;
     }
 
+    private static ReplaceEdit toReplaceEdit(ArrayList<Integer> removedAt, ArrayList<Figure> removed,
+                                             ArrayList<Integer> addedAt, ArrayList<Figure> added) {
+        int[] ra = new int[removedAt.size()], aa = new int[addedAt.size()];
+        for (int i = 0; i < ra.length; i++) ra[i] = removedAt.get(i);
+        for (int i = 0; i < aa.length; i++) aa[i] = addedAt.get(i);
+        return new ReplaceEdit(ra, removed.toArray(new Figure[0]), aa, added.toArray(new Figure[0]));
+    }
+
+    /** Undo/Redo の履歴（件数や使用バイト数の確認、予算の変更に使う） */
+    public History getHistory() { return history; }
+
+    /** 直前の操作を取り消す（変わった図形の範囲だけを描き直す） */
     public void undo() {
-        if (undoStack.isEmpty()) return;
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(objList);
-            oos.close();
-            redoStack.addLast(bos.toByteArray());
-
-            byte[] prev = undoStack.removeLast();
-            ByteArrayInputStream bis = new ByteArrayInputStream(prev);
-            ObjectInputStream ois = new ObjectInputStream(bis);
-            Object o = ois.readObject();
-            if (o instanceof ArrayList) objList = (ArrayList<Figure>) o;
-            ois.close();
-            repaint();
-        } catch (IOException | ClassNotFoundException ex) {
-            ex.printStackTrace();
-        }
+        if (loading || erasing) return;  // 消しゴムのドラッグ中はまだ記録していない編集がある
+        Edit e = history.undo(this);
+        if (e != null) journal.reverted(e);
     }
 
+    /** 取り消した操作をやり直す */
     public void redo() {
-        if (redoStack.isEmpty()) return;
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(objList);
-            oos.close();
-            undoStack.addLast(bos.toByteArray());
-
-            byte[] next = redoStack.removeLast();
-            ByteArrayInputStream bis = new ByteArrayInputStream(next);
-            ObjectInputStream ois = new ObjectInputStream(bis);
-            Object o = ois.readObject();
-            if (o instanceof ArrayList) objList = (ArrayList<Figure>) o;
-            ois.close();
-            repaint();
-        } catch (IOException | ClassNotFoundException ex) {
-            ex.printStackTrace();
-        }
+        if (loading || erasing) return;
+        Edit e = history.redo(this);
+        if (e != null) journal.applied(e);
     }
 
     public void setSelectedColor(Color c) { if (c != null) this.selectedColor = c; }
     public void setStrokeWidth(float w) { if (w > 0) this.strokeWidth = w; }
     public void setFilled(boolean f) { this.filled = f; }
 
+    // 描き終えたフリーハンドの点を間引くときに許す形のずれ（ピクセル、0なら間引かない）
+    private double simplifyTolerance = 0.5;
+    public void setSimplifyTolerance(double t) { if (t >= 0) this.simplifyTolerance = t; }
+    // 描き終えたフリーハンドを、間引く代わりに3次ベジェ曲線の列に置き換えるときの許容誤差（ピクセル、0なら置き換えない）
+    private double curveError = 0.0;
+    public void setCurveError(double e) { if (e >= 0) this.curveError = e; }
+
+    /**
+     * フリーハンド・直線を描いている間、マウスの動きを少し先まで予測して仮の線を描くようにする
+     * （マウスイベントから画面に出るまでの遅れの分、線がカーソルに追いついて見える）
+     * @param ms 予測する時間（ミリ秒、0なら予測しない）
+     */
+    public void setPredictMillis(int ms) {
+        if (ms < 0) return;
+        predictMillis = ms;
+        if (ms == 0 && predictedTail != null) {
+            Rectangle2D tail = tailBounds();
+            predictedTail = null;
+            damage(tail);
+        }
+    }
+
+    /** 描画中の図形が、予測した仮の線を描く対象か（フリーハンドと直線） */
+    private boolean predicting() {
+        return predictMillis > 0 && (obj instanceof Freehand || obj instanceof Line);
+    }
+
+    /** マウス位置 (x, y) をサンプルとして足し、仮の線を予測し直す */
+    private void updatePrediction(MouseEvent e) {
+        if (!predicting()) return;
+        predictor.add(x, y, e.getWhen());
+        double[] p = predictor.predict(predictMillis, PREDICT_STEPS);
+        if (p == null) {
+            predictedTail = null;
+            return;
+        }
+        double[] t = new double[p.length + 2];
+        t[0] = x; t[1] = y;
+        System.arraycopy(p, 0, t, 2, p.length);
+        predictedTail = t;
+        tailPath.reset();
+        tailPath.moveTo(t[0], t[1]);
+        for (int i = 2; i < t.length; i += 2) tailPath.lineTo(t[i], t[i + 1]);
+    }
+
+    private void paintPredictedTail(Graphics2D g2, Figure f) {
+        Color oldc = g2.getColor();
+        Stroke olds = g2.getStroke();
+        g2.setColor(f.color);
+        g2.setStroke(f.getStroke());
+        g2.draw(tailPath);
+        g2.setStroke(olds);
+        g2.setColor(oldc);
+    }
+
     private int exportWidth = 800;
     private int exportHeight = 600;
+    // 前回の PNG 出力の結果（同じ大きさで出力し直すときに、変わったタイルだけを描き直す）
+    private final ExportCache exportCache = new ExportCache();
+    // SVG 出力で座標を丸める小数点以下の桁数
+    private int svgDigits = 2;
+    public void setSvgDigits(int d) { if (d >= 0 && d <= 6) this.svgDigits = d; }
     public void setExportSize(int w, int h) { if (w > 0 && h > 0) { this.exportWidth = w; this.exportHeight = h; } }
 
+    /**
+     * 図形全体が収まるように縮尺を合わせて PNG 画像に出力する
+     * 帯状に描いては書き出すので、画像全体をメモリに置かない（ExportRenderer を参照）
+     * 前回と同じ大きさで出力し直すときは、前回から変わったタイルだけを描き直す
+     * @param fname 出力先のファイル名
+     * @param w 画像の幅
+     * @param h 画像の高さ
+     */
     public void exportImage(String fname, int w, int h) throws Exception {
         if (w <= 0 || h <= 0) throw new IllegalArgumentException("invalid size");
-        java.awt.image.BufferedImage bi = new java.awt.image.BufferedImage(w, h, java.awt.image.BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2 = bi.createGraphics();
-        
-        g2.setColor(Color.WHITE);
-        g2.fillRect(0, 0, w, h);
-
-        double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY, maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
-        for (Figure f : objList) {
-            java.awt.geom.Rectangle2D bb = f.getBounds2D();
-            if (bb == null) continue;
-            if (bb.getX() < minx) minx = bb.getX();
-            if (bb.getY() < miny) miny = bb.getY();
-            if (bb.getX() + bb.getWidth() > maxx) maxx = bb.getX() + bb.getWidth();
-            if (bb.getY() + bb.getHeight() > maxy) maxy = bb.getY() + bb.getHeight();
-        }
-        double contentW = (minx==Double.POSITIVE_INFINITY) ? getWidth() : (maxx - minx);
-        double contentH = (miny==Double.POSITIVE_INFINITY) ? getHeight() : (maxy - miny);
-        if (contentW <= 0) contentW = Math.max(1, getWidth());
-        if (contentH <= 0) contentH = Math.max(1, getHeight());
-
-        double scaleX = w / contentW;
-        double scaleY = h / contentH;
-        double scale = Math.min(scaleX, scaleY);
-       
-        double tx = 0, ty = 0;
-        if (minx != Double.POSITIVE_INFINITY) {
-            tx = -minx * scale + (w - contentW * scale) / 2.0;
-            ty = -miny * scale + (h - contentH * scale) / 2.0;
-        } else {
-            tx = (w - getWidth()*scale) / 2.0;
-            ty = (h - getHeight()*scale) / 2.0;
+        ExportRenderer renderer = ExportRenderer.fit(objList, figureIndex, w, h, getWidth(), getHeight());
+        renderer.writePng(new java.io.File(fname), exportCache);
+    }
+
+    /**
+     * 図形全体が収まるように縮尺を合わせて SVG 画像に出力する
+     * 図形を描画順にそのままファイルへ流すので、点の多い図形でもメモリを使わない（SvgExporter を参照）
+     * @param fname 出力先のファイル名
+     * @param w 画像の幅
+     * @param h 画像の高さ
+     */
+    public void exportSvg(String fname, int w, int h) throws Exception {
+        if (w <= 0 || h <= 0) throw new IllegalArgumentException("invalid size");
+        try (java.io.Writer out = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+                new java.io.FileOutputStream(fname), java.nio.charset.StandardCharsets.UTF_8), 1 << 16)) {
+            new SvgExporter(svgDigits).write(objList, w, h, getWidth(), getHeight(), out);
         }
+    }
+
+    
+
+    /**
+     * ファイルから図形を読み込んで、今の図形と置き換える（旧形式のファイルも読める）
+     * 呼び出したスレッドですべてを読み込む。画面から開くときは startLoad を使う
+     * ジャーナルに保存していない編集が残っていれば、restore に従って適用するか捨てる。
+     * @param fname 読み込むファイル名
+     * @param restore 保存していない編集を適用するならtrue（falseならジャーナルから捨てる）
+     * @return ジャーナルに残っていたが、適用できずに捨てた編集の件数
+     * @throws IOException 読み込みに失敗したとき、形式が正しくないとき、または読み込み中・保存中のとき
+     */
+    public int load(String fname, boolean restore) throws IOException {
+        if (loading) throw new IOException("読み込み中のため読み込めません");
+        if (saveSnapshot != null) throw new IOException("保存中のため読み込めません");
+        finishGesture(x, y);
+        java.nio.file.Path path = java.nio.file.Paths.get(fname);
+        ArrayList<Figure> list = DrawingFile.read(path);
+        DrawingJournal.Recovery recovery = DrawingJournal.recover(path, DrawingFile.checksum(path));
+        if (!restore) recovery.discard();
+        replaceFigures((recovery.snapshot() != null) ? recovery.snapshot() : list);
+        int replayed = recovery.replay(this);
+        journal.attach(recovery);
+        return recovery.size() - replayed;
+    }
 
-        g2.translate(tx, ty);
-        g2.scale(scale, scale);
-      
-        for (Figure f : objList) {
-            f.paint(g2);
+    /**
+     * ファイルを裏で読み込み、読み終わったら今の図形と置き換える
+     * 索引付きの形式なら、画面にかかるチャンクを先に表示してから残りを読み込む。
+     * 読み込み中は進み具合を表示し、編集・保存は受け付けない。
+     * 失敗・キャンセルしたときは元の図形に戻す。
+     * ジャーナルに保存していない編集が残っていれば、読み終わった後に復元するかを確かめ、
+     * 復元するなら適用し、しないならジャーナルから捨てる。
+     * 保存中（ジャーナルの圧縮を含む）は、保存がジャーナルを置き換え終わるまで開けない。
+     * 読み込み中も、その読み込みが終わるかキャンセルされるまで開けない
+     * （途中で開き直すと、元に戻す図形やジャーナルの結び付け先が食い違うため）。
+     * @param fname 読み込むファイル名
+     */
+    public void startLoad(String fname) {
+        if (loading) {
+            JOptionPane.showMessageDialog(this, "読み込み中です。終わってからもう一度開いてください");
+            return;
         }
-        g2.dispose();
+        if (saveSnapshot != null) {
+            JOptionPane.showMessageDialog(this, "保存中です。終わってからもう一度開いてください");
+            return;
+        }
+        // ドラッグ中の操作は、元に戻すときの図形に含めるよう先に確定させる
+        finishGesture(x, y);
+        java.nio.file.Path path = java.nio.file.Paths.get(fname);
+        Rectangle2D area = visibleArea();
+        ArrayList<Figure> previous = objList;
+        loading = true;
+        ProgressMonitor monitor = new ProgressMonitor(this, "読み込み中: " + path.getFileName(), null, 0, 100);
+
+        SwingWorker<SpatialGrid, ArrayList<Figure>> worker = new SwingWorker<SpatialGrid, ArrayList<Figure>>() {
+            private ArrayList<Figure> all;
+            private DrawingJournal.Recovery recovery;
+            private SpatialGrid snapshotGrid;
+
+            @Override protected SpatialGrid doInBackground() throws Exception {
+                try (IndexedDrawing d = IndexedDrawing.open(path)) {
+                    if (d == null) {
+                        // 索引のない形式はまとめて読む
+                        all = DrawingFile.read(path);
+                    } else {
+                        // 画面にかかるチャンクだけを先にデコードして表示する
+                        Map<Integer, java.util.List<Figure>> decoded = new HashMap<>();
+                        ArrayList<Figure> visible = new ArrayList<>();
+                        for (int chunk : d.chunksIn(area)) {
+                            java.util.List<Figure> part = d.decodeChunk(chunk);
+                            decoded.put(chunk, part);
+                            visible.addAll(part);
+                        }
+                        if (decoded.size() < d.chunkCount()) publish(visible);
+                        all = d.decodeAll(decoded, (done, total) -> {
+                            setProgress(total > 0 ? (int) (done * 100L / total) : 100);
+                            return !isCancelled();
+                        });
+                    }
+                }
+                // 前回保存した後の編集をジャーナルから読む
+                recovery = DrawingJournal.recover(path, DrawingFile.checksum(path));
+                // インデックスもここで作っておき、イベントスレッドでは差し替えるだけにする
+                // （復元するかはまだ分からないので、スナップショットがあればその分も作る）
+                if (recovery.snapshot() != null) {
+                    snapshotGrid = new SpatialGrid();
+                    snapshotGrid.rebuild(recovery.snapshot());
+                }
+                SpatialGrid grid = new SpatialGrid();
+                grid.rebuild(all);
+                return grid;
+            }
+
+            @Override protected void process(java.util.List<ArrayList<Figure>> parts) {
+                if (isCancelled()) return;
+                showFigures(parts.get(parts.size() - 1));
+            }
 
-        javax.imageio.ImageIO.write(bi, "PNG", new java.io.File(fname));
+            @Override protected void done() {
+                monitor.close();
+                if (isCancelled()) {
+                    loading = false;
+                    showFigures(previous);
+                    return;
+                }
+                try {
+                    SpatialGrid grid = get();
+                    // 確かめている間も読み込み中のままにしておく（編集や別のファイルを開くのを受け付けない）
+                    if (!recovery.isEmpty() && JOptionPane.showConfirmDialog(PaintCanvas.this,
+                            "前回保存していない編集が残っています。復元しますか?\n（復元しない場合、その編集は破棄されます）",
+                            "復元", JOptionPane.YES_NO_OPTION) != JOptionPane.YES_OPTION) {
+                        recovery.discard();
+                    }
+                    loading = false;
+                    if (recovery.snapshot() != null) replaceFigures(recovery.snapshot(), snapshotGrid);
+                    else replaceFigures(all, grid);
+                    int replayed = recovery.replay(PaintCanvas.this);
+                    if (replayed < recovery.size()) {
+                        JOptionPane.showMessageDialog(PaintCanvas.this, "保存していない編集の一部を復元できませんでした");
+                    }
+                } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                    loading = false;
+                    showFigures(previous);
+                    Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(PaintCanvas.this, "読み込みに失敗しました: " + cause.getMessage());
+                    return;
+                }
+                try {
+                    journal.attach(recovery);
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(PaintCanvas.this, "自動保存を開始できませんでした: " + ex.getMessage());
+                }
+            }
+        };
+        watchProgress(worker, monitor);
+        worker.execute();
     }
 
-    
+    /**
+     * 今の図形を裏で保存する
+     * 保存を始めた時点の内容を書き出し、保存中も編集を続けられる
+     * （保存中に書き換える図形は、書き換える前に複製して保存側に渡す）。
+     * 保存した後は、保存先のジャーナルに編集を追記する。
+     * @param fname 保存先のファイル名
+     * @param onSuccess 保存できたときにイベントスレッドで実行する処理（null可）
+     */
+    public void startSave(String fname, Runnable onSuccess) {
+        if (loading) {
+            JOptionPane.showMessageDialog(this, "読み込み中のため保存できません");
+            return;
+        }
+        if (saveSnapshot != null) {
+            JOptionPane.showMessageDialog(this, "保存中です。終わってからもう一度保存してください");
+            return;
+        }
+        startCheckpoint(java.nio.file.Paths.get(fname), onSuccess);
+    }
 
-    @SuppressWarnings("unchecked")
-    public void load(String fname){
-        try {
-            FileInputStream fis = new FileInputStream(fname);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            Object o = ois.readObject();
-            if (o instanceof ArrayList) objList = (ArrayList<Figure>) o;
-            ois.close();
-            fis.close();
-        } catch(IOException e){
-        } catch(ClassNotFoundException e){
+    /**
+     * 今の図形で .dat を裏で書き直し、ジャーナルをそれ以降の編集だけにする
+     * @param path 保存先
+     * @param onSuccess 保存できたときにイベントスレッドで実行する処理（null可）
+     */
+    private void startCheckpoint(java.nio.file.Path path, Runnable onSuccess) {
+        SaveSnapshot snapshot = new SaveSnapshot(objList);
+        long boundary = journal.beginCheckpoint();
+        saveSnapshot = snapshot;
+        ProgressMonitor monitor = new ProgressMonitor(this, "保存中: " + path.getFileName(), null, 0, 100);
+
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+            @Override protected Void doInBackground() throws Exception {
+                journal.checkpoint(path, snapshot, (done, total) -> {
+                    setProgress(total > 0 ? (int) (done * 100L / total) : 100);
+                    return !isCancelled();
+                }, boundary);
+                return null;
+            }
+
+            @Override protected void done() {
+                monitor.close();
+                saveSnapshot = null;
+                if (isCancelled()) return;  // 一時ファイルは消えていて、元のファイルはそのまま
+                try {
+                    get();
+                    if (onSuccess != null) onSuccess.run();
+                } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                    Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                    JOptionPane.showMessageDialog(PaintCanvas.this, "保存に失敗しました: " + cause.getMessage());
+                }
+            }
+        };
+        watchProgress(worker, monitor);
+        worker.execute();
+    }
+
+    /**
+     * ジャーナルを裏で圧縮する（今の図形をジャーナルに書き、それより前の編集を捨てる）
+     * .dat は書き換えないので、利用者が保存するまでファイルは最後に保存した内容のまま残る。
+     * 保存と同じく、始めた時点の図形を書き出し、その間も編集を続けられる。失敗しても黙って追記を続ける。
+     */
+    private void startCompaction() {
+        SaveSnapshot snapshot = new SaveSnapshot(objList);
+        long boundary = journal.beginCheckpoint();
+        saveSnapshot = snapshot;
+
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+            @Override protected Void doInBackground() throws Exception {
+                journal.compact(snapshot, boundary);
+                return null;
+            }
+
+            @Override protected void done() {
+                saveSnapshot = null;
+                try {
+                    get();
+                } catch (InterruptedException | java.util.concurrent.ExecutionException ex) {
+                    Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+                    cause.printStackTrace();
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    /** 自動保存のジャーナル */
+    public DrawingJournal getJournal() { return journal; }
+
+    /** 自動保存の書き込みに失敗していれば知らせる（同じファイルでは最初の1度だけ） */
+    private void reportJournalFailure() {
+        IOException ex = journal.takeFailure();
+        if (ex == null) return;
+        JOptionPane.showMessageDialog(this, "自動保存に失敗しました。保存していない編集は、保存し直すまで守られません: " + ex.getMessage());
+    }
+
+    /** 処理の進み具合を表示し、キャンセルされたら処理を止める */
+    private static void watchProgress(SwingWorker<?, ?> worker, ProgressMonitor monitor) {
+        worker.addPropertyChangeListener(ev -> {
+            if (!"progress".equals(ev.getPropertyName())) return;
+            monitor.setProgress((Integer) ev.getNewValue());
+            if (monitor.isCanceled()) worker.cancel(false);
+        });
+    }
+
+    /**
+     * 図形をその場で書き換える前に呼ぶ
+     * 保存中なら、保存側には書き換える前の状態が渡るようにしておく
+     * @param f これから書き換える図形
+     */
+    private void beforeMutate(Figure f) {
+        SaveSnapshot snapshot = saveSnapshot;
+        if (snapshot != null) snapshot.beforeMutate(f);
+    }
+
+    /** 裏で読み込み中かどうか（読み込み中は編集・保存できない） */
+    public boolean isLoading() { return loading; }
+
+    /** 裏で保存中かどうか */
+    public boolean isSaving() { return saveSnapshot != null; }
+
+    /** 図形リストを丸ごと入れ替える（履歴は図形の位置で記録しているので捨てる） */
+    private void replaceFigures(ArrayList<Figure> list) {
+        replaceFigures(list, null);
+    }
+
+    /**
+     * 図形リストを丸ごと入れ替える（履歴と、前の図形で書き出した画像のキャッシュは捨てる）
+     * @param list 新しい図形リスト
+     * @param grid list の図形を登録済みのインデックス（nullならここで作る）
+     */
+    private void replaceFigures(ArrayList<Figure> list, SpatialGrid grid) {
+        history.clear();
+        exportCache.clear();
+        if (grid == null) {
+            showFigures(list);
+            return;
         }
+        objList = list;
+        figureIndex = grid;
+        invalidateScene();
         repaint();
     }
 
+    /** 図形リストを差し替えて表示する（履歴はそのまま） */
+    private void showFigures(ArrayList<Figure> list) {
+        objList = list;
+        figureListReplaced();
+        repaint();
+    }
+
+    /** 画面に見えている範囲（まだ配置されていなければ一般的な画面の大きさとみなす） */
+    private Rectangle2D visibleArea() {
+        int w = getWidth(), h = getHeight();
+        if (w <= 0 || h <= 0) { w = 2560; h = 1600; }
+        return new Rectangle2D.Double(0, 0, w, h);
+    }
+
     private int getHandleAt(double bx, double by, double bw, double bh, double mx, double my) {
         double cx = bx + bw/2.0;
         double cy = by + bh/2.0;
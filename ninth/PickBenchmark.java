@@ -0,0 +1,98 @@
+package ninth;
+
+import java.awt.Color;
+import java.awt.geom.Rectangle2D;
+import java.util.*;
+
+/**
+ * 選択モードのクリック判定の速さを測るベンチマーク
+ * 全図形を走査する従来の方法と、SpatialGrid で候補を絞る方法を比べる
+ *
+ * 実行例: java ninth.PickBenchmark 100000
+ */
+public class PickBenchmark {
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        int clicks = (args.length > 1) ? Integer.parseInt(args[1]) : 2_000;
+        double world = 8000.0;  // 図形を散らばらせる範囲（ピクセル）
+        Random rnd = new Random(42);
+
+        ArrayList<Figure> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) list.add(randomFigure(rnd, world));
+
+        long t0 = System.nanoTime();
+        SpatialGrid grid = new SpatialGrid();
+        grid.rebuild(list);
+        long buildNs = System.nanoTime() - t0;
+
+        double[] px = new double[clicks], py = new double[clicks];
+        for (int i = 0; i < clicks; i++) { px[i] = rnd.nextDouble() * world; py[i] = rnd.nextDouble() * world; }
+
+        // ウォームアップ（JIT コンパイルを済ませておく）
+        for (int i = 0; i < 200; i++) { pickLinear(list, px[i], py[i]); pickGrid(grid, px[i], py[i]); }
+
+        long linearNs = 0, gridNs = 0;
+        int mismatches = 0;
+        for (int i = 0; i < clicks; i++) {
+            long a = System.nanoTime();
+            Figure f1 = pickLinear(list, px[i], py[i]);
+            long b = System.nanoTime();
+            Figure f2 = pickGrid(grid, px[i], py[i]);
+            long c = System.nanoTime();
+            linearNs += b - a;
+            gridNs += c - b;
+            if (f1 != f2) mismatches++;
+        }
+
+        System.out.printf("figures: %d, clicks: %d%n", n, clicks);
+        System.out.printf("index build: %.1f ms%n", buildNs / 1e6);
+        System.out.printf("linear scan: %.1f us/click%n", linearNs / 1e3 / clicks);
+        System.out.printf("grid lookup: %.1f us/click%n", gridNs / 1e3 / clicks);
+        System.out.printf("mismatches: %d%n", mismatches);
+    }
+
+    /** 従来の方法：最上層から全図形を順に当たり判定 */
+    static Figure pickLinear(List<Figure> list, double x, double y) {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Figure f = list.get(i);
+            Rectangle2D bb = f.getBounds2D();
+            if (f.contains(x, y) || (bb != null && bb.contains(x, y))) return f;
+        }
+        return null;
+    }
+
+    /** インデックスで候補を絞ってから当たり判定 */
+    static Figure pickGrid(SpatialGrid grid, double x, double y) {
+        for (Figure f : grid.figuresAt(x, y)) {
+            Rectangle2D bb = f.getBounds2D();
+            if (f.contains(x, y) || (bb != null && bb.contains(x, y))) return f;
+        }
+        return null;
+    }
+
+    /** いろいろな種類の図形をランダムに作る */
+    static Figure randomFigure(Random rnd, double world) {
+        double x = rnd.nextDouble() * world, y = rnd.nextDouble() * world;
+        Figure f;
+        switch (rnd.nextInt(6)) {
+            case 0: f = new Dot(); break;
+            case 1: f = new Circle(); break;
+            case 2: f = new Rect(); break;
+            case 3: f = new Line(); break;
+            case 4: f = new Ellipse(); break;
+            default: {
+                Freehand fh = new Freehand(x, y, Color.BLACK, 2.0f);
+                double cx = x, cy = y;
+                int pts = 20 + rnd.nextInt(80);
+                for (int i = 0; i < pts; i++) {
+                    cx += rnd.nextGaussian() * 3; cy += rnd.nextGaussian() * 3;
+                    fh.addPoint(cx, cy);
+                }
+                return fh;
+            }
+        }
+        f.moveto(x, y);
+        f.setWH(rnd.nextDouble() * 60 - 30, rnd.nextDouble() * 60 - 30);
+        return f;
+    }
+}
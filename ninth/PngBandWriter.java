@@ -0,0 +1,328 @@
+package ninth;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.*;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PNG 画像を上から何行かずつ受け取って書き出すクラス
+ * 画像全体をメモリに置かずに、行を受け取るたびにフィルタをかけて IDAT の圧縮ストリームへ流す。
+ * メモリ上に持つのは直前の1行と、圧縮中の1塊分のデータ・チャンクのバッファだけになる。
+ *
+ * 出力は 8ビットの RGBA（カラータイプ6、インターレースなし）で、
+ * ImageIO で TYPE_INT_ARGB の画像を書いたときと同じ画素になる。
+ * 各行のフィルタは、フィルタ後のバイトの絶対値の合計が最小になるものを選ぶ（libpng と同じ目安）。
+ *
+ * 受け取った行の塊ごとに、前の塊を参照しない圧縮データ（Segment）を作ってから IDAT に流す。
+ * 塊の最初の行は前の行を使わないフィルタ（None/Sub）に限り、圧縮も塊ごとにやり直すので、
+ * 作った Segment はそのまま取っておいて、次に同じ画像を書き出すときに使い回せる（ExportCache を参照）。
+ * zlib のチェックサム（Adler-32）は塊ごとの値をつなぎ合わせて求める。
+ */
+public class PngBandWriter implements Closeable {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    // 1つの IDAT チャンクの大きさ
+    private static final int IDAT_SIZE = 1 << 16;
+    // 1画素のバイト数（RGBA）
+    private static final int BPP = 4;
+    // Adler-32 の法
+    private static final int ADLER_BASE = 65521;
+
+    private final DataOutputStream out;
+    private final int width, height;
+    // 塊ごとに reset して使う（zlib のヘッダとチェックサムは自分で書く）
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] deflated = new byte[IDAT_SIZE];
+    private final IdatStream idat = new IdatStream();
+    // 直前の行と今の行（RGBA）、フィルタをかけた行（先頭はフィルタの種類）
+    private byte[] prev, cur;
+    private final byte[][] filtered = new byte[5][];
+    private int rowsWritten = 0;
+    // ここまでに書いた行の Adler-32
+    private long adler = 1;
+
+    /** 何行かをまとめて圧縮したデータ（前の行・前の塊を参照しない） */
+    public static final class Segment {
+        final byte[] data;
+        // 圧縮前の行（先頭のフィルタの種類を含む）の Adler-32 とバイト数
+        final int adler;
+        final long length;
+        final int rows;
+
+        Segment(byte[] data, int adler, long length, int rows) {
+            this.data = data;
+            this.adler = adler;
+            this.length = length;
+            this.rows = rows;
+        }
+
+        /** 圧縮後のバイト数 */
+        public int size() { return data.length; }
+    }
+
+    /**
+     * シグネチャと IHDR を書き出す
+     * @param out 書き込み先（close で閉じる）
+     * @param width 画像の幅
+     * @param height 画像の高さ
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public PngBandWriter(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0 || (long) width * BPP + 1 > Integer.MAX_VALUE) throw new IllegalArgumentException("invalid size");
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        prev = new byte[width * BPP];
+        cur = new byte[width * BPP];
+        for (int i = 0; i < filtered.length; i++) filtered[i] = new byte[width * BPP + 1];
+
+        this.out.write(SIGNATURE);
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(ihdr);
+        d.writeInt(width);
+        d.writeInt(height);
+        d.writeByte(8);   // ビット深度
+        d.writeByte(6);   // カラータイプ（RGBA）
+        d.writeByte(0);   // 圧縮方式
+        d.writeByte(0);   // フィルタ方式
+        d.writeByte(0);   // インターレースなし
+        chunk("IHDR", ihdr.toByteArray(), ihdr.size());
+        // zlib のヘッダ（deflate、32KiB の窓、既定の圧縮レベル）
+        idat.write(0x78);
+        idat.write(0x9c);
+    }
+
+    /**
+     * 画像の上から rows 行を書き出す
+     * @param band TYPE_INT_ARGB の画像（幅は出力画像と同じ）
+     * @param rows 書き出す行数（band の高さ以下）
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void writeRows(BufferedImage band, int rows) throws IOException {
+        writeSegment(encode(band, rows));
+    }
+
+    /**
+     * band の上から rows 行にフィルタをかけて圧縮する（まだ書き出さない）
+     * @param band TYPE_INT_ARGB の画像（幅は出力画像と同じ）
+     * @param rows 圧縮する行数（band の高さ以下）
+     * @return 圧縮したデータ
+     */
+    public Segment encode(BufferedImage band, int rows) {
+        if (band.getType() != BufferedImage.TYPE_INT_ARGB || band.getWidth() != width) throw new IllegalArgumentException("band");
+        if (rows <= 0 || rows > band.getHeight()) throw new IllegalArgumentException("rows");
+        int[] data = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+        int stride = ((SinglePixelPackedSampleModel) band.getSampleModel()).getScanlineStride();
+        Adler32 sum = new Adler32();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        deflater.reset();
+        for (int y = 0; y < rows; y++) {
+            int base = y * stride;
+            for (int x = 0, i = 0; x < width; x++, i += BPP) {
+                int argb = data[base + x];
+                cur[i] = (byte) (argb >> 16);
+                cur[i + 1] = (byte) (argb >> 8);
+                cur[i + 2] = (byte) argb;
+                cur[i + 3] = (byte) (argb >>> 24);
+            }
+            byte[] row = filter(y == 0);
+            sum.update(row, 0, row.length);
+            deflater.setInput(row, 0, row.length);
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(deflated, 0, deflated.length, Deflater.NO_FLUSH);
+                buf.write(deflated, 0, n);
+            }
+            byte[] t = prev; prev = cur; cur = t;
+        }
+        // 次の塊が前の塊を参照せずに続けられるよう、バイト境界まで書き切る
+        int n;
+        do {
+            n = deflater.deflate(deflated, 0, deflated.length, Deflater.FULL_FLUSH);
+            buf.write(deflated, 0, n);
+        } while (n == deflated.length);
+        return new Segment(buf.toByteArray(), (int) sum.getValue(), (long) rows * (width * BPP + 1), rows);
+    }
+
+    /**
+     * 圧縮したデータを続きの行として書き出す
+     * @param seg この画像と同じ幅で encode したデータ
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void writeSegment(Segment seg) throws IOException {
+        if (seg.length != (long) seg.rows * (width * BPP + 1)) throw new IllegalArgumentException("segment width");
+        if (rowsWritten + seg.rows > height) throw new IllegalArgumentException("too many rows");
+        idat.write(seg.data, 0, seg.data.length);
+        adler = adlerCombine(adler, seg.adler & 0xffffffffL, seg.length);
+        rowsWritten += seg.rows;
+    }
+
+    /**
+     * 圧縮したデータを展開して、band の上から画素（TYPE_INT_ARGB）に戻す
+     * @param seg 幅 width で encode したデータ
+     * @param band 書き込む画像（幅は width、高さは seg の行数以上）
+     * @param width 画像の幅
+     * @throws IOException データが壊れているとき
+     */
+    public static void decode(Segment seg, BufferedImage band, int width) throws IOException {
+        int n = width * BPP;
+        byte[] prev = new byte[n], cur = new byte[n], row = new byte[n + 1];
+        int[] data = ((DataBufferInt) band.getRaster().getDataBuffer()).getData();
+        int stride = ((SinglePixelPackedSampleModel) band.getSampleModel()).getScanlineStride();
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(seg.data);
+            for (int y = 0; y < seg.rows; y++) {
+                for (int off = 0; off < row.length; ) {
+                    int k = inflater.inflate(row, off, row.length - off);
+                    if (k == 0 && (inflater.needsInput() || inflater.finished())) throw new EOFException("segment");
+                    off += k;
+                }
+                unfilter(row, prev, cur, y == 0);
+                int base = y * stride;
+                for (int x = 0, i = 0; x < width; x++, i += BPP) {
+                    data[base + x] = ((cur[i + 3] & 0xff) << 24) | ((cur[i] & 0xff) << 16) | ((cur[i + 1] & 0xff) << 8) | (cur[i + 2] & 0xff);
+                }
+                byte[] t = prev; prev = cur; cur = t;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** フィルタを外して cur に戻す（first のときは前の行を 0 とみなす） */
+    private static void unfilter(byte[] row, byte[] prev, byte[] cur, boolean first) {
+        int type = row[0];
+        for (int i = 0; i < cur.length; i++) {
+            int v = row[i + 1] & 0xff;
+            int a = (i >= BPP) ? cur[i - BPP] & 0xff : 0;
+            int b = first ? 0 : prev[i] & 0xff;
+            int c = (i >= BPP && !first) ? prev[i - BPP] & 0xff : 0;
+            switch (type) {
+                case 1: v += a; break;
+                case 2: v += b; break;
+                case 3: v += (a + b) >> 1; break;
+                case 4: v += paeth(a, b, c); break;
+                default: break;
+            }
+            cur[i] = (byte) v;
+        }
+    }
+
+    /** 前の部分の Adler-32 に、len2 バイトの続きの Adler-32 をつなげる（zlib の adler32_combine と同じ） */
+    private static long adlerCombine(long adler1, long adler2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= ((long) ADLER_BASE << 1)) sum2 -= ((long) ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * 今の行にフィルタをかけ、いちばん小さくなりそうなものを返す
+     * first（塊の最初の行）のときは前の行を使わない None と Sub だけから選ぶ
+     */
+    private byte[] filter(boolean first) {
+        int n = cur.length;
+        byte[] none = filtered[0], sub = filtered[1], up = filtered[2], avg = filtered[3], paeth = filtered[4];
+        none[0] = 0; sub[0] = 1; up[0] = 2; avg[0] = 3; paeth[0] = 4;
+        long sNone = 0, sSub = 0, sUp = 0, sAvg = 0, sPaeth = 0;
+        for (int i = 0; i < n; i++) {
+            int x = cur[i] & 0xff;
+            int a = (i >= BPP) ? cur[i - BPP] & 0xff : 0;
+            int b = first ? 0 : prev[i] & 0xff;
+            int c = (i >= BPP && !first) ? prev[i - BPP] & 0xff : 0;
+            byte v0 = (byte) x, v1 = (byte) (x - a), v2 = (byte) (x - b), v3 = (byte) (x - ((a + b) >> 1)), v4 = (byte) (x - paeth(a, b, c));
+            none[i + 1] = v0; sub[i + 1] = v1; up[i + 1] = v2; avg[i + 1] = v3; paeth[i + 1] = v4;
+            sNone += Math.abs(v0); sSub += Math.abs(v1); sUp += Math.abs(v2); sAvg += Math.abs(v3); sPaeth += Math.abs(v4);
+        }
+        byte[] best = none;
+        long min = sNone;
+        if (sSub < min) { best = sub; min = sSub; }
+        if (first) return best;
+        if (sUp < min) { best = up; min = sUp; }
+        if (sAvg < min) { best = avg; min = sAvg; }
+        if (sPaeth < min) { best = paeth; }
+        return best;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return (pb <= pc) ? b : c;
+    }
+
+    /**
+     * 圧縮ストリームを閉じて IEND を書き、書き込み先を閉じる
+     * @throws IOException 書き込みに失敗したとき、または行数が足りないとき
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) throw new IOException("行数が足りません: " + rowsWritten + "/" + height);
+            // 空の最終ブロックと、全体の Adler-32
+            idat.write(0x03);
+            idat.write(0x00);
+            for (int shift = 24; shift >= 0; shift -= 8) idat.write((int) (adler >>> shift) & 0xff);
+            idat.flush();
+            chunk("IEND", new byte[0], 0);
+            out.flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /** 長さ・種類・データ・CRC の順にチャンクを書く */
+    private void chunk(String type, byte[] data, int len) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] t = type.getBytes("US-ASCII");
+        crc.update(t);
+        crc.update(data, 0, len);
+        out.writeInt(len);
+        out.write(t);
+        out.write(data, 0, len);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /** 圧縮したデータを IDAT_SIZE ごとに IDAT チャンクにして書く */
+    private final class IdatStream extends OutputStream {
+        private final byte[] buf = new byte[IDAT_SIZE];
+        private int len = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (len == buf.length) flush();
+            buf[len++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            while (n > 0) {
+                if (len == buf.length) flush();
+                int k = Math.min(n, buf.length - len);
+                System.arraycopy(b, off, buf, len, k);
+                len += k; off += k; n -= k;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (len == 0) return;
+            chunk("IDAT", buf, len);
+            len = 0;
+        }
+    }
+}
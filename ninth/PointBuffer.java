@@ -0,0 +1,290 @@
+package ninth;
+
+import java.awt.geom.*;
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 点列を double 配列に詰めて保持するクラス
+ * Freehand と Polyline の頂点列に使う
+ * 点ごとに Point2D.Double を作らないので、メモリと保存サイズを抑えられる
+ *
+ * 配列の並びは x0, y0, x1, y1, ... で、末尾に余裕を持たせて確保する
+ * 全点を囲む範囲（最小・最大座標）は追加・平行移動のたびに差分で更新し、
+ * 点を書き換えたときだけ次に必要になった時点で計算し直す
+ */
+public class PointBuffer implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // 座標の配列（保存時は writeObject で使用中の部分だけを書き出す）
+    private transient double[] xy;
+    // 点の数
+    private transient int size;
+    // 全点の最小・最大座標と、それが現在の点列と一致しているか
+    private transient double minx, miny, maxx, maxy;
+    private transient boolean extentValid;
+
+    /** 空の点列を作成 */
+    public PointBuffer() { this(16); }
+
+    /**
+     * 容量を指定して空の点列を作成
+     * @param capacity 最初に確保する点の数
+     */
+    public PointBuffer(int capacity) {
+        xy = new double[Math.max(capacity, 1) * 2];
+        extentValid = true;
+    }
+
+    /** 点の数 */
+    public int size() { return size; }
+
+    /** 点がないかどうか */
+    public boolean isEmpty() { return size == 0; }
+
+    /** i番目の点のx座標 */
+    public double getX(int i) { return xy[i * 2]; }
+
+    /** i番目の点のy座標 */
+    public double getY(int i) { return xy[i * 2 + 1]; }
+
+    /**
+     * 末尾に点を追加（容量が足りないときだけ配列を広げる）
+     * @param x 追加する点のx座標
+     * @param y 追加する点のy座標
+     */
+    public void add(double x, double y) {
+        if (size * 2 + 2 > xy.length) xy = Arrays.copyOf(xy, (size + (size >> 1) + 1) * 2);
+        xy[size * 2] = x;
+        xy[size * 2 + 1] = y;
+        size++;
+        // 範囲は新しい点で広げるだけ
+        if (extentValid) {
+            if (size == 1) { minx = maxx = x; miny = maxy = y; }
+            else {
+                if (x < minx) minx = x;
+                if (y < miny) miny = y;
+                if (x > maxx) maxx = x;
+                if (y > maxy) maxy = y;
+            }
+        }
+    }
+
+    /** すべての点を取り除く（確保した配列はそのまま使い回す） */
+    public void clear() {
+        size = 0;
+        extentValid = true;
+    }
+
+    /**
+     * i番目の点を書き換える
+     * @param i 点の番号
+     * @param x 新しいx座標
+     * @param y 新しいy座標
+     */
+    public void set(int i, double x, double y) {
+        xy[i * 2] = x;
+        xy[i * 2 + 1] = y;
+        extentValid = false;  // 範囲が縮む可能性があるので次に使うときに計算し直す
+    }
+
+    /**
+     * すべての点を平行移動
+     * @param dx x方向の移動量
+     * @param dy y方向の移動量
+     */
+    public void translate(double dx, double dy) {
+        for (int i = 0, n = size * 2; i < n; i += 2) {
+            xy[i] += dx;
+            xy[i + 1] += dy;
+        }
+        // 範囲も同じだけずらす
+        minx += dx; maxx += dx;
+        miny += dy; maxy += dy;
+    }
+
+    /**
+     * 別の点列を拡大縮小した座標で、この点列の全点を置き換える
+     * 点(px, py)は (tx + (px - ox) * sx, ty + (py - oy) * sy) になる
+     * リサイズ中は元の点列から毎回計算し直すために使う
+     * @param src 元の点列（点の数が同じであること）
+     */
+    public void setScaled(PointBuffer src, double ox, double oy, double sx, double sy, double tx, double ty) {
+        for (int i = 0, n = size * 2; i < n; i += 2) {
+            xy[i] = tx + (src.xy[i] - ox) * sx;
+            xy[i + 1] = ty + (src.xy[i + 1] - oy) * sy;
+        }
+        // 拡大率が正なら、元の範囲を同じように変換すれば新しい範囲になる
+        if (src.extentValid && sx >= 0 && sy >= 0) {
+            minx = tx + (src.minx - ox) * sx; maxx = tx + (src.maxx - ox) * sx;
+            miny = ty + (src.miny - oy) * sy; maxy = ty + (src.maxy - oy) * sy;
+            extentValid = true;
+        } else {
+            extentValid = false;
+        }
+    }
+
+    /** 点列の複製を作成 */
+    public PointBuffer copy() {
+        return range(0, size);
+    }
+
+    /**
+     * [from, to) の範囲の点だけを持つ新しい点列を作成
+     * @param from 最初の点の番号
+     * @param to 最後の点の次の番号
+     * @return 新しい点列
+     */
+    public PointBuffer range(int from, int to) {
+        PointBuffer b = new PointBuffer(to - from);
+        System.arraycopy(xy, from * 2, b.xy, 0, (to - from) * 2);
+        b.size = to - from;
+        b.extentValid = false;
+        return b;
+    }
+
+    /**
+     * 形が tolerance より大きくずれない範囲で点を間引いた点列を作成（Ramer-Douglas-Peucker 法）
+     * 最初と最後の点は必ず残す。点の多い点列でもスタックがあふれないよう、再帰は使わない
+     * @param tolerance 元の点から、間引いた後の線までの距離の上限
+     * @return 新しい点列
+     */
+    public PointBuffer simplify(double tolerance) {
+        if (size <= 2) return copy();
+        boolean[] keep = new boolean[size];
+        keep[0] = keep[size - 1] = true;
+        int kept = 2;
+        double tol2 = tolerance * tolerance;
+        // 調べる区間（両端の点の番号）の積み残し
+        int[] stack = new int[64];
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = size - 1;
+        while (sp > 0) {
+            int last = stack[--sp], first = stack[--sp];
+            double ax = xy[first * 2], ay = xy[first * 2 + 1], bx = xy[last * 2], by = xy[last * 2 + 1];
+            // 両端を結ぶ線分から最も離れた点を探す（許容誤差以内なら間の点はすべて捨てる）
+            double farthest = tol2;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = Line2D.ptSegDistSq(ax, ay, bx, by, xy[i * 2], xy[i * 2 + 1]);
+                if (d > farthest) { farthest = d; index = i; }
+            }
+            if (index < 0) continue;
+            keep[index] = true;
+            kept++;
+            if (sp + 4 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+            if (index - first > 1) { stack[sp++] = first; stack[sp++] = index; }
+            if (last - index > 1) { stack[sp++] = index; stack[sp++] = last; }
+        }
+        PointBuffer b = new PointBuffer(kept);
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) b.add(xy[i * 2], xy[i * 2 + 1]);
+        }
+        return b;
+    }
+
+    /**
+     * 点列を順に線で結んでパスに追加する
+     * @param path 追加先のパス
+     */
+    public void appendTo(Path2D path) {
+        if (size == 0) return;
+        path.moveTo(xy[0], xy[1]);
+        for (int i = 2, n = size * 2; i < n; i += 2) path.lineTo(xy[i], xy[i + 1]);
+    }
+
+    /**
+     * 点(px, py)がいずれかの線分から thresh 以内にあるかを判定
+     * @param px テストするx座標
+     * @param py テストするy座標
+     * @param thresh 距離のしきい値
+     * @return 近い線分があればtrue
+     */
+    public boolean isNear(double px, double py, double thresh) {
+        for (int i = 0, n = (size - 1) * 2; i < n; i += 2) {
+            if (Line2D.ptSegDistSq(xy[i], xy[i + 1], xy[i + 2], xy[i + 3], px, py) <= thresh * thresh) return true;
+        }
+        return false;
+    }
+
+    /**
+     * すべての点を囲む矩形を取得
+     * 範囲は差分で保持しているので、点を書き換えた直後以外は O(1)
+     * @param pad 四方に足す余白
+     * @return 余白を含む矩形（点がなければnull）
+     */
+    public Rectangle2D bounds(double pad) {
+        if (size == 0) return null;
+        if (!extentValid) recomputeExtent();
+        return new Rectangle2D.Double(minx - pad, miny - pad, (maxx - minx) + pad*2, (maxy - miny) + pad*2);
+    }
+
+    /** 全点を走査して範囲を計算し直す */
+    private void recomputeExtent() {
+        minx = miny = Double.POSITIVE_INFINITY;
+        maxx = maxy = Double.NEGATIVE_INFINITY;
+        for (int i = 0, n = size * 2; i < n; i += 2) {
+            double x = xy[i], y = xy[i + 1];
+            if (x < minx) minx = x;
+            if (y < miny) miny = y;
+            if (x > maxx) maxx = x;
+            if (y > maxy) maxy = y;
+        }
+        extentValid = true;
+    }
+
+    /**
+     * すべての点の座標を順にハッシュ値に混ぜる（Figure.fingerprint を参照）
+     * @param h 混ぜる前のハッシュ値
+     * @return 混ぜた後のハッシュ値
+     */
+    public long fingerprint(long h) {
+        h = Figure.mix(h, size);
+        for (int i = 0, n = size * 2; i < n; i++) h = Figure.mix(h, Double.doubleToLongBits(xy[i]));
+        return h;
+    }
+
+    /** 点列がメモリ上で占めるおおよそのバイト数 */
+    public long sizeBytes() { return 48 + xy.length * 8L; }
+
+    /** 余分に確保している容量を切り詰める */
+    public void trimToSize() {
+        if (xy.length != size * 2) xy = Arrays.copyOf(xy, Math.max(size, 1) * 2);
+    }
+
+    /**
+     * 旧形式の図形データ（点列を ArrayList<Point2D.Double> の pts に持っていた頃）から点列を作る
+     * @param fields 読み込み中の図形のフィールド
+     * @return 変換した点列（pts がなければ空の点列）
+     */
+    static PointBuffer fromLegacy(ObjectInputStream.GetField fields) throws IOException {
+        PointBuffer b = new PointBuffer();
+        if (fields.getObjectStreamClass().getField("pts") == null) return b;
+        Object old = fields.get("pts", null);
+        if (old instanceof List) {
+            for (Object o : (List<?>) old) {
+                if (o instanceof Point2D) b.add(((Point2D) o).getX(), ((Point2D) o).getY());
+            }
+        }
+        b.trimToSize();
+        return b;
+    }
+
+    // 使用中の点だけを書き出す
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0, n = size * 2; i < n; i++) out.writeDouble(xy[i]);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        size = in.readInt();
+        if (size < 0) throw new InvalidObjectException("negative point count");
+        xy = new double[Math.max(size, 1) * 2];
+        for (int i = 0, n = size * 2; i < n; i++) xy[i] = in.readDouble();
+        extentValid = false;
+    }
+}
@@ -2,7 +2,7 @@ package ninth;
 
 import java.awt.*;
 import java.awt.geom.*;
-import java.util.ArrayList;
+import java.io.*;
 
 /**
  * 折れ線を描画するクラス
@@ -10,7 +10,9 @@ import java.util.ArrayList;
  * Freehandと異なり、クリック単位で頂点が追加されるため、より正確な形状を描ける
  */
 public class Polyline extends Figure {
-    ArrayList<Point2D.Double> pts = new ArrayList<>();  // 頂点の列
+    private static final long serialVersionUID = 5357085680559119548L;
+
+    PointBuffer points = new PointBuffer();  // 頂点の列
 
     /**
      * コンストラクタ：開始点、色、線幅を設定
@@ -27,7 +29,7 @@ public class Polyline extends Figure {
         // 線幅を設定
         this.strokeWidth = strokeWidth;
         // 最初の頂点を追加
-        pts.add(new Point2D.Double(x, y));
+        points.add(x, y);
     }
 
     /**
@@ -36,31 +38,76 @@ public class Polyline extends Figure {
      * @param y 追加する頂点のy座標
      */
     public void addPoint(double x, double y) {
-        pts.add(new Point2D.Double(x, y));
+        points.add(x, y);
+        // 作成済みのパスには末尾に線分を足すだけ（作り直さない）
+        if (shape != null) ((Path2D) shape).lineTo(x, y);
+        // 外接矩形は点列側で差分更新済みなので、取り直すだけで済む
+        bounds = null;
+    }
+
+    /**
+     * 頂点列を取得
+     * 取得した点列を書き換えた場合は invalidate() を呼ぶこと
+     */
+    public PointBuffer getPoints() { return points; }
+
+    /** 複製を作成（頂点列も複製する） */
+    @Override
+    public Polyline copy() {
+        Polyline f = (Polyline) super.copy();
+        f.points = points.copy();
+        return f;
+    }
+
+    @Override
+    public long sizeBytes() { return super.sizeBytes() + points.sizeBytes(); }
+
+    @Override
+    public long fingerprint() { return points.fingerprint(super.fingerprint()); }
+
+    /** 相対移動：すべての頂点を平行移動する */
+    @Override
+    public void move(double dx, double dy) {
+        super.move(dx, dy);
+        points.translate(dx, dy);
     }
 
-    /** 頂点列を取得 */
-    public ArrayList<Point2D.Double> getPoints() { return pts; }
+    /** 絶対移動：最初の頂点が(x, y)に来るように全体を平行移動する */
+    @Override
+    public void moveto(double x, double y) {
+        move(x - this.x, y - this.y);
+    }
+
+    /**
+     * 頂点を順に直線で接続したパスを作成
+     * 線分ごとに Line2D を作らず、1本のパスにまとめて描く
+     */
+    @Override
+    protected Shape createShape() {
+        Path2D path = new Path2D.Double(Path2D.WIND_NON_ZERO, Math.max(points.size(), 2));
+        points.appendTo(path);
+        return path;
+    }
+
+    /** 折れ線は塗らずに線だけを描く */
+    @Override
+    public boolean paintsFill() { return false; }
+    @Override
+    public boolean paintsStroke() { return points.size() >= 2; }
 
     /**
      * 折れ線を描画
-     * 頂点を順に直線で接続して描く
+     * キャッシュ済みのパスを描く
      */
     @Override
     public void paint(Graphics2D g) {
-        if (pts.size() == 0) return;  // 頂点がない場合は何も描かない
+        if (points.size() < 2) return;  // 線分がない場合は何も描かない
         
         g.setColor(color);  // 描画色を設定
         // 線のスタイルを設定
-        g.setStroke(new BasicStroke((float)strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.setStroke(getStroke());
         
-        // 隣接する頂点ペアを順に線分で接続
-        for (int i = 0; i + 1 < pts.size(); i++) {
-            Point2D.Double a = pts.get(i);      // i番目の頂点
-            Point2D.Double b = pts.get(i+1);    // i+1番目の頂点
-            // 頂点aからbまでの直線を描画
-            g.draw(new Line2D.Double(a.x, a.y, b.x, b.y));
-        }
+        g.draw(getShape());
     }
 
     /**
@@ -72,44 +119,33 @@ public class Polyline extends Figure {
      */
     @Override
     public boolean contains(double px, double py) {
-        if (pts.size() < 2) return false;  // 頂点が2個未満なら線分がないのでfalse
+        if (points.size() < 2) return false;  // 頂点が2個未満なら線分がないのでfalse
         
         // 判定用のしきい値（最低2.0または線幅の半分）
         double thresh = Math.max(2.0, strokeWidth/2.0);
-        
-        // 各線分に対して距離を計算
-        for (int i = 0; i + 1 < pts.size(); i++) {
-            Point2D.Double a = pts.get(i);      // 線分の始点
-            Point2D.Double b = pts.get(i+1);    // 線分の終点
-            // 点から線分までの最短距離
-            double dist = Line2D.ptSegDist(a.x, a.y, b.x, b.y, px, py);
-            if (dist <= thresh) return true;  // しきい値以下なら選択可能
-        }
-        return false;
+        return points.isNear(px, py, thresh);
     }
 
     /**
-     * 外接矩形を取得
-     * すべての頂点を囲む最小の矩形を計算
+     * 外接矩形を計算
+     * 点列側で差分更新している範囲から求める（O(1)）
      * @return 折れ線を囲む矩形（パディング付き）
      */
     @Override
-    public Rectangle2D getBounds2D() {
-        if (pts.isEmpty()) return null;  // 頂点がない場合はnull
-        
-        // すべての頂点から最小・最大座標を探す
-        double minx = Double.POSITIVE_INFINITY, miny = Double.POSITIVE_INFINITY;
-        double maxx = Double.NEGATIVE_INFINITY, maxy = Double.NEGATIVE_INFINITY;
-        for (Point2D.Double p : pts) {
-            if (p.x < minx) minx = p.x;
-            if (p.y < miny) miny = p.y;
-            if (p.x > maxx) maxx = p.x;
-            if (p.y > maxy) maxy = p.y;
-        }
-        
+    protected Rectangle2D computeBounds() {
         // 選択しやすくするためのパディング
         double pad = Math.max(2.0, strokeWidth/2.0);
-        // パディングを含めた矩形を返す
-        return new Rectangle2D.Double(minx - pad, miny - pad, (maxx - minx) + pad*2, (maxy - miny) + pad*2);
+        // パディングを含めた矩形を返す（頂点がない場合はnull）
+        return points.bounds(pad);
+    }
+
+    /**
+     * 読み込み時の処理
+     * 旧形式（頂点列を ArrayList の pts に持っていた頃）のデータも変換して読む
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        points = (PointBuffer) fields.get("points", null);
+        if (points == null) points = PointBuffer.fromLegacy(fields);
     }
 }
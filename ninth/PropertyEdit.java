@@ -0,0 +1,53 @@
+package ninth;
+
+import java.awt.Color;
+
+/**
+ * 図形の色・線幅・塗りつぶしを変える編集（右クリックでの編集）
+ */
+public class PropertyEdit implements Edit {
+    private static final long serialVersionUID = 1L;
+
+    private final int index;
+    private final Color oldColor, newColor;
+    private final double oldWidth, newWidth;
+    private final boolean oldFilled, newFilled;
+
+    /**
+     * @param index 変更した図形の位置
+     */
+    public PropertyEdit(int index, Color oldColor, double oldWidth, boolean oldFilled,
+                        Color newColor, double newWidth, boolean newFilled) {
+        this.index = index;
+        this.oldColor = oldColor; this.oldWidth = oldWidth; this.oldFilled = oldFilled;
+        this.newColor = newColor; this.newWidth = newWidth; this.newFilled = newFilled;
+    }
+
+    /** 何も変えていないかどうか */
+    public boolean isEmpty() {
+        return oldWidth == newWidth && oldFilled == newFilled
+                && (oldColor == null ? newColor == null : oldColor.equals(newColor));
+    }
+
+    @Override
+    public void undo(PaintCanvas canvas) {
+        apply(canvas, oldColor, oldWidth, oldFilled);
+    }
+
+    @Override
+    public void redo(PaintCanvas canvas) {
+        apply(canvas, newColor, newWidth, newFilled);
+    }
+
+    @Override
+    public long sizeBytes() { return 72; }
+
+    private void apply(PaintCanvas canvas, Color c, double w, boolean fill) {
+        Figure f = canvas.getFigure(index);
+        canvas.changeFigure(f, () -> {
+            f.color = c;
+            f.strokeWidth = w;
+            f.filled = fill;
+        });
+    }
+}
@@ -9,13 +9,13 @@ import java.awt.geom.*;
  * 負の幅・高さを正の値に正規化する処理を含む
  */
 public class Rect extends Figure {
-    Rectangle2D f;  // 描画用の矩形オブジェクト
+    private static final long serialVersionUID = -4755458968244586311L;
 
     /**
-     * 矩形を描画
+     * 矩形の形状を作成
      * w, h が負の場合にも対応し、正しい左上座標とサイズを計算
      */
-    @Override public void paint(Graphics2D g) {
+    @Override protected Shape createShape() {
         // 初期値：始点を左上、wとhをそのまま使用
         double left = x, top = y;
         double width = w, height = h;
@@ -32,10 +32,18 @@ public class Rect extends Figure {
         }
         
         // 正規化された座標とサイズで矩形を作成
-        f = new Rectangle2D.Double(left, top, width, height);
+        return new Rectangle2D.Double(left, top, width, height);
+    }
+
+    /**
+     * 矩形を描画
+     * キャッシュ済みの矩形を描く
+     */
+    @Override public void paint(Graphics2D g) {
+        Shape f = getShape();
         
         // 線のスタイルを設定
-        g.setStroke(new BasicStroke((float)strokeWidth, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.setStroke(getStroke());
         g.setPaint(color);  // 描画色を設定
         
         // 塗りつぶしまたは枠線描画
@@ -62,11 +70,11 @@ public class Rect extends Figure {
     }
 
     /**
-     * 外接矩形を取得（矩形自身の境界）
+     * 外接矩形を計算（矩形自身の境界）
      * @return 正規化された矩形
      */
     @Override
-    public java.awt.geom.Rectangle2D getBounds2D() {
+    protected java.awt.geom.Rectangle2D computeBounds() {
         // 座標を正規化
         double left = x, top = y;
         double width = w, height = h;
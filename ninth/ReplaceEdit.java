@@ -0,0 +1,79 @@
+package ninth;
+
+/**
+ * 図形の集合を取り除き、別の図形の集合を差し込む編集
+ * 図形の追加、消しゴムによる削除・分割、全消去、リサイズ（変更前の複製との入れ替え）をこれで表す
+ *
+ * removedAt は編集前のリストでの位置、addedAt は編集後のリストでの位置で、どちらも昇順。
+ * やり直すときは取り除く図形を後ろから外してから、差し込む図形を前から入れる
+ * （取り消すときはその逆）ので、途中で位置がずれない。
+ *
+ * 持っている図形はこの編集専用で、リストには常に複製を差し込む。
+ * リストに入った図形が後の編集で書き換えられても、ここに残した状態は変わらないので、
+ * 履歴を圧縮・退避する時点によらず同じ内容を復元できる。
+ */
+public class ReplaceEdit implements Edit {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] removedAt;
+    private final Figure[] removed;
+    private final int[] addedAt;
+    private final Figure[] added;
+
+    /**
+     * @param removedAt 取り除く図形の編集前の位置（昇順）
+     * @param removed 取り除く図形
+     * @param addedAt 差し込む図形の編集後の位置（昇順）
+     * @param added 差し込む図形
+     */
+    public ReplaceEdit(int[] removedAt, Figure[] removed, int[] addedAt, Figure[] added) {
+        this.removedAt = removedAt;
+        this.removed = removed;
+        this.addedAt = addedAt;
+        this.added = added;
+    }
+
+    /**
+     * 図形を1つ追加する編集
+     * @param index 追加する位置
+     * @param f 追加する図形
+     */
+    public static ReplaceEdit add(int index, Figure f) {
+        return new ReplaceEdit(new int[0], new Figure[0], new int[]{index}, new Figure[]{f});
+    }
+
+    /**
+     * index 番目の図形を別の図形に置き換える編集
+     * @param index 置き換える位置
+     * @param before 編集前の図形
+     * @param after 編集後の図形
+     */
+    public static ReplaceEdit replace(int index, Figure before, Figure after) {
+        return new ReplaceEdit(new int[]{index}, new Figure[]{before}, new int[]{index}, new Figure[]{after});
+    }
+
+    /** 何も変えない編集かどうか */
+    public boolean isEmpty() {
+        return removed.length == 0 && added.length == 0;
+    }
+
+    @Override
+    public void undo(PaintCanvas canvas) {
+        for (int i = addedAt.length - 1; i >= 0; i--) canvas.removeFigure(addedAt[i]);
+        for (int i = 0; i < removedAt.length; i++) canvas.insertFigure(removedAt[i], removed[i].copy());
+    }
+
+    @Override
+    public void redo(PaintCanvas canvas) {
+        for (int i = removedAt.length - 1; i >= 0; i--) canvas.removeFigure(removedAt[i]);
+        for (int i = 0; i < addedAt.length; i++) canvas.insertFigure(addedAt[i], added[i].copy());
+    }
+
+    @Override
+    public long sizeBytes() {
+        long n = 64 + (removedAt.length + addedAt.length) * 12L;
+        for (Figure f : removed) n += f.sizeBytes();
+        for (Figure f : added) n += f.sizeBytes();
+        return n;
+    }
+}
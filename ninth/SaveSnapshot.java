@@ -0,0 +1,42 @@
+package ninth;
+
+import java.util.*;
+
+/**
+ * 保存中の図形リストのスナップショット
+ * 保存を始めた時点の並びを控え、保存中に書き換えられる図形だけを書き換え前に複製する（コピーオンライト）
+ *
+ * 保存側（DrawingFile）はこのリストをロックして図形を1つずつ読むので、
+ * 編集側は書き換える前に beforeMutate を呼べば、保存中のファイルには保存開始時の内容が書かれる。
+ */
+public class SaveSnapshot extends AbstractList<Figure> implements RandomAccess {
+    private final Figure[] figures;
+    // 保存中に書き換えられた図形 → 書き換え前の複製
+    private final IdentityHashMap<Figure, Figure> copies = new IdentityHashMap<>();
+
+    /**
+     * @param list 保存する図形リスト（並びだけを控える）
+     */
+    public SaveSnapshot(List<Figure> list) {
+        figures = list.toArray(new Figure[0]);
+    }
+
+    /** 保存開始時の index 番目の図形（書き換えられていれば書き換え前の複製） */
+    @Override
+    public synchronized Figure get(int index) {
+        Figure f = figures[index];
+        Figure copy = copies.get(f);
+        return (copy != null) ? copy : f;
+    }
+
+    @Override
+    public int size() { return figures.length; }
+
+    /**
+     * 図形をその場で書き換える前に呼ぶ（初回だけ書き換え前の状態を複製しておく）
+     * @param f これから書き換える図形
+     */
+    public synchronized void beforeMutate(Figure f) {
+        if (!copies.containsKey(f)) copies.put(f, f.copy());
+    }
+}
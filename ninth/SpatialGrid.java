@@ -0,0 +1,269 @@
+package ninth;
+
+import java.awt.geom.Rectangle2D;
+import java.util.*;
+
+/**
+ * 図形の外接矩形を一様グリッドに登録する空間インデックス
+ * 選択モードのクリック判定などで、すべての図形を走査せずに
+ * 指定位置・指定範囲にかかる図形の候補だけを取り出すために使う
+ *
+ * 各図形には重なり順を表すキー(z)を持たせ、候補は描画順で返す。
+ * 図形の追加・移動・削除のたびに PaintCanvas から更新される。
+ *
+ * 登録する範囲は外接矩形を線幅の半分だけ広げた「描画範囲」なので、
+ * 返す図形は候補であり、厳密な判定は呼び出し側で行う。
+ */
+public class SpatialGrid {
+    // 既定のセルの一辺（ピクセル）
+    static final double DEFAULT_CELL_SIZE = 64.0;
+    // 1つの図形を登録するセル数の上限（これを超える大きな図形は別リストで管理）
+    private static final int MAX_CELLS_PER_FIGURE = 64;
+
+    /** 登録された図形1つ分の情報 */
+    private static final class Entry {
+        final Figure fig;
+        double z;                          // 重なり順のキー（大きいほど手前）
+        double minx, miny, maxx, maxy;     // 登録時の描画範囲
+        boolean hasBounds;                 // 外接矩形があるか（点のないフリーハンドなどはfalse）
+        boolean large;                     // 大きな図形リストに入っているか
+        int cx0, cy0, cx1, cy1;            // 登録しているセルの範囲（両端を含む）
+        int stamp;                         // 問い合わせ中の重複除去用
+
+        Entry(Figure fig) { this.fig = fig; }
+    }
+
+    private final double cellSize;
+    // セル座標 → そのセルにかかる図形
+    private final HashMap<Long, ArrayList<Entry>> cells = new HashMap<>();
+    // セル数の上限を超える大きな図形
+    private final ArrayList<Entry> large = new ArrayList<>();
+    // 図形 → 登録情報（同じ内容の図形も別物として扱うため同一性で引く）
+    private final IdentityHashMap<Figure, Entry> entries = new IdentityHashMap<>();
+    // 重複除去用のカウンタ
+    private int stamp = 0;
+
+    public SpatialGrid() { this(DEFAULT_CELL_SIZE); }
+
+    public SpatialGrid(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /** 登録されている図形の数 */
+    public int size() { return entries.size(); }
+
+    /**
+     * リストの内容でインデックスを作り直す（読み込みやUndo/Redoなど、リスト全体が変わったとき）
+     * @param list 描画順の図形リスト
+     */
+    public void rebuild(List<Figure> list) {
+        cells.clear();
+        large.clear();
+        entries.clear();
+        for (int i = 0; i < list.size(); i++) {
+            Entry e = new Entry(list.get(i));
+            e.z = i;
+            entries.put(e.fig, e);
+            register(e);
+        }
+    }
+
+    /**
+     * リストの index 番目に入った図形を登録する
+     * 重なり順のキーは前後の図形のキーの間に取る
+     * @param list 図形を追加した後の描画順リスト
+     * @param index 追加した図形の位置
+     */
+    public void insert(List<Figure> list, int index) {
+        Figure f = list.get(index);
+        Entry e = new Entry(f);
+        Entry prev = (index > 0) ? entries.get(list.get(index - 1)) : null;
+        Entry next = (index + 1 < list.size()) ? entries.get(list.get(index + 1)) : null;
+        entries.put(f, e);
+
+        if (prev == null && next == null) e.z = 0;
+        else if (next == null) e.z = prev.z + 1;
+        else if (prev == null) e.z = next.z - 1;
+        else {
+            e.z = (prev.z + next.z) / 2.0;
+            // 間に取れる値がなくなったら全体を振り直す
+            if (e.z <= prev.z || e.z >= next.z) renumber(list);
+        }
+        register(e);
+    }
+
+    /**
+     * 図形をインデックスから外す
+     * @param f 削除する図形
+     */
+    public void remove(Figure f) {
+        Entry e = entries.remove(f);
+        if (e != null) unregister(e);
+    }
+
+    /**
+     * 図形の移動・リサイズ・線幅変更の後に登録位置を更新する
+     * @param f 変更された図形
+     */
+    public void update(Figure f) {
+        Entry e = entries.get(f);
+        if (e == null) return;
+        unregister(e);
+        register(e);
+    }
+
+    /**
+     * 点(px, py)を描画範囲に含む図形を、手前（描画順の後ろ）から順に返す
+     * @param px x座標
+     * @param py y座標
+     * @return 候補の図形（手前から順）
+     */
+    public List<Figure> figuresAt(double px, double py) {
+        ArrayList<Entry> hits = new ArrayList<>();
+        stamp++;
+        ArrayList<Entry> bucket = cells.get(key(cellOf(px), cellOf(py)));
+        if (bucket != null) {
+            for (Entry e : bucket) {
+                if (e.stamp != stamp && containsPoint(e, px, py)) { e.stamp = stamp; hits.add(e); }
+            }
+        }
+        for (Entry e : large) {
+            if (containsPoint(e, px, py)) hits.add(e);
+        }
+        hits.sort((a, b) -> Double.compare(b.z, a.z));
+        return toFigures(hits);
+    }
+
+    /**
+     * 描画範囲が範囲 r と重なる図形を描画順（奥から手前）で返す
+     * @param r 問い合わせ範囲
+     * @return 候補の図形（描画順）
+     */
+    public List<Figure> figuresIn(Rectangle2D r) {
+        ArrayList<Entry> hits = new ArrayList<>();
+        double rx0 = r.getMinX(), ry0 = r.getMinY(), rx1 = r.getMaxX(), ry1 = r.getMaxY();
+        int cx0 = cellOf(rx0), cy0 = cellOf(ry0), cx1 = cellOf(rx1), cy1 = cellOf(ry1);
+        long cellCount = (long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1);
+
+        if (cellCount > entries.size()) {
+            // 範囲が広すぎるときはセルを回るより全件を調べた方が速い
+            for (Entry e : entries.values()) {
+                if (intersects(e, rx0, ry0, rx1, ry1)) hits.add(e);
+            }
+        } else {
+            stamp++;
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    ArrayList<Entry> bucket = cells.get(key(cx, cy));
+                    if (bucket == null) continue;
+                    for (Entry e : bucket) {
+                        if (e.stamp != stamp && intersects(e, rx0, ry0, rx1, ry1)) { e.stamp = stamp; hits.add(e); }
+                    }
+                }
+            }
+            for (Entry e : large) {
+                if (intersects(e, rx0, ry0, rx1, ry1)) hits.add(e);
+            }
+        }
+        hits.sort((a, b) -> Double.compare(a.z, b.z));
+        return toFigures(hits);
+    }
+
+    /**
+     * 図形のリスト上の位置を、重なり順のキーで二分探索して求める
+     * @param list 登録した図形の描画順リスト
+     * @param f 探す図形
+     * @return 位置（登録されていない、またはキーの順がリストと合わないときは-1）
+     */
+    public int indexOf(List<Figure> list, Figure f) {
+        Entry e = entries.get(f);
+        if (e == null) return -1;
+        int lo = 0, hi = list.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Figure m = list.get(mid);
+            if (m == f) return mid;
+            Entry me = entries.get(m);
+            if (me == null) return -1;
+            if (me.z < e.z) lo = mid + 1;
+            else hi = mid - 1;
+        }
+        return -1;
+    }
+
+    // ---- 内部処理 ----
+
+    /** 図形の現在の描画範囲でセルに登録する */
+    private void register(Entry e) {
+        Rectangle2D bb = e.fig.getBounds2D();
+        e.hasBounds = (bb != null);
+        e.large = false;
+        if (bb == null) return;
+        // 枠線は外接矩形から線幅の半分だけはみ出す（さらに丸め誤差の分を足す）
+        double pad = e.fig.strokeWidth / 2.0 + 1.0;
+        e.minx = bb.getMinX() - pad; e.miny = bb.getMinY() - pad;
+        e.maxx = bb.getMaxX() + pad; e.maxy = bb.getMaxY() + pad;
+        e.cx0 = cellOf(e.minx); e.cy0 = cellOf(e.miny);
+        e.cx1 = cellOf(e.maxx); e.cy1 = cellOf(e.maxy);
+
+        long cellCount = (long) (e.cx1 - e.cx0 + 1) * (e.cy1 - e.cy0 + 1);
+        if (cellCount > MAX_CELLS_PER_FIGURE) {
+            e.large = true;
+            large.add(e);
+            return;
+        }
+        for (int cy = e.cy0; cy <= e.cy1; cy++) {
+            for (int cx = e.cx0; cx <= e.cx1; cx++) {
+                cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>()).add(e);
+            }
+        }
+    }
+
+    /** 登録しているセルから外す */
+    private void unregister(Entry e) {
+        if (!e.hasBounds) return;
+        if (e.large) {
+            large.remove(e);
+            return;
+        }
+        for (int cy = e.cy0; cy <= e.cy1; cy++) {
+            for (int cx = e.cx0; cx <= e.cx1; cx++) {
+                Long k = key(cx, cy);
+                ArrayList<Entry> bucket = cells.get(k);
+                if (bucket == null) continue;
+                bucket.remove(e);
+                if (bucket.isEmpty()) cells.remove(k);
+            }
+        }
+    }
+
+    /** リストの順に重なり順のキーを振り直す */
+    private void renumber(List<Figure> list) {
+        for (int i = 0; i < list.size(); i++) {
+            Entry e = entries.get(list.get(i));
+            if (e != null) e.z = i;
+        }
+    }
+
+    private int cellOf(double v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static Long key(int cx, int cy) {
+        return ((long) cx << 32) ^ (cy & 0xffffffffL);
+    }
+
+    private static boolean containsPoint(Entry e, double px, double py) {
+        return e.hasBounds && px >= e.minx && px <= e.maxx && py >= e.miny && py <= e.maxy;
+    }
+
+    private static boolean intersects(Entry e, double x0, double y0, double x1, double y1) {
+        return e.hasBounds && e.maxx >= x0 && e.minx <= x1 && e.maxy >= y0 && e.miny <= y1;
+    }
+
+    private static List<Figure> toFigures(ArrayList<Entry> hits) {
+        ArrayList<Figure> out = new ArrayList<>(hits.size());
+        for (Entry e : hits) out.add(e.fig);
+        return out;
+    }
+}
@@ -0,0 +1,42 @@
+package ninth;
+
+import java.awt.BasicStroke;
+import java.util.HashMap;
+
+/**
+ * BasicStroke を（線幅・端の形・接続部の形）の組み合わせごとに1つだけ作り、
+ * すべての図形で使い回すためのキャッシュ
+ * 描画のたびに BasicStroke を new しないようにする
+ */
+public final class StrokeCache {
+    // キー（線幅のビット列・端の形・接続部の形）→ 共有の BasicStroke
+    private static final HashMap<Long, BasicStroke> cache = new HashMap<>();
+
+    private StrokeCache() {}
+
+    /**
+     * 端と接続部を丸めた線のスタイルを取得（図形の描画で使う標準のスタイル）
+     * @param width 線幅
+     * @return 共有の BasicStroke
+     */
+    public static BasicStroke get(double width) {
+        return get((float) width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    }
+
+    /**
+     * 線のスタイルを取得
+     * @param width 線幅
+     * @param cap 端の形（BasicStroke.CAP_*）
+     * @param join 接続部の形（BasicStroke.JOIN_*）
+     * @return 共有の BasicStroke
+     */
+    public static synchronized BasicStroke get(float width, int cap, int join) {
+        long key = ((long) Float.floatToIntBits(width) << 32) | (cap << 8) | join;
+        BasicStroke s = cache.get(key);
+        if (s == null) {
+            s = new BasicStroke(width, cap, join);
+            cache.put(key, s);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,197 @@
+package ninth;
+
+import java.awt.Color;
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+import java.awt.geom.RectangularShape;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * 図形を SVG 画像として書き出すクラス
+ * DOM を作らずに、描画順に図形の形状（Figure.getShape）をそのまま path 要素として Writer へ流す。
+ * メモリに置くのは書き出し中の図形1つ分だけなので、点の多いフリーハンドでも使用量は増えない。
+ *
+ * 色・線幅・塗りが同じで続く図形は、1つの path 要素の部分パスとしてまとめる。
+ * （半透明の色は重なりが濃くなるのでまとめない。塗る図形は向きが揃う四角形・楕円・円だけをまとめる）
+ * 座標は小数点以下 digits 桁に丸め、2点目以降は前の点との差分で書く。
+ *
+ * 拡大率と位置は PNG 出力（ExportRenderer.fit）と同じく、図形全体が画像に収まるように決める。
+ * 1つの SvgExporter を同時に複数の書き出しに使わないこと。
+ */
+public class SvgExporter {
+    private final int digits;
+    private final long unit;
+
+    private Writer out;
+    // 今の path 要素の、最後に書いたコマンドと現在の点・部分パスの始点（丸めた整数）
+    private char lastCommand;
+    private long curX, curY, startX, startY;
+    private final double[] seg = new double[6];
+
+    /**
+     * @param digits 座標を丸める小数点以下の桁数（0～6）
+     */
+    public SvgExporter(int digits) {
+        if (digits < 0 || digits > 6) throw new IllegalArgumentException("digits");
+        this.digits = digits;
+        long u = 1;
+        for (int i = 0; i < digits; i++) u *= 10;
+        this.unit = u;
+    }
+
+    /**
+     * 図形を SVG 画像として書き出す
+     * @param figures 描画順の図形
+     * @param width 画像の幅
+     * @param height 画像の高さ
+     * @param emptyWidth 図形がないときに収める範囲の幅
+     * @param emptyHeight 図形がないときに収める範囲の高さ
+     * @param out 書き込み先（閉じない）
+     * @throws IOException 書き込みに失敗したとき
+     */
+    public void write(List<Figure> figures, int width, int height, double emptyWidth, double emptyHeight,
+                      Writer out) throws IOException {
+        this.out = out;
+        double[] t = ExportRenderer.fitTransform(figures, width, height, emptyWidth, emptyHeight);
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+                  + "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+        out.write("<rect width=\"" + width + "\" height=\"" + height + "\" fill=\"#ffffff\"/>\n");
+        out.write("<g transform=\"matrix(" + t[0] + " 0 0 " + t[0] + " " + t[1] + " " + t[2]
+                  + ")\" fill=\"none\" stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+
+        Figure open = null;  // 今書いている path 要素の最初の図形
+        for (Figure f : figures) {
+            boolean fill = f.paintsFill(), stroke = f.paintsStroke();
+            if (!fill && !stroke) continue;
+            if (open == null || !canMerge(open, f)) {
+                if (open != null) out.write("\"/>\n");
+                beginPath(f, fill, stroke);
+                open = f;
+            }
+            writeShape(f.getShape());
+        }
+        if (open != null) out.write("\"/>\n");
+        out.write("</g>\n</svg>\n");
+        out.flush();
+        this.out = null;
+    }
+
+    /** f を a と同じ path 要素にまとめても見た目が変わらないかどうか */
+    private static boolean canMerge(Figure a, Figure f) {
+        if (!a.color.equals(f.color) || a.color.getAlpha() != 255) return false;
+        if (a.paintsFill() != f.paintsFill() || a.paintsStroke() != f.paintsStroke()) return false;
+        if (a.paintsStroke() && a.strokeWidth != f.strokeWidth) return false;
+        // 塗るときは部分パスの向きが逆だと重なりが抜けるので、向きが揃う形だけをまとめる
+        return !a.paintsFill() || (a.getShape() instanceof RectangularShape && f.getShape() instanceof RectangularShape);
+    }
+
+    private void beginPath(Figure f, boolean fill, boolean stroke) throws IOException {
+        out.write("<path");
+        Color c = f.color;
+        if (fill) {
+            out.write(" fill=\"");
+            writeColor(c);
+            out.write('"');
+            if (c.getAlpha() != 255) out.write(" fill-opacity=\"" + c.getAlpha() / 255.0 + "\"");
+        }
+        if (stroke) {
+            out.write(" stroke=\"");
+            writeColor(c);
+            out.write("\" stroke-width=\"" + f.strokeWidth + "\"");
+            if (c.getAlpha() != 255) out.write(" stroke-opacity=\"" + c.getAlpha() / 255.0 + "\"");
+        }
+        out.write(" d=\"");
+        lastCommand = 0;
+        curX = curY = startX = startY = 0;
+    }
+
+    /** 形状を部分パスとして書く（座標は直前の点からの差分） */
+    private void writeShape(Shape shape) throws IOException {
+        for (PathIterator it = shape.getPathIterator(null); !it.isDone(); it.next()) {
+            switch (it.currentSegment(seg)) {
+                case PathIterator.SEG_MOVETO:
+                    command('m');
+                    point(seg[0], seg[1]);
+                    startX = curX; startY = curY;
+                    // m の後に続く座標は l とみなされる
+                    lastCommand = 'l';
+                    break;
+                case PathIterator.SEG_LINETO:
+                    command('l');
+                    point(seg[0], seg[1]);
+                    break;
+                case PathIterator.SEG_QUADTO:
+                    command('q');
+                    control(seg[0], seg[1]);
+                    point(seg[2], seg[3]);
+                    break;
+                case PathIterator.SEG_CUBICTO:
+                    command('c');
+                    control(seg[0], seg[1]);
+                    control(seg[2], seg[3]);
+                    point(seg[4], seg[5]);
+                    break;
+                case PathIterator.SEG_CLOSE:
+                    command('z');
+                    curX = startX; curY = startY;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** 前と同じコマンドなら文字を省く（m と z は必ず書く） */
+    private void command(char c) throws IOException {
+        if (c != lastCommand || c == 'm' || c == 'z') {
+            out.write(c);
+            lastCommand = c;
+        } else {
+            out.write(' ');
+        }
+    }
+
+    /** 終点を書き、現在の点を進める */
+    private void point(double x, double y) throws IOException {
+        long qx = Math.round(x * unit), qy = Math.round(y * unit);
+        writeNumber(qx - curX, false);
+        writeNumber(qy - curY, true);
+        curX = qx; curY = qy;
+    }
+
+    /** 制御点を書く（現在の点は進めない） */
+    private void control(double x, double y) throws IOException {
+        writeNumber(Math.round(x * unit) - curX, false);
+        writeNumber(Math.round(y * unit) - curY, true);
+        out.write(' ');
+    }
+
+    /** 丸めた整数 q を小数で書く（2つ目の数の前には区切りを入れる。負の数なら - が区切りになる） */
+    private void writeNumber(long q, boolean separate) throws IOException {
+        if (q < 0) {
+            out.write('-');
+            q = -q;
+        } else if (separate) {
+            out.write(' ');
+        }
+        out.write(Long.toString(q / unit));
+        long frac = q % unit;
+        if (frac == 0) return;
+        int d = digits;
+        while (frac % 10 == 0) { frac /= 10; d--; }
+        out.write('.');
+        String s = Long.toString(frac);
+        for (int i = s.length(); i < d; i++) out.write('0');
+        out.write(s);
+    }
+
+    private void writeColor(Color c) throws IOException {
+        String hex = Integer.toHexString(c.getRGB() & 0xffffff);
+        out.write('#');
+        for (int i = hex.length(); i < 6; i++) out.write('0');
+        out.write(hex);
+    }
+}